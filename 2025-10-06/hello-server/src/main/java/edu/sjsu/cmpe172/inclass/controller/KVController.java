@@ -0,0 +1,96 @@
+package edu.sjsu.cmpe172.inclass.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.sjsu.cmpe172.inclass.repository.KV;
+import edu.sjsu.cmpe172.inclass.repository.KVStore;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+@RestController
+public class KVController {
+    private final KVStore kvStore;
+    private final ObjectMapper objectMapper;
+
+    public record Count(int count) {}
+
+    public record CacheInfo(long keys, long bytes, long hits, long misses, double hitRate, long loads,
+                            double averageLoadMillis, long evictions) {}
+
+    public KVController(KVStore kvStore, ObjectMapper objectMapper) {
+        this.kvStore = kvStore;
+        this.objectMapper = objectMapper;
+    }
+
+    @GetMapping("/kv/{key}")
+    public ResponseEntity<KV> get(@PathVariable String key) {
+        return ResponseEntity.of(kvStore.get(key));
+    }
+
+    @PutMapping(value = "/kv/{key}", consumes = MediaType.TEXT_PLAIN_VALUE)
+    public void put(@PathVariable String key, @RequestBody String value) {
+        kvStore.put(key, value);
+    }
+
+    @DeleteMapping("/kv/{key}")
+    public ResponseEntity<Void> delete(@PathVariable String key) {
+        return kvStore.delete(key) ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
+    }
+
+    @PutMapping("/kv")
+    public Count putAll(@RequestBody List<KV> kvs) {
+        return new Count(kvStore.putAll(kvs));
+    }
+
+    // bulk reads and deletes take the keys in the body, so they are POSTs
+    @PostMapping("/kv/get")
+    public List<KV> getAll(@RequestBody List<String> keys) {
+        return kvStore.getAll(keys);
+    }
+
+    @PostMapping("/kv/delete")
+    public Count deleteAll(@RequestBody List<String> keys) {
+        return new Count(kvStore.deleteAll(keys));
+    }
+
+    @GetMapping("/kv/stats")
+    public CacheInfo stats() {
+        var stats = kvStore.cacheStats();
+        return new CacheInfo(kvStore.cachedKeys(), kvStore.cachedBytes(), stats.hitCount(), stats.missCount(),
+                stats.hitRate(), stats.loadCount(), stats.averageLoadPenalty() / 1e6, stats.evictionCount());
+    }
+
+    /**
+     * streams a JSON array of the pairs after the given key in key order. to get the next page, pass the last key
+     * you got as after.
+     */
+    @GetMapping(value = "/kv/scan", produces = MediaType.APPLICATION_JSON_VALUE)
+    public StreamingResponseBody scan(@RequestParam(required = false) String after,
+                                      @RequestParam(defaultValue = "1000") long limit) {
+        return out -> {
+            try (var json = objectMapper.createGenerator(out)) {
+                json.writeStartArray();
+                kvStore.scan(after, limit, kv -> {
+                    try {
+                        json.writeObject(kv);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                json.writeEndArray();
+            }
+        };
+    }
+}
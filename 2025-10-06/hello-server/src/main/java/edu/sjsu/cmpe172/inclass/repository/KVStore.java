@@ -0,0 +1,167 @@
+package edu.sjsu.cmpe172.inclass.repository;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * The KV table, for when going through JPA one entity at a time is too slow.
+ * <p>
+ * Bulk writes are split into chunks of batchSize rows, and each chunk is sent as one JDBC batch in its own
+ * transaction. Scans page on kvKey (WHERE kv_key > last key seen) so a deep page costs the same as the first one.
+ * <p>
+ * Point reads go through a Caffeine cache bounded by kv.cacheMaxBytes (roughly the memory the keys and values
+ * take). Misses are cached too, and a key that is missing from the cache is loaded only once no matter how many
+ * readers ask for it at the same time. Every write through here drops the key from the cache once the database has
+ * it, and the next read loads it again. Writing the new value into the cache instead could leave the older of two
+ * racing writes there, and a drop waits for a load of the key that is in flight, so the cache never holds a value
+ * older than the table. Scans go straight to the table so they don't push out the hot keys.
+ */
+@Repository
+public class KVStore {
+    private static final String UPSERT = "MERGE INTO kv (kv_key, kv_value) KEY (kv_key) VALUES (?, ?)";
+    private final JdbcTemplate jdbc;
+    private final TransactionTemplate tx;
+    private final KVRespository kvRepository;
+    private final int batchSize;
+    // absent keys are cached as Optional.empty()
+    private final Cache<String, Optional<KV>> cache;
+
+    public KVStore(JdbcTemplate jdbc, TransactionTemplate tx, KVRespository kvRepository,
+                   @Value("${kv.batchSize:1000}") int batchSize,
+                   @Value("${kv.cacheMaxBytes:67108864}") long cacheMaxBytes) {
+        this.jdbc = jdbc;
+        this.tx = tx;
+        this.kvRepository = kvRepository;
+        this.batchSize = batchSize;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(cacheMaxBytes)
+                .weigher((String key, Optional<KV> kv) -> weight(key, kv))
+                .recordStats()
+                .build();
+    }
+
+    // java strings are about two bytes a char, plus the entry and object headers
+    private static int weight(String key, Optional<KV> kv) {
+        return 64 + 2 * key.length() + kv.map(v -> v.kvValue == null ? 0 : 2 * v.kvValue.length()).orElse(0);
+    }
+
+    public Optional<KV> get(String key) {
+        return cache.get(key, kvRepository::findById);
+    }
+
+    public void put(String key, String value) {
+        jdbc.update(UPSERT, key, value);
+        cache.invalidate(key);
+    }
+
+    public boolean delete(String key) {
+        boolean deleted = jdbc.update("DELETE FROM kv WHERE kv_key = ?", key) > 0;
+        cache.invalidate(key);
+        return deleted;
+    }
+
+    /** upserts all the pairs, batchSize at a time. returns how many were written. */
+    public int putAll(List<KV> kvs) {
+        int written = 0;
+        for (int i = 0; i < kvs.size(); i += batchSize) {
+            var chunk = kvs.subList(i, Math.min(kvs.size(), i + batchSize));
+            tx.executeWithoutResult(status -> jdbc.batchUpdate(UPSERT, chunk, chunk.size(), (ps, kv) -> {
+                ps.setString(1, kv.kvKey);
+                ps.setString(2, kv.kvValue);
+            }));
+            cache.invalidateAll(chunk.stream().map(kv -> kv.kvKey).toList());
+            written += chunk.size();
+        }
+        return written;
+    }
+
+    /** the pairs for the keys that exist, in key order. only the keys that aren't cached are read from the table. */
+    public List<KV> getAll(List<String> keys) {
+        var kvs = new ArrayList<KV>();
+        for (var kv : cache.getAll(keys, this::load).values()) kv.ifPresent(kvs::add);
+        kvs.sort((a, b) -> a.kvKey.compareTo(b.kvKey));
+        return kvs;
+    }
+
+    private Map<String, Optional<KV>> load(Iterable<? extends String> keys) {
+        var loaded = new HashMap<String, Optional<KV>>();
+        for (var key : keys) loaded.put(key, Optional.empty());
+        var missing = new ArrayList<String>(loaded.keySet());
+        for (int i = 0; i < missing.size(); i += batchSize) {
+            var chunk = missing.subList(i, Math.min(missing.size(), i + batchSize));
+            var in = String.join(",", Collections.nCopies(chunk.size(), "?"));
+            jdbc.query("SELECT kv_key, kv_value FROM kv WHERE kv_key IN (" + in + ")",
+                    (RowCallbackHandler) rs -> loaded.put(rs.getString(1), Optional.of(kv(rs.getString(1), rs.getString(2)))),
+                    chunk.toArray());
+        }
+        return loaded;
+    }
+
+    /** deletes the keys, batchSize at a time. returns how many existed. */
+    public int deleteAll(List<String> keys) {
+        int deleted = 0;
+        for (int i = 0; i < keys.size(); i += batchSize) {
+            var chunk = keys.subList(i, Math.min(keys.size(), i + batchSize));
+            var counts = tx.execute(status -> jdbc.batchUpdate("DELETE FROM kv WHERE kv_key = ?", chunk, chunk.size(),
+                    (ps, key) -> ps.setString(1, key)));
+            cache.invalidateAll(chunk);
+            for (var batch : counts) for (var count : batch) deleted += Math.max(count, 0);
+        }
+        return deleted;
+    }
+
+    /**
+     * hands the pairs with keys after the given key (or from the start if it is null) to consumer in key order,
+     * stopping after limit pairs. the rows are fetched a page at a time, so nothing holds a cursor open for long.
+     */
+    public void scan(String after, long limit, Consumer<KV> consumer) {
+        String last = after;
+        long remaining = limit;
+        while (remaining > 0) {
+            int page = (int) Math.min(batchSize, remaining);
+            var rows = last == null
+                    ? jdbc.query("SELECT kv_key, kv_value FROM kv ORDER BY kv_key LIMIT ?",
+                    (rs, n) -> kv(rs.getString(1), rs.getString(2)), page)
+                    : jdbc.query("SELECT kv_key, kv_value FROM kv WHERE kv_key > ? ORDER BY kv_key LIMIT ?",
+                    (rs, n) -> kv(rs.getString(1), rs.getString(2)), last, page);
+            rows.forEach(consumer);
+            if (rows.size() < page) return;
+            last = rows.get(rows.size() - 1).kvKey;
+            remaining -= rows.size();
+        }
+    }
+
+    public CacheStats cacheStats() {
+        return cache.stats();
+    }
+
+    /** how many keys are cached and roughly how many bytes they take. */
+    public long cachedKeys() {
+        return cache.estimatedSize();
+    }
+
+    public long cachedBytes() {
+        return cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+    }
+
+    private static KV kv(String key, String value) {
+        var kv = new KV();
+        kv.kvKey = key;
+        kv.kvValue = value;
+        return kv;
+    }
+}
@@ -0,0 +1,474 @@
+package edu.sjsu.cmpe172.sample;
+
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import edu.sjsu.cmpe172.hellohello.PostForwardServiceGrpc;
+import edu.sjsu.cmpe172.hellohello.PostReplicaServiceGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives posts and reads at a hello-hello cluster it finds through ZooKeeper and reports latency percentiles.
+ * <p>
+ * With --rate the load is open loop: operation i is due at start + i/rate whether or not earlier ones have finished,
+ * and its latency is measured from when it was due. A stall then shows up in every operation that should have gone
+ * out during it, not just the one that was stuck (coordinated omission). With --concurrency each of that many workers
+ * waits for its operation before starting the next, which measures capacity but hides stalls.
+ * <p>
+ * Posts go to the leader over the same forwardPosts stream followers use, so a post that hits a leader change is sent
+ * again with the same requestId and counts once, with the failover in its latency. Reads are getLastTxn calls spread
+ * over every peer, since that's the read the servers answer over gRPC.
+ */
+@CommandLine.Command(name = "LoadGen", mixinStandardHelpOptions = true)
+public class LoadGen implements Runnable {
+    @CommandLine.Parameters
+    String connectString;
+
+    @CommandLine.Option(names = "--rate", description = "operations per second, open loop")
+    Double rate;
+
+    @CommandLine.Option(names = "--concurrency", description = "workers each waiting for their last operation, closed loop")
+    Integer concurrency;
+
+    @CommandLine.Option(names = "--duration", defaultValue = "30", description = "seconds to run")
+    int durationSeconds;
+
+    @CommandLine.Option(names = "--read-percent", defaultValue = "0")
+    int readPercent;
+
+    @CommandLine.Option(names = "--report-interval", defaultValue = "5", description = "seconds between interval reports")
+    int reportSeconds;
+
+    @CommandLine.Option(names = "--timeout", defaultValue = "30", description = "seconds before an operation counts as failed")
+    int timeoutSeconds;
+
+    @CommandLine.Option(names = "--kill-leader-after", description = "seconds into the run to take the leader down")
+    Integer killLeaderAfter;
+
+    @CommandLine.Option(names = "--kill-command",
+            description = "command that kills the leader, {leader} is replaced by its name. without it we delete /leader")
+    String killCommand;
+
+    @CommandLine.Option(names = "--user", defaultValue = "loadgen")
+    String user;
+
+    private ZooKeeper zk;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("loadgen-scheduler").daemon().factory());
+    private final ConcurrentHashMap<String, ManagedChannel> channels = new ConcurrentHashMap<>();
+    // name -> host:port of every peer, replaced whenever we rediscover
+    private volatile Map<String, String> peers = Map.of();
+    private final AtomicInteger nextReader = new AtomicInteger();
+    private final Op writes = new Op("writes");
+    private final Op reads = new Op("reads");
+    private final Poster poster = new Poster();
+    private final String runId = UUID.randomUUID().toString().substring(0, 8);
+    private final AtomicLong nextRequest = new AtomicLong();
+    private volatile long killedAtNanos = 0;
+    private final AtomicLong resumedAtNanos = new AtomicLong();
+
+    public static void main(String[] args) {
+        System.exit(new CommandLine(new LoadGen()).execute(args));
+    }
+
+    /** the leader turned a post away with ADD_OVERLOADED. */
+    private static class Overloaded extends RuntimeException {
+        final long retryAfterMillis;
+
+        Overloaded(long retryAfterMillis) {
+            super("overloaded, retry after " + retryAfterMillis + "ms");
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    /** the Overloaded under t, if it is one. */
+    private static Overloaded overloaded(Throwable t) {
+        while (t != null && !(t instanceof Overloaded)) t = t.getCause();
+        return (Overloaded) t;
+    }
+
+    /** latencies and failures of one kind of operation, in microseconds. shed ones aren't counted as errors. */
+    private static class Op {
+        final String name;
+        final Recorder interval = new Recorder(3);
+        final Histogram total = new Histogram(3);
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong shed = new AtomicLong();
+        long intervalErrors = 0;
+        long intervalShed = 0;
+        volatile Throwable lastError;
+
+        Op(String name) {
+            this.name = name;
+        }
+
+        void done(long startNanos, Throwable t) {
+            if (t == null) {
+                interval.recordValue(Math.max(0, (System.nanoTime() - startNanos) / 1000));
+            } else if (overloaded(t) != null) {
+                shed.incrementAndGet();
+            } else {
+                errors.incrementAndGet();
+                lastError = t;
+            }
+        }
+
+        /** folds the interval into the total and prints it. */
+        void report(double seconds) {
+            var h = interval.getIntervalHistogram();
+            total.add(h);
+            long e = errors.get();
+            long s = shed.get();
+            System.out.println("  " + line(h, seconds, e - intervalErrors, s - intervalShed));
+            if (e > intervalErrors) System.out.println("    last error: " + lastError);
+            intervalErrors = e;
+            intervalShed = s;
+        }
+
+        String line(Histogram h, double seconds, long errors, long shed) {
+            return String.format("%-6s %8.1f/s  p50 %8.2fms  p99 %8.2fms  p99.9 %8.2fms  max %8.2fms  errors %d  shed %d",
+                    name, h.getTotalCount() / seconds, millis(h.getValueAtPercentile(50)),
+                    millis(h.getValueAtPercentile(99)), millis(h.getValueAtPercentile(99.9)),
+                    millis(h.getMaxValue()), errors, shed);
+        }
+
+        private static double millis(long micros) {
+            return micros / 1000.0;
+        }
+    }
+
+    @Override
+    public void run() {
+        if ((rate == null) == (concurrency == null)) {
+            throw new CommandLine.ParameterException(new CommandLine(this), "give exactly one of --rate or --concurrency");
+        }
+        try {
+            zk = new ZooKeeper(connectString, 10000, e -> {});
+            discoverPeers();
+            var leader = leader();
+            System.out.println("Peers: " + peers + ", leader: " + (leader == null ? "none" : leader.name()));
+            if (killLeaderAfter != null) scheduler.schedule(this::killLeader, killLeaderAfter, TimeUnit.SECONDS);
+
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+            var reporter = scheduler.scheduleAtFixedRate(() -> report(start), reportSeconds, reportSeconds, TimeUnit.SECONDS);
+            if (rate != null) openLoop(start, end);
+            else closedLoop(end);
+            // let what is still outstanding finish or time out before the final numbers
+            poster.drain(TimeUnit.SECONDS.toNanos(timeoutSeconds));
+            reporter.cancel(false);
+            summary(System.nanoTime() - start);
+        } catch (IOException | KeeperException | InterruptedException e) {
+            System.out.println("Load run failed: " + e);
+            System.exit(2);
+        } finally {
+            scheduler.shutdownNow();
+            channels.values().forEach(ManagedChannel::shutdownNow);
+        }
+    }
+
+    private void openLoop(long start, long end) {
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        for (long i = 0; ; i++) {
+            long due = start + i * periodNanos;
+            if (due >= end) return;
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+            // the clock starts when the operation was due, not when we got around to sending it
+            var op = isRead() ? reads : writes;
+            (op == reads ? read() : write()).whenComplete((r, t) -> op.done(due, t));
+        }
+    }
+
+    private void closedLoop(long end) throws InterruptedException {
+        var workers = new ArrayList<Thread>();
+        for (int i = 0; i < concurrency; i++) {
+            workers.add(Thread.ofVirtual().name("loadgen-" + i).start(() -> {
+                while (System.nanoTime() < end) {
+                    long started = System.nanoTime();
+                    boolean read = isRead();
+                    try {
+                        (read ? read() : write()).get();
+                        (read ? reads : writes).done(started, null);
+                    } catch (Exception e) {
+                        (read ? reads : writes).done(started, e);
+                        // a well behaved client waits as long as it was told to
+                        var overloaded = overloaded(e);
+                        if (overloaded != null) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(overloaded.retryAfterMillis));
+                    }
+                }
+            }));
+        }
+        for (var worker : workers) worker.join();
+    }
+
+    private boolean isRead() {
+        return ThreadLocalRandom.current().nextInt(100) < readPercent;
+    }
+
+    private CompletableFuture<Long> read() {
+        var names = new ArrayList<>(peers.values());
+        if (names.isEmpty()) return CompletableFuture.failedFuture(new IllegalStateException("no peers"));
+        var hostPort = names.get(Math.floorMod(nextReader.getAndIncrement(), names.size()));
+        var result = new CompletableFuture<Long>();
+        PostReplicaServiceGrpc.newStub(channel(hostPort)).withDeadlineAfter(timeoutSeconds, TimeUnit.SECONDS)
+                .getLastTxn(HelloHello.GetLastTxnRequest.getDefaultInstance(), new StreamObserver<>() {
+                    @Override
+                    public void onNext(HelloHello.GetLastTxnReply reply) {
+                        result.complete(reply.getLastTxn());
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        result.completeExceptionally(t);
+                    }
+
+                    @Override
+                    public void onCompleted() {}
+                });
+        return result;
+    }
+
+    private CompletableFuture<Long> write() {
+        var post = HelloHello.ClientPost.newBuilder()
+                .setRequestId(runId + "-" + nextRequest.incrementAndGet())
+                .setUser(user)
+                .setMessage("load " + runId)
+                .setTimestamp(System.currentTimeMillis())
+                .build();
+        return poster.post(post).orTimeout(timeoutSeconds, TimeUnit.SECONDS).whenComplete((txn, t) -> {
+            if (t == null && killedAtNanos != 0) resumedAtNanos.compareAndSet(0, System.nanoTime());
+        });
+    }
+
+    private ManagedChannel channel(String hostPort) {
+        return channels.computeIfAbsent(hostPort, hp -> ManagedChannelBuilder.forTarget(hp).usePlaintext().build());
+    }
+
+    private void discoverPeers() throws KeeperException, InterruptedException {
+        var found = new LinkedHashMap<String, String>();
+        for (var child : zk.getChildren("/peers", false)) {
+            try {
+                // first line is host:port, the description follows
+                found.put(child, new String(zk.getData("/peers/" + child, false, null)).split("\n", 2)[0]);
+            } catch (KeeperException.NoNodeException e) {
+                // went away while we were looking
+            }
+        }
+        peers = found;
+    }
+
+    private record Leader(String name, long zxid) {}
+
+    private Leader leader() throws KeeperException, InterruptedException {
+        var stat = new Stat();
+        try {
+            var name = new String(zk.getData("/leader", false, stat));
+            return new Leader(name, stat.getMzxid());
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        }
+    }
+
+    private void killLeader() {
+        try {
+            var leader = leader();
+            if (leader == null) {
+                System.out.println("No leader to kill");
+                return;
+            }
+            System.out.println("Killing leader " + leader.name);
+            if (killCommand != null) {
+                new ProcessBuilder("sh", "-c", killCommand.replace("{leader}", leader.name)).inheritIO().start().waitFor();
+            } else {
+                zk.delete("/leader", -1);
+            }
+            resumedAtNanos.set(0);
+            killedAtNanos = System.nanoTime();
+        } catch (IOException | KeeperException | InterruptedException e) {
+            System.out.println("Couldn't kill the leader: " + e);
+        }
+    }
+
+    private synchronized void report(long start) {
+        System.out.printf("at %ds:%n", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+        writes.report(reportSeconds);
+        if (readPercent > 0) reads.report(reportSeconds);
+    }
+
+    private synchronized void summary(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        // pick up whatever came in since the last interval report
+        writes.total.add(writes.interval.getIntervalHistogram());
+        reads.total.add(reads.interval.getIntervalHistogram());
+        System.out.printf("total over %.1fs (%s):%n", seconds,
+                rate != null ? "open loop at " + rate + "/s" : "closed loop, " + concurrency + " workers");
+        System.out.println("  " + writes.line(writes.total, seconds, writes.errors.get(), writes.shed.get()));
+        if (readPercent > 0) System.out.println("  " + reads.line(reads.total, seconds, reads.errors.get(), reads.shed.get()));
+        if (killedAtNanos != 0) {
+            long resumed = resumedAtNanos.get();
+            System.out.println(resumed == 0 ? "  no post committed after the leader was killed"
+                    : String.format("  first post committed %.1fms after the leader was killed",
+                    (resumed - killedAtNanos) / 1e6));
+        }
+    }
+
+    /**
+     * Keeps one forwardPosts stream open to the current leader. Posts that haven't been answered stay in pending and
+     * are sent again whenever we have to find the leader again.
+     */
+    private class Poster {
+        // requestId -> post and its future, guarded by this
+        private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+        private Stream stream;
+        private boolean reconnecting = false;
+
+        private record Pending(HelloHello.ClientPost post, CompletableFuture<Long> txn) {}
+
+        CompletableFuture<Long> post(HelloHello.ClientPost post) {
+            var p = new Pending(post, new CompletableFuture<>());
+            synchronized (this) {
+                pending.put(post.getRequestId(), p);
+                if (stream != null) stream.send(List.of(post));
+                else reconnect(0);
+            }
+            p.txn().whenComplete((txn, t) -> {
+                synchronized (this) {
+                    pending.remove(post.getRequestId());
+                }
+            });
+            return p.txn();
+        }
+
+        /** waits up to timeoutNanos for every post to be answered. */
+        void drain(long timeoutNanos) throws InterruptedException {
+            long end = System.nanoTime() + timeoutNanos;
+            while (System.nanoTime() < end) {
+                synchronized (this) {
+                    if (pending.isEmpty()) return;
+                }
+                Thread.sleep(50);
+            }
+        }
+
+        // caller must hold the lock
+        private void reconnect(long delayMillis) {
+            // the run is over, nobody is waiting for these any more
+            if (reconnecting || scheduler.isShutdown()) return;
+            reconnecting = true;
+            scheduler.schedule(this::connect, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void connect() {
+            Leader leader;
+            String hostPort;
+            try {
+                leader = leader();
+                // a leader change usually means a peer went away, so stop sending it reads too
+                discoverPeers();
+                hostPort = leader == null ? null : peers.get(leader.name);
+            } catch (KeeperException | InterruptedException e) {
+                leader = null;
+                hostPort = null;
+            }
+            synchronized (this) {
+                reconnecting = false;
+                if (hostPort == null) {
+                    // between leaders, look again shortly
+                    reconnect(100);
+                    return;
+                }
+                stream = new Stream(leader.zxid);
+                PostForwardServiceGrpc.newStub(channel(hostPort)).forwardPosts(stream);
+                stream.send(pending.values().stream().map(Pending::post).toList());
+            }
+        }
+
+        private synchronized void dropped(Stream old) {
+            if (stream != old) return;
+            stream = null;
+            old.requests.cancel("finding the leader again", null);
+            reconnect(100);
+        }
+
+        private class Stream implements ClientResponseObserver<HelloHello.ForwardPostsRequest, HelloHello.ForwardPostsReply> {
+            final long leaderZxid;
+            ClientCallStreamObserver<HelloHello.ForwardPostsRequest> requests;
+
+            Stream(long leaderZxid) {
+                this.leaderZxid = leaderZxid;
+            }
+
+            // caller must hold the Poster lock
+            void send(List<HelloHello.ClientPost> posts) {
+                for (int i = 0; i < posts.size(); i += 512) {
+                    requests.onNext(HelloHello.ForwardPostsRequest.newBuilder().setLeaderZxid(leaderZxid)
+                            .setSentMillis(System.currentTimeMillis())
+                            .addAllPosts(posts.subList(i, Math.min(posts.size(), i + 512))).build());
+                }
+            }
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<HelloHello.ForwardPostsRequest> requests) {
+                this.requests = requests;
+            }
+
+            @Override
+            public void onNext(HelloHello.ForwardPostsReply reply) {
+                var done = new ArrayList<Runnable>();
+                boolean notMyLeader = false;
+                synchronized (Poster.this) {
+                    for (var result : reply.getPostsList()) {
+                        var p = pending.get(result.getRequestId());
+                        if (p == null) continue;
+                        switch (result.getStatus()) {
+                            case ADD_SUCCESS -> done.add(() -> p.txn().complete(result.getTxn()));
+                            // stays pending and goes to whoever leads next
+                            case ADD_NOT_MY_LEADER -> notMyLeader = true;
+                            case ADD_OVERLOADED -> done.add(() -> p.txn().completeExceptionally(
+                                    new Overloaded(result.getRetryAfterMillis())));
+                            default -> done.add(() -> p.txn().completeExceptionally(
+                                    new IllegalStateException("post failed: " + result.getStatus())));
+                        }
+                    }
+                }
+                done.forEach(Runnable::run);
+                if (notMyLeader) dropped(this);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                dropped(this);
+            }
+
+            @Override
+            public void onCompleted() {
+                dropped(this);
+            }
+        }
+    }
+}
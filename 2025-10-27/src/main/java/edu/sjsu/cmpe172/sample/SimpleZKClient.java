@@ -1,9 +1,12 @@
 package edu.sjsu.cmpe172.sample;
 
+import edu.sjsu.cmpe172.election.LeaderElection;
 import org.apache.zookeeper.*;
 import picocli.CommandLine;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 @CommandLine.Command(name = "SimpleZKClient")
 public class SimpleZKClient implements Runnable {
@@ -66,7 +69,10 @@ public class SimpleZKClient implements Runnable {
             System.out.println("I am " + name);
 
             System.out.println("Trying to become the boss!");
-            tryToBeBoss();
+            // we only hear about it when everyone who got in line before us has gone
+            new LeaderElection(zk, "/boss-election", "/boss", name.getBytes(),
+                    stat -> System.out.println("I am the boss now!"),
+                    (key, action) -> CompletableFuture.delayedExecutor(1, TimeUnit.SECONDS).execute(action)).join();
             childrenWatcher.process(new WatchedEvent(Watcher.Event.EventType.NodeChildrenChanged, null, "/"));
             for (int i = 0; i < 10; i++) {
                 zk.setData(name, (description + " is bored... " + i).getBytes(), -1);
@@ -78,26 +84,6 @@ public class SimpleZKClient implements Runnable {
         }
     }
 
-    private void tryToBeBoss() throws KeeperException, InterruptedException {
-        try {
-            zk.create("/boss", name.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
-        } catch (KeeperException.NodeExistsException ee) {
-            try {
-                var data = zk.getData("/boss", event -> {
-                    System.out.println("got event: " + event);
-                        try {
-                            tryToBeBoss();
-                        } catch (KeeperException | InterruptedException e) {
-                            System.out.println("Got exception when becoming boss: " + e);
-                        }
-                }, null);
-            } catch (KeeperException.NoNodeException | KeeperException.ConnectionLossException e) {
-                tryToBeBoss();
-            }
-            System.out.println("There is already a boss: " + new String(data));
-        }
-    }
-
     private static boolean isFatal(Watcher.Event.KeeperState state) {
         return switch (state) {
             case Closed, Expired, AuthFailed -> true;
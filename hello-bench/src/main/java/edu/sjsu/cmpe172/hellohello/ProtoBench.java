@@ -0,0 +1,64 @@
+package edu.sjsu.cmpe172.hellohello;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** how long it takes to encode and decode the posts we send to replicas, by message size. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtoBench {
+    @Param({"32", "1024"})
+    int messageLength;
+
+    HelloHello.NewPostRequest newPost;
+    HelloHello.SyncWithLeaderRequest syncPost;
+    byte[] newPostBytes;
+    byte[] syncPostBytes;
+
+    @Setup
+    public void setup() {
+        var message = "x".repeat(messageLength);
+        newPost = HelloHello.NewPostRequest.newBuilder().setMessage(message).setUser("bench")
+                .setTimestamp(System.currentTimeMillis()).setTxn(123_456_789).setLeaderZxid(4_294_967_296L).build();
+        syncPost = HelloHello.SyncWithLeaderRequest.newBuilder().setMessage(message).setAuthor("bench")
+                .setTimestamp(System.currentTimeMillis()).setTxn(123_456_789).setLeaderZxid(4_294_967_296L).build();
+        newPostBytes = newPost.toByteArray();
+        syncPostBytes = syncPost.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] serializeNewPost() {
+        return newPost.toByteArray();
+    }
+
+    @Benchmark
+    public HelloHello.NewPostRequest parseNewPost() throws InvalidProtocolBufferException {
+        return HelloHello.NewPostRequest.parseFrom(newPostBytes);
+    }
+
+    @Benchmark
+    public byte[] serializeSyncPost() {
+        return syncPost.toByteArray();
+    }
+
+    @Benchmark
+    public HelloHello.SyncWithLeaderRequest parseSyncPost() throws InvalidProtocolBufferException {
+        return HelloHello.SyncWithLeaderRequest.parseFrom(syncPostBytes);
+    }
+}
@@ -0,0 +1,65 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+/**
+ * A standalone ZooKeeper server on a free local port with its data in a temp directory, set up the way hello-hello
+ * expects: /peers exists and /replicas holds the given replicas.
+ */
+class EmbeddedZooKeeper implements AutoCloseable {
+    final private Path dir;
+    final private ZooKeeperServer server;
+    final private ServerCnxnFactory factory;
+
+    EmbeddedZooKeeper(String replicas) throws Exception {
+        dir = Files.createTempDirectory("bench-zk");
+        server = new ZooKeeperServer(dir.toFile(), dir.toFile(), 2000);
+        factory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), 100);
+        factory.startup(server);
+        try (var zk = connect()) {
+            zk.create("/peers", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            zk.create("/replicas", replicas.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+    }
+
+    String connectString() {
+        return "127.0.0.1:" + factory.getLocalPort();
+    }
+
+    /** requests the server has had from all clients so far. */
+    long requests() {
+        return server.serverStats().getPacketsReceived();
+    }
+
+    /** a client that is already connected. */
+    ZooKeeper connect() throws IOException, InterruptedException {
+        var connected = new CountDownLatch(1);
+        var zk = new ZooKeeper(connectString(), 3000, event -> {
+            if (event.getState() == Watcher.Event.KeeperState.SyncConnected) connected.countDown();
+        });
+        connected.await();
+        return zk;
+    }
+
+    @Override
+    public void close() throws IOException {
+        factory.shutdown();
+        server.shutdown();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
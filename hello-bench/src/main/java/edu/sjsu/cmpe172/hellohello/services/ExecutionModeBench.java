@@ -0,0 +1,124 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import edu.sjsu.cmpe172.hellohello.PostReplicaServiceGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A burst of requests that each make a blocking call to every peer, the way a fan-out handler does, run on Tomcat's
+ * default pool of 200 platform threads or on virtual threads. The peers are in-process and answer after
+ * peerDelayMicros without holding a thread, so the time per burst is down to how many calls the executor lets us
+ * have waiting at once, capped by DownstreamLimiter's per-peer permits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutionModeBench {
+    private static final int PEERS = 3;
+    // tomcat's default server.tomcat.threads.max
+    private static final int PLATFORM_THREADS = 200;
+
+    @Param({"platform", "virtual"})
+    String mode;
+
+    @Param({"200", "2000"})
+    int requests;
+
+    @Param({"1000"})
+    long peerDelayMicros;
+
+    final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    final List<Server> servers = new ArrayList<>();
+    final List<ManagedChannel> channels = new ArrayList<>();
+    final List<PostReplicaServiceGrpc.PostReplicaServiceBlockingStub> stubs = new ArrayList<>();
+    ScheduledExecutorService replies;
+    ExecutorService executor;
+    DownstreamLimiter limiter;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        replies = Executors.newSingleThreadScheduledExecutor();
+        for (int i = 0; i < PEERS; i++) {
+            var name = InProcessServerBuilder.generateName();
+            servers.add(InProcessServerBuilder.forName(name).directExecutor()
+                    .addService(new PostReplicaServiceGrpc.PostReplicaServiceImplBase() {
+                        @Override
+                        public void getLastTxn(HelloHello.GetLastTxnRequest request,
+                                               StreamObserver<HelloHello.GetLastTxnReply> responseObserver) {
+                            replies.schedule(() -> {
+                                responseObserver.onNext(HelloHello.GetLastTxnReply.newBuilder().setLastTxn(42).build());
+                                responseObserver.onCompleted();
+                            }, peerDelayMicros, TimeUnit.MICROSECONDS);
+                        }
+                    }).build().start());
+            var channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+            channels.add(channel);
+            stubs.add(PostReplicaServiceGrpc.newBlockingStub(channel));
+        }
+        executor = mode.equals("virtual") ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(PLATFORM_THREADS);
+        // long enough that a burst queues for permits rather than being rejected
+        limiter = new DownstreamLimiter(registry, 64, 128, 10_000);
+    }
+
+    @Benchmark
+    public void fanOut() throws InterruptedException {
+        var done = new CountDownLatch(requests);
+        var failure = new AtomicReference<Exception>();
+        for (int r = 0; r < requests; r++) {
+            executor.execute(() -> {
+                try {
+                    for (int p = 0; p < PEERS; p++) {
+                        var stub = stubs.get(p);
+                        limiter.call(DownstreamLimiter.peer("peer" + p),
+                                () -> stub.getLastTxn(HelloHello.GetLastTxnRequest.getDefaultInstance()));
+                    }
+                } catch (Exception e) {
+                    failure.set(e);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        if (failure.get() != null) throw new IllegalStateException("fan out failed", failure.get());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+        channels.forEach(ManagedChannel::shutdownNow);
+        servers.forEach(Server::shutdownNow);
+        replies.shutdownNow();
+    }
+}
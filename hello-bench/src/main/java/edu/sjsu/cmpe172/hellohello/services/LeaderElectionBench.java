@@ -0,0 +1,190 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import edu.sjsu.cmpe172.election.LeaderElection;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leadership handoffs between many contenders, each with its own session on an embedded ZooKeeper. Every invocation
+ * the leader steps down and we time until someone else has created /leader, then it gets back in line.
+ * <p>
+ * "sequential" is LeaderElection. "herd" is what ZKService did before: everyone watches /leader and races to create
+ * it when it goes. The counters are totals over the iteration: notifications is watches that fired and requests is
+ * what the server was sent, divide them by handoffs for the cost of one. The herd's grow with the number of
+ * contenders.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LeaderElectionBench {
+    @Param({"sequential", "herd"})
+    String recipe;
+
+    // the embedded server allows 100 connections from one address
+    @Param({"10", "50"})
+    int contenders;
+
+    EmbeddedZooKeeper zooKeeper;
+    ScheduledExecutorService retries;
+    final List<ZooKeeper> sessions = new ArrayList<>();
+    final List<Contender> all = new ArrayList<>();
+    volatile CompletableFuture<Contender> elected = new CompletableFuture<>();
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Handoffs {
+        public long handoffs;
+        public long notifications;
+        public long requests;
+    }
+
+    interface Contender {
+        void join();
+
+        void leave();
+
+        long notifications();
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        zooKeeper = new EmbeddedZooKeeper("bench");
+        retries = Executors.newSingleThreadScheduledExecutor();
+        for (int i = 0; i < contenders; i++) {
+            var zk = zooKeeper.connect();
+            sessions.add(zk);
+            all.add(recipe.equals("herd") ? new Herd(zk, "c" + i) : sequential(zk, "c" + i));
+        }
+        all.forEach(Contender::join);
+        elected.get(10, TimeUnit.SECONDS);
+    }
+
+    private Contender sequential(ZooKeeper zk, String name) {
+        var holder = new Contender[1];
+        var election = new LeaderElection(zk, "/election", "/leader", name.getBytes(),
+                stat -> elected.complete(holder[0]),
+                (key, action) -> retries.schedule(action, 50, TimeUnit.MILLISECONDS));
+        holder[0] = new Contender() {
+            @Override
+            public void join() {
+                election.join();
+            }
+
+            @Override
+            public void leave() {
+                election.leave();
+            }
+
+            @Override
+            public long notifications() {
+                return election.notifications();
+            }
+        };
+        return holder[0];
+    }
+
+    /** the old way: watch /leader, and when it goes everyone tries to create it. */
+    class Herd implements Contender, Watcher {
+        final ZooKeeper zk;
+        final byte[] name;
+        final AtomicLong notifications = new AtomicLong();
+        volatile boolean contending;
+
+        Herd(ZooKeeper zk, String name) {
+            this.zk = zk;
+            this.name = name.getBytes();
+        }
+
+        @Override
+        public void join() {
+            contending = true;
+            tryCreate();
+        }
+
+        @Override
+        public void leave() {
+            contending = false;
+            zk.delete("/leader", -1, (rc, path, ctx) -> {}, null);
+        }
+
+        @Override
+        public long notifications() {
+            return notifications.get();
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getType() != Event.EventType.NodeDeleted) return;
+            notifications.incrementAndGet();
+            if (contending) tryCreate();
+        }
+
+        private void tryCreate() {
+            zk.create("/leader", name, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL, (rc, path, ctx, n) -> {
+                if (rc == KeeperException.Code.OK.intValue()) {
+                    elected.complete(this);
+                } else {
+                    // lost the race, wait for the next one
+                    zk.exists("/leader", this, (rc2, p, c, stat) -> {
+                        if (rc2 == KeeperException.Code.NONODE.intValue() && contending) tryCreate();
+                    }, null);
+                }
+            }, null);
+        }
+    }
+
+    @Benchmark
+    public void handoff(Handoffs handoffs) throws Exception {
+        var leader = elected.get();
+        long notifiedBefore = notifications();
+        long requestsBefore = zooKeeper.requests();
+        elected = new CompletableFuture<>();
+        leader.leave();
+        elected.get(10, TimeUnit.SECONDS);
+        handoffs.handoffs++;
+        handoffs.notifications += notifications() - notifiedBefore;
+        handoffs.requests += zooKeeper.requests() - requestsBefore;
+        // back of the line
+        leader.join();
+    }
+
+    private long notifications() {
+        return all.stream().mapToLong(Contender::notifications).sum();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        for (var zk : sessions) zk.close();
+        retries.shutdownNow();
+        zooKeeper.close();
+    }
+}
@@ -0,0 +1,152 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import edu.sjsu.cmpe172.hellohello.PostReplicaServiceGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * newPost end to end as a follower sees it: in-process gRPC into HelloHelloGrpcService, appended to a real PostLog
+ * and fsynced before the reply. Each operation sends inFlight posts at once and waits for all of them, so the
+ * posts counter is the number to compare across inFlight values.
+ * <p>
+ * framing "single" is a newPost per post, "batch" is one newPosts with all inFlight posts in it, gzipped, encoding
+ * included. bytes is what the posts took on the wire, divide it by posts for the cost of one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class NewPostBench {
+    @Param({"1", "16", "64"})
+    int inFlight;
+
+    @Param({"single", "batch"})
+    String framing;
+
+    final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    EmbeddedZooKeeper zooKeeper;
+    RetryScheduler retryScheduler;
+    ZKService zkService;
+    Path logDir;
+    PostLog postLog;
+    Server server;
+    ManagedChannel channel;
+    PostReplicaServiceGrpc.PostReplicaServiceStub stub;
+    PostBatches postBatches;
+    long nextTxn;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Posts {
+        public long posts;
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        zooKeeper = new EmbeddedZooKeeper("bench");
+        retryScheduler = new RetryScheduler(50, 5000, registry);
+        // we never call postInit, so there is no leader and the view's leaderZxid stays at -1
+        zkService = new ZKService(zooKeeper.connectString(), 0, "bench", "bench", retryScheduler, new DownstreamLimiter(registry, 64, 128, 100), registry);
+        logDir = Files.createTempDirectory("bench-log");
+        postLog = new PostLog(logDir.toString(), 64 << 20, 256, 200, 60, 4);
+        nextTxn = postLog.lastTxn() + 1;
+        postBatches = new PostBatches(List.of(new GzipPostCodec()), registry, "gzip", 512);
+        var name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name)
+                .addService(new HelloHelloGrpcService(zkService, postLog, postBatches, 256)).build().start();
+        channel = InProcessChannelBuilder.forName(name).build();
+        stub = PostReplicaServiceGrpc.newStub(channel);
+    }
+
+    @Benchmark
+    public void newPost(Posts posts) throws Exception {
+        var batch = new ArrayList<HelloHello.NewPostRequest>();
+        for (int i = 0; i < inFlight; i++) {
+            long txn = nextTxn++;
+            batch.add(HelloHello.NewPostRequest.newBuilder().setMessage("hello from the benchmark, post " + txn)
+                    .setUser("bench" + txn % 10).setTimestamp(System.currentTimeMillis()).setTxn(txn).setLeaderZxid(-1)
+                    .setRequestId(UUID.randomUUID().toString()).build());
+        }
+        boolean batched = framing.equals("batch");
+        var done = new CountDownLatch(batched ? 1 : inFlight);
+        var failure = new AtomicReference<String>();
+        var replies = new StreamObserver<HelloHello.NewPostReply>() {
+            @Override
+            public void onNext(HelloHello.NewPostReply reply) {
+                if (reply.getStatus() != HelloHello.AddPostStatus.ADD_SUCCESS) failure.set(reply.toString());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                failure.set(t.toString());
+                done.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                done.countDown();
+            }
+        };
+        if (batched) {
+            var request = postBatches.encode(batch, -1, -1, "gzip");
+            posts.bytes += request.getSerializedSize();
+            stub.newPosts(request, replies);
+        } else {
+            for (var post : batch) {
+                posts.bytes += post.getSerializedSize();
+                stub.newPost(post, replies);
+            }
+        }
+        done.await();
+        if (failure.get() != null) throw new IllegalStateException("newPost failed: " + failure.get());
+        posts.posts += inFlight;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.shutdownNow();
+        server.shutdownNow();
+        postLog.close();
+        zkService.zk.close();
+        retryScheduler.close();
+        zooKeeper.close();
+        try (Stream<Path> files = Files.walk(logDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.zookeeper.data.Stat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leader and replica lookups through ZKService against an embedded ZooKeeper: the cached view that the request
+ * paths use, and the ZooKeeper round trips that keep it up to date.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZKServiceBench {
+    final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    EmbeddedZooKeeper zooKeeper;
+    RetryScheduler retryScheduler;
+    ZKService zkService;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        zooKeeper = new EmbeddedZooKeeper("bench");
+        retryScheduler = new RetryScheduler(50, 5000, registry);
+        zkService = new ZKService(zooKeeper.connectString(), 0, "bench", "bench", retryScheduler, new DownstreamLimiter(registry, 64, 128, 100), registry);
+        zkService.postInit();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!zkService.isLeading()) {
+            if (System.currentTimeMillis() > deadline) throw new IllegalStateException("never became leader");
+            Thread.sleep(10);
+        }
+    }
+
+    @Benchmark
+    public void viewLeaderAndReplicas(Blackhole bh) {
+        var view = zkService.view();
+        bh.consume(view.leaderPeer());
+        bh.consume(view.leaderZxid());
+        bh.consume(view.replicas());
+    }
+
+    @Benchmark
+    public byte[] getLeaderSync() throws Exception {
+        return zkService.zk.getData("/leader", false, new Stat());
+    }
+
+    @Benchmark
+    public byte[] getReplicasSync() throws Exception {
+        return zkService.zk.getData("/replicas", false, new Stat());
+    }
+
+    /** the callback style ZKService uses, timed until the callback runs. */
+    @Benchmark
+    public byte[] getLeaderAsync() throws Exception {
+        var data = new CompletableFuture<byte[]>();
+        zkService.zk.getData("/leader", false, (rc, path, ctx, bytes, stat) -> data.complete(bytes), null);
+        return data.get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        zkService.zk.close();
+        retryScheduler.close();
+        zooKeeper.close();
+    }
+}
@@ -0,0 +1,106 @@
+package edu.sjsu.cmpe172.inclass;
+
+import edu.sjsu.cmpe172.inclass.repository.KV;
+import edu.sjsu.cmpe172.inclass.repository.KVRespository;
+import edu.sjsu.cmpe172.inclass.repository.KVStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * hello-server's KV reads and writes against an in-memory H2: one entity at a time through KVRespository, and
+ * through KVStore's cache and JDBC batches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KVBench {
+    static final int KEYS = 100_000;
+    static final int BATCH = 1000;
+
+    ConfigurableApplicationContext context;
+    KVRespository kvRepository;
+    KVStore kvStore;
+    List<KV> batch;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = new SpringApplicationBuilder(ExampleServer.class).web(WebApplicationType.NONE)
+                .run("--spring.datasource.url=jdbc:h2:mem:bench", "--spring.jpa.hibernate.ddl-auto=create",
+                        "--token.seed=bench", "--logging.level.root=WARN",
+                        // hello-hello is on our classpath too, and its grpc starter would start a server
+                        "--grpc.server.port=-1");
+        kvRepository = context.getBean(KVRespository.class);
+        kvStore = context.getBean(KVStore.class);
+        var kvs = new ArrayList<KV>();
+        for (int i = 0; i < KEYS; i++) kvs.add(kv("key" + i, "value" + i));
+        kvStore.putAll(kvs);
+        batch = new ArrayList<>();
+        for (int i = 0; i < BATCH; i++) batch.add(kv("batch" + i, "value" + i));
+    }
+
+    static KV kv(String key, String value) {
+        var kv = new KV();
+        kv.kvKey = key;
+        kv.kvValue = value;
+        return kv;
+    }
+
+    static String randomKey() {
+        return "key" + ThreadLocalRandom.current().nextInt(KEYS);
+    }
+
+    @Benchmark
+    public Optional<KV> repositoryFindById() {
+        return kvRepository.findById(randomKey());
+    }
+
+    @Benchmark
+    public KV repositorySave() {
+        return kvRepository.save(kv(randomKey(), "v" + System.nanoTime()));
+    }
+
+    /** random keys over the whole table, so mostly hits once the cache has warmed up. */
+    @Benchmark
+    public Optional<KV> storeGet() {
+        return kvStore.get(randomKey());
+    }
+
+    @Benchmark
+    public void storePut() {
+        kvStore.put(randomKey(), "v" + System.nanoTime());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int storePutAll() {
+        return kvStore.putAll(batch);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+}
@@ -0,0 +1,40 @@
+package edu.sjsu.cmpe172.hellohello;
+
+import jakarta.annotation.PreDestroy;
+import net.devh.boot.grpc.server.serverfactory.GrpcServerConfigurer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * With spring.threads.virtual.enabled=true, Spring Boot already runs Tomcat's request handling on virtual threads.
+ * This does the same for our gRPC services, which otherwise run on the starter's cached platform thread pool.
+ * How many calls can be outstanding to ZooKeeper and to each peer is capped by DownstreamLimiter instead of by the
+ * size of a thread pool.
+ */
+@Configuration
+@ConditionalOnThreading(Threading.VIRTUAL)
+public class VirtualThreadsConfig {
+    private static final Logger logger = Logger.getLogger(VirtualThreadsConfig.class.getName());
+    final private ExecutorService grpcExecutor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("grpc-vt-", 0).factory());
+
+    @Bean
+    GrpcServerConfigurer virtualThreadGrpcServer() {
+        return serverBuilder -> {
+            logger.log(Level.INFO, "Running gRPC services on virtual threads");
+            serverBuilder.executor(grpcExecutor);
+        };
+    }
+
+    @PreDestroy
+    public void close() {
+        grpcExecutor.shutdown();
+    }
+}
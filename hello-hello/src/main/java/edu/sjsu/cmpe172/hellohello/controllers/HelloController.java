@@ -1,11 +1,16 @@
 package edu.sjsu.cmpe172.hellohello.controllers;
 
+import edu.sjsu.cmpe172.hellohello.services.PeerFanout;
 import edu.sjsu.cmpe172.hellohello.services.ZKService;
-import io.grpc.ManagedChannelBuilder;
+import org.apache.zookeeper.KeeperException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.time.Duration;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -14,18 +19,23 @@ import java.util.logging.Logger;
 public class HelloController {
     private final static Logger logger = Logger.getLogger(HelloController.class.getName());
     final private ZKService zkService;
-    public HelloController(ZKService zkService) {
+    final private PeerFanout peerFanout;
+    public HelloController(ZKService zkService, PeerFanout peerFanout) {
         this.zkService = zkService;
+        this.peerFanout = peerFanout;
     }
-    public record Info(String status, String zookeeper, String leader, String myId, String myDescription, List<String> peers) {}
+    public record Info(String status, String zookeeper, String leader, String myId, String myDescription, List<String> peers,
+                       long lastElectionMillis) {}
     @GetMapping("/leader")
     public Info getLeader() {
-        return new Info(zkService.watching ? "WATCHING" : zkService.isLeading() ? "LEADING" : "WATCHING",
-                zkService.connected ? "CONNECTED" : "DISCONNECTED",
-                zkService.leaderPeer,
+        var view = zkService.view();
+        return new Info(view.watching() ? "WATCHING" : view.isLeader(zkService.myName) ? "LEADING" : "WATCHING",
+                view.connected() ? "CONNECTED" : "DISCONNECTED",
+                view.leaderPeer(),
                 zkService.myName,
                 zkService.myDescription,
-                zkService.peers);
+                view.peers(),
+                zkService.lastElectionMillis());
     }
 
     @PostMapping("/leader/lead")
@@ -40,31 +50,44 @@ public class HelloController {
         return "Watching";
     }
 
+    public record ReplicasInfo(String leader, List<String> replicas, List<String> learners, String error) {}
+
+    @GetMapping("/replicas")
+    public ReplicasInfo getReplicas() {
+        var view = zkService.view();
+        return new ReplicasInfo(view.leaderPeer(), view.replicas(), view.learners(), null);
+    }
+
+    /**
+     * starts adding name to the replicas. it joins as a learner, and the leader promotes it once it has caught up.
+     * only the leader can do this, anyone else answers 503 with who the leader is.
+     */
+    @PostMapping("/replicas/learners/{name}")
+    public ResponseEntity<ReplicasInfo> addLearner(@PathVariable String name) throws InterruptedException {
+        var view = zkService.view();
+        if (!view.isLeader(zkService.myName)) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(new ReplicasInfo(view.leaderPeer(),
+                    view.replicas(), view.learners(), "not the leader"));
+        }
+        if (!view.peers().contains(name)) {
+            return ResponseEntity.badRequest().body(new ReplicasInfo(view.leaderPeer(), view.replicas(),
+                    view.learners(), name + " is not in /peers"));
+        }
+        try {
+            zkService.addLearner(name);
+        } catch (KeeperException | RuntimeException e) {
+            logger.log(Level.WARNING, "Adding learner " + name + " failed", e);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(new ReplicasInfo(view.leaderPeer(),
+                    view.replicas(), view.learners(), e.getMessage()));
+        }
+        return ResponseEntity.accepted().body(getReplicas());
+    }
+
     public record PeersInfo(String name, String description, String hostPort, long lastTxn) {}
     @GetMapping("/peers")
     public List<PeersInfo> getPeers() {
-        return zkService.peers.stream().map(peerName -> {
-            try {
-                var data = zkService.zk.getData("/peers/" + peerName, false, null);
-                var parts = new String(data).split("\\s", 2);
-                var hostPort = parts[0];
-                var description = parts[1];
-                long lastTxn = -100;
-                try {
-                    var channel = ManagedChannelBuilder.forTarget(hostPort)
-                            .usePlaintext()
-                            .build();
-                    var stub = edu.sjsu.cmpe172.hellohello.PostReplicaServiceGrpc.newBlockingStub(channel).withDeadlineAfter(2, java.util.concurrent.TimeUnit.SECONDS);
-                    var response = stub.getLastTxn(edu.sjsu.cmpe172.hellohello.HelloHello.GetLastTxnRequest.getDefaultInstance());
-                    lastTxn = response.getLastTxn();
-                } catch (Exception e) {
-                    logger.log(Level.SEVERE, "Failed to get lastTxn from peer " + peerName + " at " + hostPort, e);
-                }
-                return new PeersInfo(peerName, description, hostPort, lastTxn);
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "Failed to get info for peer " + peerName, e);
-            }
-            return new PeersInfo(peerName, "Error", "Error", -100);
-        }).toList();
+        return peerFanout.lastTxns(Duration.ofSeconds(2)).join().stream()
+                .map(peer -> new PeersInfo(peer.name(), peer.description(), peer.hostPort(), peer.lastTxn()))
+                .toList();
     }
 }
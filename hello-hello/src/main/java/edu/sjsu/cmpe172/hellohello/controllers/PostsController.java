@@ -0,0 +1,194 @@
+package edu.sjsu.cmpe172.hellohello.controllers;
+
+import edu.sjsu.cmpe172.hellohello.services.ClusterView;
+import edu.sjsu.cmpe172.hellohello.services.LeaderTracker;
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import edu.sjsu.cmpe172.hellohello.services.AdmissionController;
+import edu.sjsu.cmpe172.hellohello.services.PostForwarder;
+import edu.sjsu.cmpe172.hellohello.services.PostIndex;
+import edu.sjsu.cmpe172.hellohello.services.PostLog;
+import edu.sjsu.cmpe172.hellohello.services.RecentPosts;
+import edu.sjsu.cmpe172.hellohello.services.ZKService;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Posts, read and written through whichever node gets the request.
+ * <p>
+ * Writes are handed to the leader by {@link PostForwarder}. A client that didn't get an answer can send the same
+ * post again with the requestId it got back (or picked itself) and it will only be added once. A write that is turned
+ * away because we or the leader are overloaded gets a 429 with a Retry-After header, in seconds.
+ * <p>
+ * Reads are served by whichever replica gets them, up to the commitTxn the leader last told it about, so nobody
+ * reads a post that a new leader might still throw away. A client that needs to see its own write passes the txn it got back as minTxn. A client that can live with a bit of
+ * lag passes maxStalenessMs. If this replica can't meet either we answer 503 (with what we do have) so the client
+ * can go to another replica or the leader. Every reply says which lastTxn (the commitTxn it went up to) and
+ * leaderZxid it was served from.
+ * <p>
+ * A user's timeline and the posts in a time range come out of the {@link PostIndex}, newest first, a page at a time.
+ * The next page is asked for with the cursor the last one came back with. These are served from what has been
+ * indexed, so lastTxn for them can trail the log for a moment.
+ */
+@RestController
+public class PostsController {
+    private static final int MAX_LIMIT = 1000;
+    final private ZKService zkService;
+    final private PostLog postLog;
+    final private RecentPosts recentPosts;
+    final private LeaderTracker leaderTracker;
+    final private PostForwarder postForwarder;
+    final private PostIndex postIndex;
+
+    public PostsController(ZKService zkService, PostLog postLog, RecentPosts recentPosts, LeaderTracker leaderTracker,
+                           PostForwarder postForwarder, PostIndex postIndex) {
+        this.zkService = zkService;
+        this.postLog = postLog;
+        this.recentPosts = recentPosts;
+        this.leaderTracker = leaderTracker;
+        this.postForwarder = postForwarder;
+        this.postIndex = postIndex;
+    }
+
+    /** requestId is optional, we pick one if it is left out. */
+    public record NewPost(String requestId, String user, String message) {}
+
+    public record NewPostReply(String servedBy, String leader, String requestId, long txn, String error) {}
+
+    /** adds a post, answering once the leader has committed it. */
+    @PostMapping("/posts")
+    public CompletableFuture<ResponseEntity<NewPostReply>> newPost(@RequestBody NewPost post) {
+        var requestId = post.requestId() == null || post.requestId().isBlank() ? UUID.randomUUID().toString() : post.requestId();
+        if (post.user() == null || post.message() == null) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(new NewPostReply(zkService.myName,
+                    zkService.view().leaderPeer(), requestId, -1, "user and message are required")));
+        }
+        return postForwarder.forward(requestId, post.message(), post.user(), System.currentTimeMillis())
+                .handle((txn, t) -> {
+                    var leader = zkService.view().leaderPeer();
+                    if (t == null) return ResponseEntity.ok(new NewPostReply(zkService.myName, leader, requestId, txn, null));
+                    var cause = t instanceof CompletionException ? t.getCause() : t;
+                    if (cause instanceof AdmissionController.OverloadedException overloaded) {
+                        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                                .header(HttpHeaders.RETRY_AFTER, Long.toString((overloaded.retryAfterMillis + 999) / 1000))
+                                .body(new NewPostReply(zkService.myName, leader, requestId, -1, cause.getMessage()));
+                    }
+                    var error = cause instanceof TimeoutException ? "timed out waiting for the leader" : cause.getMessage();
+                    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                            .body(new NewPostReply(zkService.myName, leader, requestId, -1, error));
+                });
+    }
+
+    public record Post(long txn, String user, String message, long timestamp) {}
+
+    /** stalenessMs is how long it has been since we last knew we had everything the leader had, -1 if never. */
+    public record PostsReply(String servedBy, long lastTxn, long leaderZxid, long stalenessMs, String error,
+                             List<Post> posts) {}
+
+    /** a page of posts, next is the cursor for the page after it and is null on the last page. */
+    public record PageReply(String servedBy, long lastTxn, long leaderZxid, long stalenessMs, String error,
+                            List<Post> posts, String next) {}
+
+    /** posts from fromTxn on, or the most recent ones if fromTxn is left out. */
+    @GetMapping("/posts")
+    public ResponseEntity<PostsReply> getPosts(@RequestParam(required = false) Long fromTxn,
+                                               @RequestParam(defaultValue = "100") int limit,
+                                               @RequestParam(required = false) Long minTxn,
+                                               @RequestParam(required = false) Long maxStalenessMs) throws IOException {
+        var view = zkService.view();
+        // read it once so the posts and what we report agree
+        long lastTxn = postLog.commitTxn();
+        long staleness = staleness(view);
+        String error = check(view, lastTxn, staleness, minTxn, maxStalenessMs);
+        if (error != null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body(new PostsReply(zkService.myName, lastTxn, view.leaderZxid(), staleness, error, List.of()));
+        }
+        limit = Math.clamp(limit, 1, MAX_LIMIT);
+        long from = fromTxn != null ? fromTxn : Math.max(0, lastTxn - limit + 1);
+        var posts = toPosts(recentPosts.read(from, limit, lastTxn));
+        return ResponseEntity.ok(new PostsReply(zkService.myName, lastTxn, view.leaderZxid(), staleness, null, posts));
+    }
+
+    /** user's posts, newest first. */
+    @GetMapping("/users/{user}/posts")
+    public ResponseEntity<PageReply> getUserPosts(@PathVariable String user,
+                                                  @RequestParam(required = false) String cursor,
+                                                  @RequestParam(defaultValue = "100") int limit,
+                                                  @RequestParam(required = false) Long minTxn,
+                                                  @RequestParam(required = false) Long maxStalenessMs) throws IOException {
+        return page(minTxn, maxStalenessMs, upToTxn -> postIndex.byAuthor(user, cursor, Math.clamp(limit, 1, MAX_LIMIT), upToTxn));
+    }
+
+    /** posts with fromMillis <= timestamp < toMillis, newest first. */
+    @GetMapping("/posts/by-time")
+    public ResponseEntity<PageReply> getPostsByTime(@RequestParam long fromMillis,
+                                                    @RequestParam long toMillis,
+                                                    @RequestParam(required = false) String cursor,
+                                                    @RequestParam(defaultValue = "100") int limit,
+                                                    @RequestParam(required = false) Long minTxn,
+                                                    @RequestParam(required = false) Long maxStalenessMs) throws IOException {
+        return page(minTxn, maxStalenessMs,
+                upToTxn -> postIndex.byTime(fromMillis, toMillis, cursor, Math.clamp(limit, 1, MAX_LIMIT), upToTxn));
+    }
+
+    private interface PageQuery {
+        PostIndex.Page query(long upToTxn);
+    }
+
+    private ResponseEntity<PageReply> page(Long minTxn, Long maxStalenessMs, PageQuery query) throws IOException {
+        var view = zkService.view();
+        // only what the index has got to counts as served
+        long lastTxn = Math.min(postLog.commitTxn(), postIndex.indexedTxn());
+        long staleness = staleness(view);
+        String error = check(view, lastTxn, staleness, minTxn, maxStalenessMs);
+        if (error != null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(new PageReply(zkService.myName, lastTxn,
+                    view.leaderZxid(), staleness, error, List.of(), null));
+        }
+        PostIndex.Page page;
+        try {
+            page = query.query(lastTxn);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(new PageReply(zkService.myName, lastTxn, view.leaderZxid(),
+                    staleness, e.getMessage(), List.of(), null));
+        }
+        var posts = toPosts(recentPosts.get(page.txns()));
+        return ResponseEntity.ok(new PageReply(zkService.myName, lastTxn, view.leaderZxid(), staleness, null, posts,
+                page.next()));
+    }
+
+    private long staleness(ClusterView view) {
+        return view.isLeader(zkService.myName) ? 0
+                : leaderTracker.freshAsOfMillis() == 0 ? -1 : System.currentTimeMillis() - leaderTracker.freshAsOfMillis();
+    }
+
+    /** why we can't serve a read as of lastTxn, or null if we can. */
+    private String check(ClusterView view, long lastTxn, long staleness, Long minTxn, Long maxStalenessMs) {
+        if (!view.replicas().contains(zkService.myName)) {
+            return "not a replica";
+        } else if (minTxn != null && lastTxn < minTxn) {
+            return "only have up to txn " + lastTxn;
+        } else if (maxStalenessMs != null && (staleness < 0 || staleness > maxStalenessMs)) {
+            return staleness < 0 ? "never caught up with the leader" : staleness + "ms behind the leader";
+        }
+        return null;
+    }
+
+    private static List<Post> toPosts(List<HelloHello.NewPostRequest> posts) {
+        return posts.stream().map(p -> new Post(p.getTxn(), p.getUser(), p.getMessage(), p.getTimestamp())).toList();
+    }
+}
@@ -0,0 +1,168 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Decides whether a client write gets in, so that under overload some writes are turned away quickly instead of all
+ * of them queueing until they time out.
+ * <p>
+ * Writes in flight are capped by a limit that adjusts itself AIMD style. Every write that finishes within
+ * admissionTargetMillis and found the limit at least half used adds 1/limit, so the limit grows by about one per
+ * limit's worth of writes. A write that took longer, or timed out, cuts it by admissionBackoff, at most once per
+ * admissionTargetMillis so one slow burst doesn't collapse it. On top of that we turn everything away while we aren't
+ * connected to ZooKeeper, and on the leader while the oldest uncommitted post has waited more than
+ * admissionMaxCommitLagMillis for the followers, because anything we let in then only waits behind it.
+ * <p>
+ * Writes can also back up before they get to us, in the sockets and the gRPC executor, where the limit can't see
+ * them. So a write that queued for more than admissionTargetMillis on the way to us is turned away as well, and
+ * counts as a slow write against the limit. How long it queued is up to the caller to work out on our own clock, see
+ * {@link PostForwardGrpcService}, the sender's clock can be off by more than the target.
+ * <p>
+ * A write that is turned away fails with {@link OverloadedException}, which says when it is worth trying again.
+ * Shed writes are counted in admission.shed by reason.
+ */
+@Service
+public class AdmissionController {
+    // when ZooKeeper comes back is anyone's guess, this is just so clients don't hammer us meanwhile
+    private static final long DISCONNECTED_RETRY_MILLIS = 1000;
+    private static final long MIN_RETRY_MILLIS = 10;
+    private static final long MAX_RETRY_MILLIS = 10_000;
+
+    /** thrown (via the returned future) when a write is turned away. */
+    public static class OverloadedException extends RuntimeException {
+        public final long retryAfterMillis;
+
+        OverloadedException(String reason, long retryAfterMillis) {
+            super(reason + ", retry after " + retryAfterMillis + "ms");
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    final private ZKService zkService;
+    final private PostReplicator replicator;
+    final private int minLimit;
+    final private int maxLimit;
+    final private long targetNanos;
+    final private long targetMillis;
+    final private double backoff;
+    final private long maxCommitLagMillis;
+    final private Counter shedConcurrency;
+    final private Counter shedCommitLag;
+    final private Counter shedQueued;
+    final private Counter shedZooKeeper;
+
+    // guarded by this
+    private double limit;
+    private int inFlight = 0;
+    private long averageNanos = 0;
+    private long decreasedNanos = System.nanoTime();
+
+    AdmissionController(ZKService zkService, PostReplicator replicator, MeterRegistry registry,
+                        @Value("${admissionInitialLimit:128}") int initialLimit,
+                        @Value("${admissionMinLimit:8}") int minLimit,
+                        @Value("${admissionMaxLimit:4096}") int maxLimit,
+                        @Value("${admissionTargetMillis:500}") long targetMillis,
+                        @Value("${admissionBackoff:0.9}") double backoff,
+                        @Value("${admissionMaxCommitLagMillis:2000}") long maxCommitLagMillis) {
+        this.zkService = zkService;
+        this.replicator = replicator;
+        this.limit = Math.clamp(initialLimit, minLimit, maxLimit);
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.targetNanos = targetMillis * 1_000_000;
+        this.targetMillis = targetMillis;
+        this.backoff = backoff;
+        this.maxCommitLagMillis = maxCommitLagMillis;
+        Gauge.builder("admission.limit", this, AdmissionController::limit).register(registry);
+        Gauge.builder("admission.in.flight", this, AdmissionController::inFlight).register(registry);
+        shedConcurrency = Counter.builder("admission.shed").tag("reason", "concurrency").register(registry);
+        shedCommitLag = Counter.builder("admission.shed").tag("reason", "commit_lag").register(registry);
+        shedQueued = Counter.builder("admission.shed").tag("reason", "queued").register(registry);
+        shedZooKeeper = Counter.builder("admission.shed").tag("reason", "zookeeper").register(registry);
+    }
+
+    public synchronized double limit() {
+        return limit;
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    /**
+     * starts write if we have room for it and counts it as in flight until its future completes. otherwise write
+     * isn't called and the future fails with {@link OverloadedException}. queuedMillis is how long the write waited
+     * on the way to us, or 0 if we don't know.
+     */
+    public <T> CompletableFuture<T> admit(long queuedMillis, Supplier<CompletableFuture<T>> write) {
+        if (!zkService.view().connected()) {
+            shedZooKeeper.increment();
+            return CompletableFuture.failedFuture(
+                    new OverloadedException("not connected to ZooKeeper", DISCONNECTED_RETRY_MILLIS));
+        }
+        if (zkService.isLeading()) {
+            long lag = replicator.commitLagMillis();
+            if (lag > maxCommitLagMillis) {
+                shedCommitLag.increment();
+                return CompletableFuture.failedFuture(new OverloadedException(
+                        "followers are " + lag + "ms behind", Math.clamp(lag - maxCommitLagMillis, MIN_RETRY_MILLIS, MAX_RETRY_MILLIS)));
+            }
+        }
+        if (queuedMillis > targetMillis) {
+            shedQueued.increment();
+            slow();
+            return CompletableFuture.failedFuture(new OverloadedException("waited " + queuedMillis + "ms to get in",
+                    Math.clamp(queuedMillis - targetMillis, MIN_RETRY_MILLIS, MAX_RETRY_MILLIS)));
+        }
+        long retryAfter;
+        synchronized (this) {
+            retryAfter = inFlight < (int) limit ? -1 : Math.clamp(averageNanos / 1_000_000, MIN_RETRY_MILLIS, MAX_RETRY_MILLIS);
+            if (retryAfter < 0) inFlight++;
+        }
+        if (retryAfter >= 0) {
+            shedConcurrency.increment();
+            // a slot frees up about as often as a write finishes
+            return CompletableFuture.failedFuture(new OverloadedException("too many writes in flight", retryAfter));
+        }
+        long started = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = write.get();
+        } catch (RuntimeException e) {
+            finished(System.nanoTime() - started, false);
+            throw e;
+        }
+        return future.whenComplete((v, t) -> {
+            var cause = t instanceof CompletionException ? t.getCause() : t;
+            finished(System.nanoTime() - started, cause instanceof TimeoutException);
+        });
+    }
+
+    private synchronized void finished(long nanos, boolean timedOut) {
+        boolean used = inFlight >= limit / 2;
+        inFlight--;
+        averageNanos = averageNanos == 0 ? nanos : averageNanos + (nanos - averageNanos) / 8;
+        if (timedOut || nanos > targetNanos) {
+            slow();
+        } else if (used) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    private synchronized void slow() {
+        long now = System.nanoTime();
+        if (now - decreasedNanos > targetNanos) {
+            limit = Math.max(minLimit, limit * backoff);
+            decreasedNanos = now;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import edu.sjsu.cmpe172.hellohello.PostReplicaServiceGrpc;
+import com.google.protobuf.MessageLite;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams the leader's log to a follower with syncWithLeader, starting after the follower's lastTxn.
+ * <p>
+ * Posts are read from the log in batches of at most batchBytes and only written to the stream while gRPC says the
+ * stream is ready, so at most one batch per follower sits in the leader's heap no matter how far behind the follower
+ * is. The stream keeps chasing the tail of the log while new posts arrive, and finishes once it has sent everything
+ * that is durable, so the follower can go straight back to normal replication. The returned future completes with
+ * the last txn the follower acknowledged.
+ * <p>
+ * With a throttle we also stop sending while we are ahead of its rate and pick up again on the scheduler once we
+ * aren't, so a learner catching up in the background doesn't take the leader's bandwidth from the replicas.
+ * <p>
+ * Followers that take batches get each log read as one PostBatch on syncBatches, older ones get a
+ * SyncWithLeaderRequest per post on syncWithLeader. Both carry our commitTxn as of the read.
+ */
+class CatchUpStream<T extends MessageLite> implements ClientResponseObserver<T, HelloHello.SyncWithLeaderReply> {
+    private static final Logger logger = Logger.getLogger(CatchUpStream.class.getName());
+    private static final long PROGRESS_NANOS = 5_000_000_000L;
+    // shorter waits are let run up until they add up to this, rather than scheduling one per post
+    private static final long MIN_PAUSE_NANOS = 10_000_000L;
+    final private String name;
+    final private PostLog postLog;
+    final private long batchBytes;
+    final private Framer<T> framer;
+    final private Throttle throttle;
+    final private ScheduledExecutorService scheduler;
+    final private CompletableFuture<Long> done = new CompletableFuture<>();
+    final private ArrayDeque<Frame<T>> batch = new ArrayDeque<>();
+    private ClientCallStreamObserver<T> requests;
+    // guarded by this
+    private long nextTxn;
+    private long posts = 0;
+    private long bytes = 0;
+    private boolean finished = false;
+    private boolean paused = false;
+    final private long startNanos = System.nanoTime();
+    private long progressNanos = startNanos;
+
+    /** a message for the stream and the last txn in it. */
+    private record Frame<T>(T message, long lastTxn) {}
+
+    /** turns posts read from the log into messages for the stream. */
+    private interface Framer<T> {
+        List<Frame<T>> frames(List<HelloHello.NewPostRequest> posts) throws IOException;
+    }
+
+    private CatchUpStream(String name, PostLog postLog, long fromTxn, long batchBytes, Framer<T> framer,
+                          Throttle throttle, ScheduledExecutorService scheduler) {
+        this.name = name;
+        this.postLog = postLog;
+        this.nextTxn = fromTxn;
+        this.batchBytes = batchBytes;
+        this.framer = framer;
+        this.throttle = throttle;
+        this.scheduler = scheduler;
+    }
+
+    /** posts keep the zxid of the leader that wrote them, the stream is fenced with leaderZxid as senderZxid. */
+    static CompletableFuture<Long> start(String name, PostReplicaServiceGrpc.PostReplicaServiceStub stub, PostLog postLog,
+                                         long fromTxn, long leaderZxid, long batchBytes,
+                                         Throttle throttle, ScheduledExecutorService scheduler) {
+        var stream = new CatchUpStream<HelloHello.SyncWithLeaderRequest>(name, postLog, fromTxn, batchBytes,
+                posts -> posts.stream().map(post -> new Frame<>(HelloHello.SyncWithLeaderRequest.newBuilder()
+                        .setMessage(post.getMessage())
+                        .setAuthor(post.getUser())
+                        .setTimestamp(post.getTimestamp())
+                        .setTxn(post.getTxn())
+                        .setLeaderZxid(post.getLeaderZxid())
+                        .setRequestId(post.getRequestId())
+                        .setSenderZxid(leaderZxid)
+                        .setCommitTxn(postLog.commitTxn())
+                        .build(), post.getTxn())).toList(),
+                throttle, scheduler);
+        logger.log(Level.INFO, "Catching up " + name + " from txn " + fromTxn + " to " + postLog.lastTxn());
+        stub.syncWithLeader(stream);
+        return stream.done;
+    }
+
+    /** start with PostBatches, compressed with codec (null for none). posts keep the zxid of the leader that wrote them. */
+    static CompletableFuture<Long> startBatched(String name, PostReplicaServiceGrpc.PostReplicaServiceStub stub,
+                                                PostLog postLog, PostBatches batches, String codec,
+                                                long fromTxn, long leaderZxid, long batchBytes,
+                                                Throttle throttle, ScheduledExecutorService scheduler) {
+        var stream = new CatchUpStream<HelloHello.PostBatch>(name, postLog, fromTxn, batchBytes,
+                posts -> List.of(new Frame<>(batches.encode(posts, leaderZxid, postLog.commitTxn(), codec), posts.getLast().getTxn())),
+                throttle, scheduler);
+        logger.log(Level.INFO, "Catching up " + name + " from txn " + fromTxn + " to " + postLog.lastTxn()
+                + " in batches" + (codec != null ? " with " + codec : ""));
+        stub.syncBatches(stream);
+        return stream.done;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<T> requests) {
+        this.requests = requests;
+        requests.setOnReadyHandler(this::drain);
+    }
+
+    /** called by grpc whenever the stream can take more, sends until it can't or we run out of log. */
+    private synchronized void drain() {
+        try {
+            while (!finished && !paused && requests.isReady()) {
+                if (batch.isEmpty()) {
+                    var read = postLog.read(nextTxn, Integer.MAX_VALUE, batchBytes);
+                    if (read.isEmpty()) {
+                        // we have sent everything that is durable, the rest goes through the normal pipe
+                        finished = true;
+                        requests.onCompleted();
+                        return;
+                    }
+                    batch.addAll(framer.frames(read));
+                }
+                var frame = batch.poll();
+                requests.onNext(frame.message());
+                posts += frame.lastTxn() + 1 - nextTxn;
+                nextTxn = frame.lastTxn() + 1;
+                int size = frame.message().getSerializedSize();
+                bytes += size;
+                long wait = throttle.sent(size);
+                if (wait > MIN_PAUSE_NANOS) {
+                    paused = true;
+                    scheduler.schedule(this::resume, wait, TimeUnit.NANOSECONDS);
+                }
+            }
+            long now = System.nanoTime();
+            if (now - progressNanos > PROGRESS_NANOS) {
+                progressNanos = now;
+                logger.log(Level.INFO, "Catching up " + name + ": at txn " + nextTxn + ", " + rate(now));
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to read the log to catch up " + name, e);
+            finished = true;
+            requests.onError(e);
+        }
+    }
+
+    private void resume() {
+        synchronized (this) {
+            paused = false;
+        }
+        drain();
+    }
+
+    private String rate(long now) {
+        double seconds = Math.max(now - startNanos, 1) / 1e9;
+        return String.format("%d posts, %d bytes in %.1fs (%.0f bytes/s)", posts, bytes, seconds, bytes / seconds);
+    }
+
+    @Override
+    public void onNext(HelloHello.SyncWithLeaderReply reply) {
+        long sent;
+        synchronized (this) {
+            finished = true;
+            sent = nextTxn - 1;
+        }
+        if (reply.getStatus() == HelloHello.SyncWithLeaderStatus.SYNC_SUCCESS) {
+            logger.log(Level.INFO, "Caught up " + name + " to txn " + sent + ": " + rate(System.nanoTime()));
+            done.complete(sent);
+        } else {
+            done.completeExceptionally(new IllegalStateException(name + " rejected catch up: " + reply.getStatus()));
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        synchronized (this) {
+            finished = true;
+        }
+        done.completeExceptionally(t);
+    }
+
+    @Override
+    public void onCompleted() {
+        // onNext already completed done, this is just in case the follower hung up without replying
+        done.completeExceptionally(new IllegalStateException(name + " closed the catch up stream without a reply"));
+    }
+}
@@ -0,0 +1,57 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything we know about the cluster from ZooKeeper, as one immutable value.
+ * <p>
+ * ZKService replaces the whole view whenever something changes, so a reader that grabs the view once sees a
+ * leaderPeer and leaderZxid (or replicas and replicasVersion) that belong together. version goes up by one with
+ * every change.
+ * <p>
+ * learners are peers on their way into /replicas: the leader replicates to them, but they don't count towards a
+ * majority and can't lead until they have caught up and been moved over.
+ */
+public record ClusterView(long version, boolean connected, String leaderPeer, long leaderZxid, boolean watching,
+                          List<String> peers, Map<String, ZKService.PeerInfo> peerInfos,
+                          List<String> replicas, int replicasVersion, List<String> learners, int learnersVersion) {
+
+    static final ClusterView INITIAL = new ClusterView(0, false, null, -1, false, List.of(), Map.of(), List.of(), -1, List.of(), -1);
+
+    public boolean isLeader(String name) {
+        return name.equals(leaderPeer);
+    }
+
+    ClusterView withConnected(boolean connected) {
+        return new ClusterView(version, connected, leaderPeer, leaderZxid, watching, peers, peerInfos, replicas, replicasVersion, learners, learnersVersion);
+    }
+
+    ClusterView withLeader(String leaderPeer, long leaderZxid) {
+        return new ClusterView(version, connected, leaderPeer, leaderZxid, watching, peers, peerInfos, replicas, replicasVersion, learners, learnersVersion);
+    }
+
+    ClusterView withWatching(boolean watching) {
+        return new ClusterView(version, connected, leaderPeer, leaderZxid, watching, peers, peerInfos, replicas, replicasVersion, learners, learnersVersion);
+    }
+
+    ClusterView withPeers(List<String> peers) {
+        return new ClusterView(version, connected, leaderPeer, leaderZxid, watching, peers, peerInfos, replicas, replicasVersion, learners, learnersVersion);
+    }
+
+    ClusterView withPeerInfos(Map<String, ZKService.PeerInfo> peerInfos) {
+        return new ClusterView(version, connected, leaderPeer, leaderZxid, watching, peers, peerInfos, replicas, replicasVersion, learners, learnersVersion);
+    }
+
+    ClusterView withReplicas(List<String> replicas, int replicasVersion) {
+        return new ClusterView(version, connected, leaderPeer, leaderZxid, watching, peers, peerInfos, replicas, replicasVersion, learners, learnersVersion);
+    }
+
+    ClusterView withLearners(List<String> learners, int learnersVersion) {
+        return new ClusterView(version, connected, leaderPeer, leaderZxid, watching, peers, peerInfos, replicas, replicasVersion, learners, learnersVersion);
+    }
+
+    ClusterView nextVersion() {
+        return new ClusterView(version + 1, connected, leaderPeer, leaderZxid, watching, peers, peerInfos, replicas, replicasVersion, learners, learnersVersion);
+    }
+}
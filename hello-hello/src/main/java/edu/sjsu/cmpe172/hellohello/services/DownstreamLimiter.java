@@ -0,0 +1,93 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps how many calls we have outstanding to each downstream: ZooKeeper, and every peer on its own.
+ * <p>
+ * On a platform thread pool the pool size limited this by accident. On virtual threads a parked handler costs next
+ * to nothing, so a burst of requests could otherwise pile thousands of calls onto one slow peer. A call that can't
+ * get a permit within downstreamWaitMillis is rejected rather than queued, so a slow downstream shows up as quick
+ * failures (counted in downstream.rejected) instead of a growing backlog.
+ */
+@Service
+public class DownstreamLimiter {
+    public static final String ZOOKEEPER = "zookeeper";
+    final private MeterRegistry registry;
+    final private int zkPermits;
+    final private int peerPermits;
+    final private long waitMillis;
+    final private ConcurrentHashMap<String, Limit> limits = new ConcurrentHashMap<>();
+
+    private record Limit(Semaphore permits, Counter rejected) {}
+
+    public DownstreamLimiter(MeterRegistry registry,
+                             @Value("${zkMaxConcurrency:64}") int zkPermits,
+                             @Value("${peerMaxConcurrency:128}") int peerPermits,
+                             @Value("${downstreamWaitMillis:100}") long waitMillis) {
+        this.registry = registry;
+        this.zkPermits = zkPermits;
+        this.peerPermits = peerPermits;
+        this.waitMillis = waitMillis;
+    }
+
+    public static String peer(String name) {
+        return "peer:" + name;
+    }
+
+    private Limit limit(String downstream) {
+        return limits.computeIfAbsent(downstream, d -> {
+            var permits = new Semaphore(d.equals(ZOOKEEPER) ? zkPermits : peerPermits);
+            int max = permits.availablePermits();
+            Gauge.builder("downstream.in.flight", permits, p -> max - p.availablePermits())
+                    .tag("downstream", d).register(registry);
+            return new Limit(permits, Counter.builder("downstream.rejected").tag("downstream", d).register(registry));
+        });
+    }
+
+    /** takes a permit for downstream, waiting up to downstreamWaitMillis. false means the call shouldn't be made. */
+    public boolean acquire(String downstream) throws InterruptedException {
+        var limit = limit(downstream);
+        if (limit.permits().tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) return true;
+        limit.rejected().increment();
+        return false;
+    }
+
+    /**
+     * takes a permit for downstream only if one is free right now, for callers that are about to make calls to
+     * several downstreams and shouldn't wait on each in turn.
+     */
+    public boolean tryAcquire(String downstream) {
+        var limit = limit(downstream);
+        if (limit.permits().tryAcquire()) return true;
+        limit.rejected().increment();
+        return false;
+    }
+
+    /** hands back a permit taken with {@link #acquire} or {@link #tryAcquire}, once the call is done. */
+    public void release(String downstream) {
+        limit(downstream).permits().release();
+    }
+
+    /** makes a blocking call to downstream while holding a permit. */
+    public <T> T call(String downstream, Callable<T> call) throws Exception {
+        if (!acquire(downstream)) {
+            throw new RejectedExecutionException("too many calls outstanding to " + downstream);
+        }
+        try {
+            return call.call();
+        } finally {
+            release(downstream);
+        }
+    }
+}
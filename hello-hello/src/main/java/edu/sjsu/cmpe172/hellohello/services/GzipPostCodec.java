@@ -0,0 +1,34 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** the codec every node has. */
+@Component
+public class GzipPostCodec implements PostCodec {
+    @Override
+    public String name() {
+        return "gzip";
+    }
+
+    @Override
+    public byte[] compress(byte[] data) throws IOException {
+        var out = new ByteArrayOutputStream(data.length / 2);
+        try (var gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public byte[] decompress(byte[] data) throws IOException {
+        try (var gzip = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return gzip.readAllBytes();
+        }
+    }
+}
@@ -2,26 +2,333 @@ package edu.sjsu.cmpe172.hellohello.services;
 
 import edu.sjsu.cmpe172.hellohello.HelloHello;
 import edu.sjsu.cmpe172.hellohello.PostReplicaServiceGrpc;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import net.devh.boot.grpc.server.service.GrpcService;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 @GrpcService
 public class HelloHelloGrpcService extends PostReplicaServiceGrpc.PostReplicaServiceImplBase {
+    private static final Logger logger = Logger.getLogger(HelloHelloGrpcService.class.getName());
+    final private ZKService zkService;
+    final private PostLog postLog;
+    final private PostBatches postBatches;
+    final private int syncWindow;
+
+    public HelloHelloGrpcService(ZKService zkService, PostLog postLog, PostBatches postBatches,
+                                 @Value("${syncWindow:256}") int syncWindow) {
+        this.zkService = zkService;
+        this.postLog = postLog;
+        this.postBatches = postBatches;
+        this.syncWindow = syncWindow;
+    }
+
     @Override
     public void newPost(HelloHello.NewPostRequest request, StreamObserver<HelloHello.NewPostReply> responseObserver) {
-        System.out.println("Received newPost request: " + request);
-        responseObserver.onNext(HelloHello.NewPostReply.newBuilder().setStatus(HelloHello.AddPostStatus.ADD_FAILED).build());
+        long sender = request.hasSenderZxid() ? request.getSenderZxid() : request.getLeaderZxid();
+        if (sender != zkService.view().leaderZxid()) {
+            reply(responseObserver, HelloHello.AddPostStatus.ADD_NOT_MY_LEADER, postLog.lastTxn());
+            return;
+        }
+        // the reply is sent from the log writer once the post is durable, so we don't tie up a grpc thread
+        postLog.append(request.toBuilder().clearSenderZxid().clearCommitTxn().build()).whenComplete((lastTxn, t) -> {
+            if (t == null) {
+                if (request.hasCommitTxn()) committed(request.getCommitTxn(), request.getTxn());
+                reply(responseObserver, HelloHello.AddPostStatus.ADD_SUCCESS, lastTxn);
+                return;
+            }
+            var cause = t instanceof CompletionException ? t.getCause() : t;
+            if (cause instanceof PostLog.MissingTxnException missing) {
+                reply(responseObserver, HelloHello.AddPostStatus.ADD_MISSING_TXN, missing.lastTxn);
+            } else {
+                logger.log(Level.SEVERE, "Failed to append txn " + request.getTxn(), cause);
+                reply(responseObserver, HelloHello.AddPostStatus.ADD_FAILED, postLog.lastTxn());
+            }
+        });
+    }
+
+    /** newPost for every post in the batch, answered once they are all durable or with the first that failed. */
+    @Override
+    public void newPosts(HelloHello.PostBatch request, StreamObserver<HelloHello.NewPostReply> responseObserver) {
+        if (request.getLeaderZxid() != zkService.view().leaderZxid()) {
+            reply(responseObserver, HelloHello.AddPostStatus.ADD_NOT_MY_LEADER, postLog.lastTxn());
+            return;
+        }
+        List<HelloHello.NewPostRequest> posts;
+        try {
+            posts = postBatches.decode(request);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to decode a batch from txn " + request.getBaseTxn(), e);
+            reply(responseObserver, HelloHello.AddPostStatus.ADD_FAILED, postLog.lastTxn());
+            return;
+        }
+        if (posts.isEmpty()) {
+            // just the leader's commitTxn, for everything up to where it knows we have its posts
+            if (request.hasCommitTxn()) committed(request.getCommitTxn(), request.getBaseTxn() - 1);
+            reply(responseObserver, HelloHello.AddPostStatus.ADD_SUCCESS, postLog.lastTxn());
+            return;
+        }
+        var appended = posts.stream().map(postLog::append).toList();
+        CompletableFuture.allOf(appended.toArray(CompletableFuture[]::new)).whenComplete((v, ignored) -> {
+            for (int i = 0; i < appended.size(); i++) {
+                if (!appended.get(i).isCompletedExceptionally()) continue;
+                var t = appended.get(i).exceptionNow();
+                if (t instanceof PostLog.MissingTxnException missing) {
+                    reply(responseObserver, HelloHello.AddPostStatus.ADD_MISSING_TXN, missing.lastTxn);
+                } else {
+                    logger.log(Level.SEVERE, "Failed to append txn " + posts.get(i).getTxn(), t);
+                    reply(responseObserver, HelloHello.AddPostStatus.ADD_FAILED, postLog.lastTxn());
+                }
+                return;
+            }
+            if (request.hasCommitTxn()) committed(request.getCommitTxn(), posts.getLast().getTxn());
+            reply(responseObserver, HelloHello.AddPostStatus.ADD_SUCCESS, appended.getLast().join());
+        });
+    }
+
+    /**
+     * the leader has committed up to commitTxn and we now have its posts up to upToTxn, the ones before that were
+     * checked when it probed us, so we have committed up to the lower of the two.
+     */
+    private void committed(long commitTxn, long upToTxn) {
+        postLog.committed(Math.min(commitTxn, upToTxn));
+    }
+
+    private static void reply(StreamObserver<HelloHello.NewPostReply> responseObserver, HelloHello.AddPostStatus status, long lastTxn) {
+        responseObserver.onNext(HelloHello.NewPostReply.newBuilder().setStatus(status).setLastVersion(lastTxn).build());
         responseObserver.onCompleted();
     }
 
+    /** lastTxn, and which post we have there (or at the txn asked about) so the leader can check it is the same. */
     @Override
     public void getLastTxn(HelloHello.GetLastTxnRequest request, StreamObserver<HelloHello.GetLastTxnReply> responseObserver) {
-        responseObserver.onNext(HelloHello.GetLastTxnReply.newBuilder().setLastTxn(-1).build());
+        long lastTxn = postLog.lastTxn();
+        var reply = HelloHello.GetLastTxnReply.newBuilder()
+                .setLastTxn(lastTxn)
+                .setBatches(true)
+                .addAllCodecs(postBatches.codecs());
+        long at = request.hasTxn() ? Math.min(request.getTxn(), lastTxn) : lastTxn;
+        if (at >= 0) {
+            try {
+                var posts = postLog.read(at, 1, Long.MAX_VALUE);
+                if (!posts.isEmpty()) {
+                    var post = posts.getFirst();
+                    reply.setPost(HelloHello.PostId.newBuilder()
+                            .setTxn(post.getTxn())
+                            .setLeaderZxid(post.getLeaderZxid())
+                            .setRequestId(post.getRequestId()));
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to read txn " + at + " for getLastTxn", e);
+            }
+        }
+        responseObserver.onNext(reply.build());
         responseObserver.onCompleted();
     }
 
+    @Override
+    public void truncatePosts(HelloHello.TruncatePostsRequest request, StreamObserver<HelloHello.NewPostReply> responseObserver) {
+        if (request.getLeaderZxid() != zkService.view().leaderZxid()) {
+            reply(responseObserver, HelloHello.AddPostStatus.ADD_NOT_MY_LEADER, postLog.lastTxn());
+            return;
+        }
+        postLog.truncateAfter(request.getAfterTxn()).whenComplete((lastTxn, t) -> {
+            if (t == null) {
+                reply(responseObserver, HelloHello.AddPostStatus.ADD_SUCCESS, lastTxn);
+            } else {
+                logger.log(Level.SEVERE, "Failed to truncate the log after txn " + request.getAfterTxn(), t);
+                reply(responseObserver, HelloHello.AddPostStatus.ADD_FAILED, postLog.lastTxn());
+            }
+        });
+    }
+
     @Override
     public StreamObserver<HelloHello.SyncWithLeaderRequest> syncWithLeader(StreamObserver<HelloHello.SyncWithLeaderReply> responseObserver) {
-        return super.syncWithLeader(responseObserver);
+        return sync(responseObserver, syncWindow,
+                request -> request.hasSenderZxid() ? request.getSenderZxid() : request.getLeaderZxid(),
+                request -> request.hasCommitTxn() ? request.getCommitTxn() : -1, request -> List.of(
+                HelloHello.NewPostRequest.newBuilder()
+                        .setMessage(request.getMessage())
+                        .setUser(request.getAuthor())
+                        .setTimestamp(request.getTimestamp())
+                        .setTxn(request.getTxn())
+                        .setLeaderZxid(request.getLeaderZxid())
+                        .setRequestId(request.getRequestId())
+                        .build()));
+    }
+
+    /** syncWithLeader with a batch in every message. every batch already fills a log read, so we take two at a time. */
+    @Override
+    public StreamObserver<HelloHello.PostBatch> syncBatches(StreamObserver<HelloHello.SyncWithLeaderReply> responseObserver) {
+        return sync(responseObserver, 2, HelloHello.PostBatch::getLeaderZxid,
+                batch -> batch.hasCommitTxn() ? batch.getCommitTxn() : -1, postBatches::decode);
+    }
+
+    private interface Unpacker<T> {
+        List<HelloHello.NewPostRequest> posts(T request) throws IOException;
+    }
+
+    private <T> StreamObserver<T> sync(StreamObserver<HelloHello.SyncWithLeaderReply> responseObserver, int window,
+                                       ToLongFunction<T> leaderZxid, ToLongFunction<T> commitTxn,
+                                       Unpacker<T> unpacker) {
+        // we ask for more only as what we have becomes durable, so the leader can't outrun our disk
+        var replies = (ServerCallStreamObserver<HelloHello.SyncWithLeaderReply>) responseObserver;
+        replies.disableAutoRequest();
+        replies.request(window);
+        var replied = new AtomicBoolean();
+        Consumer<HelloHello.SyncWithLeaderStatus> reply = status -> {
+            if (replied.compareAndSet(false, true)) {
+                replies.onNext(HelloHello.SyncWithLeaderReply.newBuilder().setStatus(status).build());
+                replies.onCompleted();
+            }
+        };
+        return new StreamObserver<>() {
+            CompletableFuture<Long> last = CompletableFuture.completedFuture(postLog.lastTxn());
+
+            @Override
+            public void onNext(T request) {
+                if (replied.get()) return;
+                if (leaderZxid.applyAsLong(request) != zkService.view().leaderZxid()) {
+                    reply.accept(HelloHello.SyncWithLeaderStatus.SYNC_NOT_MY_LEADER);
+                    return;
+                }
+                List<HelloHello.NewPostRequest> posts;
+                try {
+                    posts = unpacker.posts(request);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Failed to decode posts while syncing", e);
+                    reply.accept(HelloHello.SyncWithLeaderStatus.SYNC_FAILED);
+                    return;
+                }
+                if (posts.isEmpty()) {
+                    replies.request(1);
+                    return;
+                }
+                // they become durable in order, so the last one tells us about all of them
+                posts.forEach(post -> last = postLog.append(post));
+                long txn = posts.getLast().getTxn();
+                long commit = commitTxn.applyAsLong(request);
+                last.whenComplete((lastTxn, t) -> {
+                    if (t == null) {
+                        committed(commit, txn);
+                        replies.request(1);
+                        return;
+                    }
+                    var cause = t instanceof CompletionException ? t.getCause() : t;
+                    if (cause instanceof PostLog.MissingTxnException) {
+                        reply.accept(HelloHello.SyncWithLeaderStatus.SYNC_MISSING_TXN);
+                    } else {
+                        logger.log(Level.SEVERE, "Failed to append txn " + txn + " while syncing", cause);
+                        reply.accept(HelloHello.SyncWithLeaderStatus.SYNC_FAILED);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.log(Level.WARNING, "Sync with leader aborted", t);
+            }
+
+            @Override
+            public void onCompleted() {
+                // posts become durable in order, so once the last one is durable they all are
+                last.whenComplete((lastTxn, t) -> reply.accept(t == null
+                        ? HelloHello.SyncWithLeaderStatus.SYNC_SUCCESS : HelloHello.SyncWithLeaderStatus.SYNC_FAILED));
+            }
+        };
+    }
+
+    @Override
+    public StreamObserver<HelloHello.SnapshotChunk> installSnapshot(StreamObserver<HelloHello.InstallSnapshotReply> responseObserver) {
+        var replied = new AtomicBoolean();
+        Consumer<HelloHello.SyncWithLeaderStatus> reply = status -> {
+            if (replied.compareAndSet(false, true)) {
+                responseObserver.onNext(HelloHello.InstallSnapshotReply.newBuilder()
+                        .setStatus(status).setLastTxn(postLog.lastTxn()).build());
+                responseObserver.onCompleted();
+            }
+        };
+        // chunks are written as they arrive, grpc doesn't hand us the next one until onNext returns
+        return new StreamObserver<>() {
+            Path tmp;
+            FileChannel file;
+
+            @Override
+            public void onNext(HelloHello.SnapshotChunk chunk) {
+                if (replied.get()) return;
+                try {
+                    if (file == null) {
+                        if (chunk.getLeaderZxid() != zkService.view().leaderZxid()) {
+                            reply.accept(HelloHello.SyncWithLeaderStatus.SYNC_NOT_MY_LEADER);
+                            return;
+                        }
+                        logger.log(Level.INFO, "Receiving snapshot with lastTxn " + chunk.getLastTxn() + " from the leader");
+                        tmp = postLog.newSnapshotFile();
+                        file = FileChannel.open(tmp, StandardOpenOption.WRITE);
+                    }
+                    var data = chunk.getData().asReadOnlyByteBuffer();
+                    while (data.hasRemaining()) file.write(data);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Failed to write snapshot " + tmp, e);
+                    abandon();
+                    reply.accept(HelloHello.SyncWithLeaderStatus.SYNC_FAILED);
+                }
+            }
+
+            private void abandon() {
+                try {
+                    if (file != null) file.close();
+                    if (tmp != null) Files.deleteIfExists(tmp);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to clean up snapshot " + tmp, e);
+                }
+                file = null;
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.log(Level.WARNING, "Snapshot from the leader aborted", t);
+                abandon();
+            }
+
+            @Override
+            public void onCompleted() {
+                if (replied.get()) {
+                    abandon();
+                    return;
+                }
+                if (file == null) {
+                    reply.accept(HelloHello.SyncWithLeaderStatus.SYNC_FAILED);
+                    return;
+                }
+                try {
+                    file.force(true);
+                    file.close();
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Failed to write snapshot " + tmp, e);
+                    abandon();
+                    reply.accept(HelloHello.SyncWithLeaderStatus.SYNC_FAILED);
+                    return;
+                }
+                postLog.installSnapshot(tmp).whenComplete((lastTxn, t) -> {
+                    if (t != null) logger.log(Level.SEVERE, "Failed to install snapshot from the leader", t);
+                    reply.accept(t == null ? HelloHello.SyncWithLeaderStatus.SYNC_SUCCESS : HelloHello.SyncWithLeaderStatus.SYNC_FAILED);
+                });
+            }
+        };
     }
 }
@@ -1,7 +1,5 @@
 package edu.sjsu.cmpe172.hellohello.services;
 
-import edu.sjsu.cmpe172.hellohello.PostReplicaServiceGrpc;
-import io.grpc.ManagedChannelBuilder;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.ZooDefs;
@@ -9,6 +7,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
 import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -18,12 +17,17 @@ public class InitializerCommandRunner implements CommandLineRunner {
     private static final Logger logger = Logger.getLogger(InitializerCommandRunner.class.getName());
     private final boolean initialize;
     private final String breakTheWorld;
+    private final long lastTxnTimeoutSeconds;
     private final ZKService zkService;
+    private final PeerFanout peerFanout;
 
-    public InitializerCommandRunner(@Value("${initialize:false}") boolean initialize, @Value("@{breakTheWorld:}") String breakTheWorld, ZKService zkService) {
+    public InitializerCommandRunner(@Value("${initialize:false}") boolean initialize, @Value("@{breakTheWorld:}") String breakTheWorld,
+                                    @Value("${initializeTimeoutSeconds:5}") long lastTxnTimeoutSeconds, ZKService zkService, PeerFanout peerFanout) {
         this.initialize = initialize;
         this.breakTheWorld = breakTheWorld;
+        this.lastTxnTimeoutSeconds = lastTxnTimeoutSeconds;
         this.zkService = zkService;
+        this.peerFanout = peerFanout;
     }
 
     @Override
@@ -33,23 +37,12 @@ public class InitializerCommandRunner implements CommandLineRunner {
         String mostUpToDatePeer = null;
         long mostUpToDateTxn = Long.MIN_VALUE;
 
-        for (var peer : zkService.peers) {
-            var data = zkService.zk.getData("/peers/" + peer, false, null);
-            // the data will have host:port first, but there might be other info after a whitespace
-            var hostPort = new String(data).split("\\s")[0];
-            // make a gRPC call to getLastTxn
-            var channel = ManagedChannelBuilder.forTarget(hostPort).usePlaintext().build();
-            var stub = PostReplicaServiceGrpc.newBlockingStub(channel);
-            try {
-                var response = stub.getLastTxn(edu.sjsu.cmpe172.hellohello.HelloHello.GetLastTxnRequest.newBuilder().build());
-                logger.log(Level.INFO, "Peer " + peer + " at " + hostPort + " has lastTxn: " + response.getLastTxn());
-                if (response.getLastTxn() > mostUpToDateTxn) {
-                    mostUpToDateTxn = response.getLastTxn();
-                    mostUpToDatePeer = peer;
-                }
-            } catch (Exception e) {
-                logger.log(Level.WARNING, "Failed to get lastTxn from peer " + peer + " at " + hostPort, e);
-                continue;
+        for (var peer : peerFanout.lastTxns(Duration.ofSeconds(lastTxnTimeoutSeconds)).join()) {
+            if (peer.lastTxn() == PeerFanout.UNKNOWN_TXN) continue;
+            logger.log(Level.INFO, "Peer " + peer.name() + " at " + peer.hostPort() + " has lastTxn: " + peer.lastTxn());
+            if (peer.lastTxn() > mostUpToDateTxn) {
+                mostUpToDateTxn = peer.lastTxn();
+                mostUpToDatePeer = peer.name();
             }
         }
         try {
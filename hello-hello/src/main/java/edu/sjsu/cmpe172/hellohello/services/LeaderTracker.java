@@ -0,0 +1,254 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import edu.sjsu.cmpe172.hellohello.PostReplicaServiceGrpc;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a replica that isn't leading ready to take over.
+ * <p>
+ * Every standbyPollMillis a standby asks the leader for its lastTxn, so it always knows how far behind it is, and
+ * pokes its channels to the other replicas so they are connected before it needs them to replicate.
+ * <p>
+ * What we know is published as replication.local.lag.txns and replication.local.staleness.ms, the time since we
+ * last knew we had committed everything the leader had. Reads only go up to our commitTxn, so that is what counts.
+ * <p>
+ * When the election gets to us we only take over once a majority of the replicas, counting us, have answered and none
+ * of them has a log further along than ours, see {@link #readyToLead}. Anything committed is on a majority, so it is
+ * on one of those and therefore on us too.
+ * <p>
+ * Logs are told apart by the {@link HelloHello.PostId} getLastTxn answers with, the txn, the leader that wrote the
+ * post and its requestId, the same as the replicator's probe, so a log that has gone its own way isn't taken for the
+ * leader's because it is just as long.
+ */
+@Service
+public class LeaderTracker {
+    private static final Logger logger = Logger.getLogger(LeaderTracker.class.getName());
+    // answers we remember while behind, a follower more than this many polls behind drops the oldest
+    private static final int MAX_BEHIND = 256;
+    final private ZKService zkService;
+    final private PeerChannels peerChannels;
+    final private PostLog postLog;
+    final private long timeoutMillis;
+    final private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("leader-tracker").daemon().factory());
+    private volatile long leaderLastTxn = -1;
+    // the last time we knew we had everything the leader had
+    private volatile long freshAsOfMillis = 0;
+    // guarded by this. the leader's lastTxn, the post it had there and when we asked for it, oldest first, for the
+    // answers we hadn't caught up with when they came back
+    private final ArrayDeque<Asked> behind = new ArrayDeque<>();
+
+    // post is null if the leader didn't say which post it had
+    private record Asked(long leaderTxn, HelloHello.PostId post, long askedMillis) {}
+
+    LeaderTracker(ZKService zkService, PeerChannels peerChannels, PostLog postLog,
+                  MeterRegistry registry, @Value("${standbyPollMillis:200}") long pollMillis) {
+        this.zkService = zkService;
+        this.peerChannels = peerChannels;
+        this.postLog = postLog;
+        this.timeoutMillis = Math.max(pollMillis * 5, 1000);
+        Gauge.builder("replication.local.lag.txns", this, LeaderTracker::lag).register(registry);
+        Gauge.builder("replication.local.staleness.ms", this, tracker -> tracker.freshAsOfMillis() == 0
+                ? Double.NaN : System.currentTimeMillis() - tracker.freshAsOfMillis()).register(registry);
+        scheduler.scheduleWithFixedDelay(this::poll, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+        zkService.checkBeforeLeading(this::readyToLead);
+    }
+
+    /**
+     * whether no replica in a majority, counting us, has a log further along than ours. logs are compared by the
+     * leader that wrote their last post and then by lastTxn, so the posts of a leader that went away before they
+     * committed don't count for more than those of the leader after it. older replicas don't say who wrote their
+     * last post, for them we only have lastTxn to go on.
+     */
+    CompletableFuture<Boolean> readyToLead() {
+        var view = zkService.view();
+        long ourTxn = postLog.lastTxn();
+        HelloHello.PostId ours;
+        try {
+            ours = postId(ourTxn);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        long ourZxid = ours == null ? 0 : ours.getLeaderZxid();
+        var others = view.replicas().stream().filter(r -> !r.equals(zkService.myName)).toList();
+        // answers we need for a majority, we are the first
+        int needed = view.replicas().size() / 2;
+        var ready = new CompletableFuture<Boolean>();
+        var answered = new AtomicInteger();
+        var failed = new AtomicInteger();
+        if (needed <= 0) ready.complete(true);
+        for (var replica : others) {
+            var info = view.peerInfos().get(replica);
+            if (info == null) {
+                if (failed.incrementAndGet() > others.size() - needed) ready.complete(false);
+                continue;
+            }
+            PostReplicaServiceGrpc.newStub(peerChannels.forPeer(replica, info.hostPort()))
+                    .withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS)
+                    .getLastTxn(HelloHello.GetLastTxnRequest.getDefaultInstance(), new StreamObserver<>() {
+                        @Override
+                        public void onNext(HelloHello.GetLastTxnReply reply) {
+                            long theirZxid = reply.hasPost() ? reply.getPost().getLeaderZxid() : ourZxid;
+                            boolean ahead = theirZxid != ourZxid ? theirZxid > ourZxid : reply.getLastTxn() > ourTxn;
+                            if (ahead) {
+                                logger.log(Level.INFO, replica + " has lastTxn " + reply.getLastTxn() + " from leader "
+                                        + theirZxid + ", further along than our " + ourTxn + " from " + ourZxid);
+                                ready.complete(false);
+                            } else if (reply.hasPost() && ours != null && reply.getLastTxn() == ourTxn
+                                    && !ours.equals(reply.getPost())) {
+                                // the same leader can't have written two posts at one txn, so one of us has a log
+                                // that went wrong. we can't tell which, so it doesn't count for us
+                                logger.log(Level.WARNING, replica + " has " + reply.getPost() + " at txn " + ourTxn
+                                        + " where we have " + ours);
+                                if (failed.incrementAndGet() > others.size() - needed) ready.complete(false);
+                            } else if (answered.incrementAndGet() >= needed) {
+                                ready.complete(true);
+                            }
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                            logger.log(Level.FINE, "Failed to get lastTxn from " + replica, t);
+                            if (failed.incrementAndGet() > others.size() - needed) ready.complete(false);
+                        }
+
+                        @Override
+                        public void onCompleted() {
+                        }
+                    });
+        }
+        return ready.completeOnTimeout(false, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** the id of the post we have at txn, null if we don't have one. */
+    private HelloHello.PostId postId(long txn) throws IOException {
+        var posts = txn < 0 ? List.<HelloHello.NewPostRequest>of() : postLog.read(txn, 1, Long.MAX_VALUE);
+        if (posts.isEmpty()) return null;
+        var post = posts.getFirst();
+        return HelloHello.PostId.newBuilder()
+                .setTxn(post.getTxn())
+                .setLeaderZxid(post.getLeaderZxid())
+                .setRequestId(post.getRequestId())
+                .build();
+    }
+
+    private void poll() {
+        var view = zkService.view();
+        if (!view.replicas().contains(zkService.myName)) return;
+        if (view.isLeader(zkService.myName)) {
+            leaderLastTxn = postLog.lastTxn();
+            freshAsOfMillis = System.currentTimeMillis();
+            synchronized (this) {
+                behind.clear();
+            }
+            return;
+        }
+        for (var replica : view.replicas()) {
+            var info = view.peerInfos().get(replica);
+            if (info == null || replica.equals(zkService.myName)) continue;
+            // asking for the state with true makes an idle channel connect
+            peerChannels.forPeer(replica, info.hostPort()).getState(true);
+        }
+        caughtUp();
+        var leader = view.leaderPeer() == null ? null : view.peerInfos().get(view.leaderPeer());
+        if (leader == null) return;
+        long asked = System.currentTimeMillis();
+        PostReplicaServiceGrpc.newStub(peerChannels.forPeer(leader.name(), leader.hostPort()))
+                .withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS)
+                .getLastTxn(HelloHello.GetLastTxnRequest.getDefaultInstance(), new StreamObserver<>() {
+                    @Override
+                    public void onNext(HelloHello.GetLastTxnReply reply) {
+                        leaderLastTxn = reply.getLastTxn();
+                        leaderHad(reply.getLastTxn(), reply.hasPost() ? reply.getPost() : null, asked);
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        logger.log(Level.FINE, "Failed to get lastTxn from leader " + leader.name(), t);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                    }
+                });
+    }
+
+    /**
+     * the leader had up to leaderTxn, with post there, when we asked at askedMillis. once we have committed that too,
+     * and the post we have at leaderTxn is the same one, we were as fresh as the leader at askedMillis, whether that
+     * is now or after a few more polls.
+     */
+    private synchronized void leaderHad(long leaderTxn, HelloHello.PostId post, long askedMillis) {
+        // an answer that needs as many txns to tell us less than this one is no use any more
+        for (var last = behind.peekLast(); last != null && last.leaderTxn() >= leaderTxn
+                && last.askedMillis() <= askedMillis; last = behind.peekLast()) {
+            behind.pollLast();
+        }
+        // and this one is of no use if it came back after a later one
+        var last = behind.peekLast();
+        if (last == null || last.askedMillis() < askedMillis) {
+            if (behind.size() >= MAX_BEHIND) behind.pollFirst();
+            behind.addLast(new Asked(leaderTxn, post, askedMillis));
+        }
+        caughtUp();
+    }
+
+    private synchronized void caughtUp() {
+        long ourTxn = postLog.commitTxn();
+        for (var a = behind.peekFirst(); a != null && a.leaderTxn() <= ourTxn; a = behind.peekFirst()) {
+            behind.pollFirst();
+            if (a.post() != null) {
+                HelloHello.PostId ours;
+                try {
+                    ours = postId(a.leaderTxn());
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to read txn " + a.leaderTxn() + " to check it is the leader's", e);
+                    return;
+                }
+                if (ours != null && !ours.equals(a.post())) {
+                    // as long, but not the leader's log. it will have us throw ours away, until then we aren't fresh
+                    logger.log(Level.FINE, "Txn " + a.leaderTxn() + " is " + ours + " here but " + a.post() + " on the leader");
+                    continue;
+                }
+            }
+            freshAsOfMillis = Math.max(freshAsOfMillis, a.askedMillis());
+        }
+    }
+
+    /** the leader's lastTxn as of our last poll. */
+    public long leaderLastTxn() {
+        return leaderLastTxn;
+    }
+
+    /** how many txns we are behind the leader, as of our last poll. */
+    public long lag() {
+        return Math.max(0, leaderLastTxn - postLog.lastTxn());
+    }
+
+    /** the wall clock time when we last knew we had committed everything the leader had. */
+    public long freshAsOfMillis() {
+        return freshAsOfMillis;
+    }
+
+    @PreDestroy
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,76 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * gRPC channels to our peers, keyed by the host:port in /peers/&lt;name&gt;.
+ * <p>
+ * Channels are created the first time a peer is used and then reused, with keepalive so an idle connection stays
+ * warm. When a peer's ephemeral znode goes away the peer watch tells us and we shut its channel down.
+ */
+@Service
+public class PeerChannels {
+    private static final Logger logger = Logger.getLogger(PeerChannels.class.getName());
+    final private long keepAliveSeconds;
+    // host:port -> channel
+    final private ConcurrentHashMap<String, ManagedChannel> channels = new ConcurrentHashMap<>();
+    // peer name -> host:port
+    final private ConcurrentHashMap<String, String> hostPorts = new ConcurrentHashMap<>();
+
+    PeerChannels(ZKService zkService, @Value("${peerKeepAliveSeconds:30}") long keepAliveSeconds) {
+        this.keepAliveSeconds = keepAliveSeconds;
+        zkService.subscribe((before, after) -> {
+            if (!before.peers().equals(after.peers())) retainPeers(after.peers());
+        });
+    }
+
+    /** the channel for a peer at hostPort. if the peer has moved, the channel to its old address is shut down. */
+    public ManagedChannel forPeer(String peerName, String hostPort) {
+        var old = hostPorts.put(peerName, hostPort);
+        if (old != null && !old.equals(hostPort)) evict(old);
+        return forTarget(hostPort);
+    }
+
+    private ManagedChannel forTarget(String hostPort) {
+        return channels.computeIfAbsent(hostPort, target -> {
+            logger.log(Level.FINE, "Opening channel to " + target);
+            return ManagedChannelBuilder.forTarget(target)
+                    .usePlaintext()
+                    .keepAliveTime(keepAliveSeconds, TimeUnit.SECONDS)
+                    .keepAliveWithoutCalls(true)
+                    .build();
+        });
+    }
+
+    private void retainPeers(List<String> peers) {
+        hostPorts.forEach((name, hostPort) -> {
+            if (!peers.contains(name) && hostPorts.remove(name, hostPort)) {
+                logger.log(Level.INFO, "Peer " + name + " went away, closing channel to " + hostPort);
+                evict(hostPort);
+            }
+        });
+    }
+
+    private void evict(String hostPort) {
+        // another peer may have been using the same address
+        if (hostPorts.containsValue(hostPort)) return;
+        var channel = channels.remove(hostPort);
+        if (channel != null) channel.shutdown();
+    }
+
+    @PreDestroy
+    public void close() {
+        channels.values().forEach(ManagedChannel::shutdown);
+        channels.clear();
+    }
+}
@@ -0,0 +1,123 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import edu.sjsu.cmpe172.hellohello.PostReplicaServiceGrpc;
+import io.grpc.Deadline;
+import io.grpc.stub.StreamObserver;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asks every peer for its lastTxn at the same time, under one overall deadline.
+ * <p>
+ * Peer addresses come from the snapshot ZKService keeps of /peers and the gRPC calls are asynchronous, so a slow or
+ * dead peer only costs us the deadline once rather than once per peer. Right after we start that snapshot is still
+ * empty, so we wait for the first one, and a peer too new to be in it yet is read from its znode instead. Peers that haven't answered by the deadline
+ * are reported with a lastTxn of {@link #UNKNOWN_TXN}, and so are peers that already have as many calls from us
+ * outstanding as DownstreamLimiter allows. We don't wait for a permit to free up, or a few busy peers would add their
+ * waits together before the last peer was even asked.
+ */
+@Service
+public class PeerFanout {
+    private static final Logger logger = Logger.getLogger(PeerFanout.class.getName());
+    public static final long UNKNOWN_TXN = -100;
+    final private ZKService zkService;
+    final private PeerChannels peerChannels;
+    final private DownstreamLimiter limiter;
+
+    public record PeerStatus(String name, String description, String hostPort, long lastTxn) {}
+
+    PeerFanout(ZKService zkService, PeerChannels peerChannels, DownstreamLimiter limiter) {
+        this.zkService = zkService;
+        this.peerChannels = peerChannels;
+        this.limiter = limiter;
+    }
+
+    public CompletableFuture<List<PeerStatus>> lastTxns(Duration timeout) {
+        return lastTxns(timeout, status -> {});
+    }
+
+    /**
+     * queries all peers. onResult is called as each peer answers (or fails), the returned future completes with
+     * every peer's status, in the order of the peers list, once they have all answered or the timeout is up.
+     */
+    public CompletableFuture<List<PeerStatus>> lastTxns(Duration timeout, Consumer<PeerStatus> onResult) {
+        var deadline = Deadline.after(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        // if /peers hasn't been read by the deadline we go with what the view has, which is nobody
+        return zkService.peerInfosLoaded()
+                .completeOnTimeout(null, timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .thenCompose(v -> lastTxns(zkService.view(), deadline, onResult));
+    }
+
+    private CompletableFuture<List<PeerStatus>> lastTxns(ClusterView view, Deadline deadline, Consumer<PeerStatus> onResult) {
+        var peers = view.peers();
+        var results = new ConcurrentHashMap<String, PeerStatus>();
+        var remaining = new AtomicInteger(peers.size());
+        var all = new CompletableFuture<Void>();
+        if (peers.isEmpty()) all.complete(null);
+        Consumer<PeerStatus> done = status -> {
+            if (results.putIfAbsent(status.name(), status) != null) return;
+            onResult.accept(status);
+            if (remaining.decrementAndGet() == 0) all.complete(null);
+        };
+        var infos = view.peerInfos();
+        for (var peer : peers) {
+            var info = infos.get(peer);
+            if (info != null) {
+                ask(info, deadline, done);
+                continue;
+            }
+            // the peer just showed up and the snapshot doesn't have it yet
+            zkService.readPeerInfo(peer).whenComplete((read, t) -> {
+                if (read != null) {
+                    ask(read, deadline, done);
+                } else {
+                    if (t != null) logger.log(Level.WARNING, "Failed to read the znode of peer " + peer, t);
+                    done.accept(new PeerStatus(peer, "Unknown", "Unknown", UNKNOWN_TXN));
+                }
+            });
+        }
+        return all.completeOnTimeout(null, Math.max(0, deadline.timeRemaining(TimeUnit.MILLISECONDS)), TimeUnit.MILLISECONDS)
+                .thenApply(v -> peers.stream()
+                        .map(peer -> results.getOrDefault(peer, new PeerStatus(peer, "Timeout", "Timeout", UNKNOWN_TXN)))
+                        .toList());
+    }
+
+    private void ask(ZKService.PeerInfo info, Deadline deadline, Consumer<PeerStatus> done) {
+        var peer = info.name();
+        var downstream = DownstreamLimiter.peer(peer);
+        if (!limiter.tryAcquire(downstream)) {
+            logger.log(Level.FINE, "Too many calls outstanding to " + peer + ", not asking for its lastTxn");
+            done.accept(new PeerStatus(peer, info.description(), info.hostPort(), UNKNOWN_TXN));
+            return;
+        }
+        PostReplicaServiceGrpc.newStub(peerChannels.forPeer(peer, info.hostPort())).withDeadline(deadline)
+                .getLastTxn(HelloHello.GetLastTxnRequest.getDefaultInstance(), new StreamObserver<>() {
+                    @Override
+                    public void onNext(HelloHello.GetLastTxnReply reply) {
+                        done.accept(new PeerStatus(peer, info.description(), info.hostPort(), reply.getLastTxn()));
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        limiter.release(downstream);
+                        logger.log(Level.WARNING, "Failed to get lastTxn from peer " + peer + " at " + info.hostPort(), t);
+                        done.accept(new PeerStatus(peer, info.description(), info.hostPort(), UNKNOWN_TXN));
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        limiter.release(downstream);
+                    }
+                });
+    }
+}
@@ -0,0 +1,125 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import com.google.protobuf.ByteString;
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs runs of posts into PostBatch frames for replication and unpacks them on the follower.
+ * <p>
+ * A batch sends leaderZxid once, and txn and timestamp as deltas from the post before, which for a run of posts from
+ * the log is nothing for the txn and a byte or two for the timestamp. A post an earlier leader wrote keeps that
+ * leader's zxid, so the follower can tell whether it is the post it already has. The posts are then compressed with the codec
+ * the leader and follower agreed on, but only if there are at least replicationCompressMinBytes of them and it comes
+ * out smaller, so a lone post under light load isn't slowed down for nothing. replication.batch.bytes counts what
+ * went in (raw) and what went on the wire.
+ */
+@Service
+public class PostBatches {
+    final private Map<String, PostCodec> codecs = new LinkedHashMap<>();
+    final private String preferred;
+    final private int compressMinBytes;
+    final private Counter rawBytes;
+    final private Counter wireBytes;
+
+    PostBatches(List<PostCodec> codecs, MeterRegistry registry,
+                @Value("${replicationCodec:gzip}") String preferred,
+                @Value("${replicationCompressMinBytes:512}") int compressMinBytes) {
+        codecs.forEach(codec -> this.codecs.put(codec.name(), codec));
+        this.preferred = preferred;
+        this.compressMinBytes = compressMinBytes;
+        rawBytes = Counter.builder("replication.batch.bytes").tag("size", "raw").register(registry);
+        wireBytes = Counter.builder("replication.batch.bytes").tag("size", "wire").register(registry);
+    }
+
+    /** the codecs we can decompress, the one we would rather have first. */
+    public List<String> codecs() {
+        var names = new ArrayList<String>();
+        if (codecs.containsKey(preferred)) names.add(preferred);
+        codecs.keySet().stream().filter(name -> !name.equals(preferred)).forEach(names::add);
+        return names;
+    }
+
+    /** the codec to send a follower that offered these, null to send batches uncompressed. */
+    public String pick(List<String> offered) {
+        if (offered.contains(preferred) && codecs.containsKey(preferred)) return preferred;
+        return offered.stream().filter(codecs::containsKey).findFirst().orElse(null);
+    }
+
+    /** posts must be in txn order. commitTxn is the leader's, for the follower to serve reads up to. */
+    public HelloHello.PostBatch encode(List<HelloHello.NewPostRequest> posts, long leaderZxid, long commitTxn,
+                                       String codec) throws IOException {
+        var first = posts.getFirst();
+        var batched = HelloHello.BatchedPosts.newBuilder();
+        long txn = first.getTxn() - 1;
+        long timestamp = first.getTimestamp();
+        for (var post : posts) {
+            var b = HelloHello.BatchedPost.newBuilder()
+                    .setMessage(post.getMessage())
+                    .setUser(post.getUser())
+                    .setTxnGap(post.getTxn() - txn - 1)
+                    .setTimestampDelta(post.getTimestamp() - timestamp)
+                    .setRequestId(post.getRequestId());
+            if (post.getLeaderZxid() != leaderZxid) b.setLeaderZxid(post.getLeaderZxid());
+            batched.addPosts(b);
+            txn = post.getTxn();
+            timestamp = post.getTimestamp();
+        }
+        byte[] raw = batched.build().toByteArray();
+        byte[] wire = raw;
+        String used = "";
+        if (codec != null && raw.length >= compressMinBytes) {
+            byte[] compressed = codecs.get(codec).compress(raw);
+            if (compressed.length < raw.length) {
+                wire = compressed;
+                used = codec;
+            }
+        }
+        rawBytes.increment(raw.length);
+        wireBytes.increment(wire.length);
+        return HelloHello.PostBatch.newBuilder()
+                .setLeaderZxid(leaderZxid)
+                .setBaseTxn(first.getTxn())
+                .setBaseTimestamp(first.getTimestamp())
+                .setCodec(used)
+                .setPosts(ByteString.copyFrom(wire))
+                .setCommitTxn(commitTxn)
+                .build();
+    }
+
+    /** the posts in batch, each carrying the zxid of the leader that wrote it. */
+    public List<HelloHello.NewPostRequest> decode(HelloHello.PostBatch batch) throws IOException {
+        byte[] data = batch.getPosts().toByteArray();
+        if (!batch.getCodec().isEmpty()) {
+            var codec = codecs.get(batch.getCodec());
+            if (codec == null) throw new IOException("no codec " + batch.getCodec());
+            data = codec.decompress(data);
+        }
+        var batched = HelloHello.BatchedPosts.parseFrom(data);
+        var posts = new ArrayList<HelloHello.NewPostRequest>(batched.getPostsCount());
+        long txn = batch.getBaseTxn() - 1;
+        long timestamp = batch.getBaseTimestamp();
+        for (var post : batched.getPostsList()) {
+            txn += 1 + post.getTxnGap();
+            timestamp += post.getTimestampDelta();
+            posts.add(HelloHello.NewPostRequest.newBuilder()
+                    .setMessage(post.getMessage())
+                    .setUser(post.getUser())
+                    .setTimestamp(timestamp)
+                    .setTxn(txn)
+                    .setLeaderZxid(post.getLeaderZxid() != 0 ? post.getLeaderZxid() : batch.getLeaderZxid())
+                    .setRequestId(post.getRequestId())
+                    .build());
+        }
+        return posts;
+    }
+}
@@ -0,0 +1,16 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import java.io.IOException;
+
+/**
+ * A way to compress the posts in a PostBatch. Every PostCodec bean is offered to the leader in getLastTxn under its
+ * name, and the leader uses the one named by replicationCodec if the follower has it, so a new codec is just a bean
+ * on both ends.
+ */
+public interface PostCodec {
+    String name();
+
+    byte[] compress(byte[] data) throws IOException;
+
+    byte[] decompress(byte[] data) throws IOException;
+}
@@ -0,0 +1,145 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import edu.sjsu.cmpe172.hellohello.PostForwardServiceGrpc;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import net.devh.boot.grpc.server.service.GrpcService;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Leader end of {@link PostForwarder}: submits each batch a follower forwards and answers it once every post in it
+ * has committed (or failed). Batches are answered in the order they commit, which may not be the order they came in.
+ * Each post has to get past our {@link AdmissionController}, the ones it turns away are answered ADD_OVERLOADED.
+ * <p>
+ * How long a batch queued on the way here is told by its sentMillis, but that is the follower's clock, which can be
+ * off from ours by any amount. So we only compare it with the other batches on the same stream: the smallest gap
+ * between sentMillis and our clock is the skew plus the network with nothing queued, and a batch queued for as long
+ * as its gap is over that. The smallest gap is kept per QUEUE_WINDOW_MILLIS and the last two windows count, so it
+ * follows the clocks as they drift apart.
+ */
+@GrpcService
+public class PostForwardGrpcService extends PostForwardServiceGrpc.PostForwardServiceImplBase {
+    private static final Logger logger = Logger.getLogger(PostForwardGrpcService.class.getName());
+    private static final long QUEUE_WINDOW_MILLIS = 60_000;
+    final private ZKService zkService;
+    final private PostReplicator replicator;
+    final private AdmissionController admission;
+
+    public PostForwardGrpcService(ZKService zkService, PostReplicator replicator, AdmissionController admission) {
+        this.zkService = zkService;
+        this.replicator = replicator;
+        this.admission = admission;
+    }
+
+    @Override
+    public StreamObserver<HelloHello.ForwardPostsRequest> forwardPosts(StreamObserver<HelloHello.ForwardPostsReply> responseObserver) {
+        // a follower that hangs up resends whatever we hadn't answered, so replies after that can just be dropped
+        ((ServerCallStreamObserver<HelloHello.ForwardPostsReply>) responseObserver).setOnCancelHandler(() -> {});
+        return new StreamObserver<>() {
+            // batches we haven't answered yet, we don't close the stream until they are. guarded by this
+            int outstanding = 0;
+            boolean halfClosed = false;
+            // only touched in onNext, which grpc doesn't call concurrently
+            long previousMinGap = Long.MAX_VALUE;
+            long minGap = Long.MAX_VALUE;
+            long windowStartMillis = System.currentTimeMillis();
+
+            /** how long the batch queued on the way here, by our clock. */
+            private long queuedMillis(long sentMillis) {
+                if (sentMillis == 0) return 0;
+                long now = System.currentTimeMillis();
+                if (now - windowStartMillis > QUEUE_WINDOW_MILLIS) {
+                    previousMinGap = minGap;
+                    minGap = Long.MAX_VALUE;
+                    windowStartMillis = now;
+                }
+                long gap = now - sentMillis;
+                minGap = Math.min(minGap, gap);
+                return gap - Math.min(minGap, previousMinGap);
+            }
+
+            @Override
+            public void onNext(HelloHello.ForwardPostsRequest batch) {
+                var view = zkService.view();
+                if (!view.isLeader(zkService.myName) || batch.getLeaderZxid() != view.leaderZxid()) {
+                    var reply = HelloHello.ForwardPostsReply.newBuilder();
+                    for (var post : batch.getPostsList()) {
+                        reply.addPosts(result(post, HelloHello.AddPostStatus.ADD_NOT_MY_LEADER, -1));
+                    }
+                    send(reply.build());
+                    return;
+                }
+                long queued = queuedMillis(batch.getSentMillis());
+                var results = new ArrayList<CompletableFuture<HelloHello.ForwardedPost>>();
+                for (var post : batch.getPostsList()) {
+                    results.add(admission.admit(queued, () -> replicator.submit(post.getRequestId(),
+                                    post.getMessage(), post.getUser(), post.getTimestamp()))
+                            .handle((txn, t) -> {
+                                if (t == null) return result(post, HelloHello.AddPostStatus.ADD_SUCCESS, txn);
+                                var cause = t instanceof CompletionException ? t.getCause() : t;
+                                if (cause instanceof AdmissionController.OverloadedException overloaded) {
+                                    return result(post, HelloHello.AddPostStatus.ADD_OVERLOADED, -1).toBuilder()
+                                            .setRetryAfterMillis(overloaded.retryAfterMillis).build();
+                                }
+                                // we stopped leading, the follower will try the new leader
+                                if (cause instanceof IllegalStateException) {
+                                    return result(post, HelloHello.AddPostStatus.ADD_NOT_MY_LEADER, -1);
+                                }
+                                logger.log(Level.SEVERE, "Failed to submit forwarded post " + post.getRequestId(), cause);
+                                return result(post, HelloHello.AddPostStatus.ADD_FAILED, -1);
+                            }));
+                }
+                synchronized (this) {
+                    outstanding++;
+                }
+                CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).thenRun(() -> {
+                    var reply = HelloHello.ForwardPostsReply.newBuilder();
+                    results.forEach(r -> reply.addPosts(r.join()));
+                    send(reply.build());
+                    boolean finish;
+                    synchronized (this) {
+                        finish = --outstanding == 0 && halfClosed;
+                    }
+                    if (finish) finish();
+                });
+            }
+
+            private void finish() {
+                synchronized (responseObserver) {
+                    responseObserver.onCompleted();
+                }
+            }
+
+            private void send(HelloHello.ForwardPostsReply reply) {
+                synchronized (responseObserver) {
+                    responseObserver.onNext(reply);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.log(Level.FINE, "Forwarding stream from a follower closed", t);
+            }
+
+            @Override
+            public void onCompleted() {
+                boolean finish;
+                synchronized (this) {
+                    halfClosed = true;
+                    finish = outstanding == 0;
+                }
+                if (finish) finish();
+            }
+        };
+    }
+
+    private static HelloHello.ForwardedPost result(HelloHello.ClientPost post, HelloHello.AddPostStatus status, long txn) {
+        return HelloHello.ForwardedPost.newBuilder().setRequestId(post.getRequestId()).setStatus(status).setTxn(txn).build();
+    }
+}
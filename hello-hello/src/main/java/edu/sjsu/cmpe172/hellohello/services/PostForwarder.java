@@ -0,0 +1,279 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import edu.sjsu.cmpe172.hellohello.PostForwardServiceGrpc;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Gets client posts to the leader from whichever node the client happened to send them to.
+ * <p>
+ * On the leader a post goes straight to the PostReplicator. Elsewhere it is queued and sent over one long-lived
+ * forwardPosts stream to the leader. We only send while the stream is ready and fewer than forwardWindowBatches
+ * batches are waiting for an answer, so under load the posts that arrive meanwhile go out together as one batch of up
+ * to forwardBatchMax posts. When the leader changes (or the stream breaks) everything that hasn't been answered is
+ * sent again to the new leader. Posts keep their requestId across resends, so the leader can tell a resend of a post
+ * that made it into the log from a new one.
+ * <p>
+ * Posts only get in if the {@link AdmissionController} lets them, here and again on the leader. One the leader turns
+ * away fails with its retry hint rather than being resent.
+ */
+@Service
+public class PostForwarder {
+    private static final Logger logger = Logger.getLogger(PostForwarder.class.getName());
+    final private ZKService zkService;
+    final private PostReplicator replicator;
+    final private AdmissionController admission;
+    final private PeerChannels peerChannels;
+    final private int batchMax;
+    final private int windowBatches;
+    final private long retryMillis;
+    final private long timeoutMillis;
+    final private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("forwarder-retry").daemon().factory());
+
+    private record Forward(HelloHello.ClientPost post, CompletableFuture<Long> txn) {}
+
+    // everything below is guarded by this
+    // requestId -> posts that haven't been sent on the current stream, in the order they came in
+    private LinkedHashMap<String, Forward> queued = new LinkedHashMap<>();
+    // requestId -> posts that have been sent on the current stream and not answered yet
+    private final LinkedHashMap<String, Forward> sent = new LinkedHashMap<>();
+    private Stream stream;
+    private String lastLeader;
+    private boolean reconnecting = false;
+    private boolean closed = false;
+
+    PostForwarder(ZKService zkService, PostReplicator replicator, AdmissionController admission, PeerChannels peerChannels,
+                  @Value("${forwardBatchMax:512}") int batchMax,
+                  @Value("${forwardWindowBatches:4}") int windowBatches,
+                  @Value("${forwardRetryMillis:200}") long retryMillis,
+                  @Value("${forwardTimeoutMillis:10000}") long timeoutMillis) {
+        this.zkService = zkService;
+        this.replicator = replicator;
+        this.admission = admission;
+        this.peerChannels = peerChannels;
+        this.batchMax = batchMax;
+        this.windowBatches = windowBatches;
+        this.retryMillis = retryMillis;
+        this.timeoutMillis = timeoutMillis;
+        zkService.subscribe((before, after) -> {
+            if (before.leaderZxid() != after.leaderZxid() || !Objects.equals(before.leaderPeer(), after.leaderPeer())) {
+                leaderChanged();
+            }
+        });
+    }
+
+    /**
+     * the future completes with the post's txn once the leader has committed it, or fails with
+     * {@link AdmissionController.OverloadedException} if we or the leader turned it away.
+     */
+    public CompletableFuture<Long> forward(String requestId, String message, String user, long timestamp) {
+        return admission.admit(0, () -> send(requestId, message, user, timestamp));
+    }
+
+    private CompletableFuture<Long> send(String requestId, String message, String user, long timestamp) {
+        var post = HelloHello.ClientPost.newBuilder()
+                .setRequestId(requestId).setMessage(message).setUser(user).setTimestamp(timestamp).build();
+        Forward forward;
+        synchronized (this) {
+            if (closed) return CompletableFuture.failedFuture(new IllegalStateException("shutting down"));
+            if (zkService.isLeading()) return submit(post);
+            // the same post sent twice at once just waits for the first one
+            var existing = queued.containsKey(requestId) ? queued.get(requestId) : sent.get(requestId);
+            if (existing != null) return existing.txn();
+            forward = new Forward(post, new CompletableFuture<>());
+            queued.put(requestId, forward);
+            flush();
+        }
+        forward.txn().orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((txn, t) -> {
+            synchronized (this) {
+                queued.remove(requestId, forward);
+                sent.remove(requestId, forward);
+            }
+        });
+        return forward.txn();
+    }
+
+    private CompletableFuture<Long> submit(HelloHello.ClientPost post) {
+        return replicator.submit(post.getRequestId(), post.getMessage(), post.getUser(), post.getTimestamp());
+    }
+
+    /** sends what is queued as far as the window lets us. caller must hold the lock. */
+    private void flush() {
+        if (queued.isEmpty() || closed) return;
+        if (zkService.isLeading()) {
+            // we took over, so whatever we were holding for the old leader is ours to submit now
+            var mine = queued;
+            queued = new LinkedHashMap<>();
+            mine.values().forEach(f -> submit(f.post()).whenComplete((txn, t) -> {
+                if (t == null) f.txn().complete(txn);
+                else f.txn().completeExceptionally(t);
+            }));
+            return;
+        }
+        if (stream == null) {
+            connect();
+            return;
+        }
+        while (!queued.isEmpty() && stream.inFlight < windowBatches && stream.requests.isReady()) {
+            var batch = HelloHello.ForwardPostsRequest.newBuilder().setLeaderZxid(stream.leaderZxid);
+            for (var it = queued.values().iterator(); it.hasNext() && batch.getPostsCount() < batchMax; ) {
+                var f = it.next();
+                it.remove();
+                sent.put(f.post().getRequestId(), f);
+                batch.addPosts(f.post());
+            }
+            stream.inFlight++;
+            stream.requests.onNext(batch.setSentMillis(System.currentTimeMillis()).build());
+        }
+    }
+
+    /** opens a stream to the leader in the current view. caller must hold the lock. */
+    private void connect() {
+        if (reconnecting) return;
+        var view = zkService.view();
+        var info = view.leaderPeer() == null ? null : view.peerInfos().get(view.leaderPeer());
+        if (info == null) {
+            // no leader, or we don't know where it is yet
+            retryLater();
+            return;
+        }
+        stream = new Stream(view.leaderPeer(), view.leaderZxid());
+        // while the old leader is going away we retry it every forwardRetryMillis, only a new one is news
+        logger.log(view.leaderPeer().equals(lastLeader) ? Level.FINE : Level.INFO,
+                "Forwarding posts to " + view.leaderPeer() + " at " + info.hostPort());
+        lastLeader = view.leaderPeer();
+        PostForwardServiceGrpc.newStub(peerChannels.forPeer(view.leaderPeer(), info.hostPort())).forwardPosts(stream);
+    }
+
+    // caller must hold the lock
+    private void retryLater() {
+        if (reconnecting) return;
+        reconnecting = true;
+        scheduler.schedule(() -> {
+            synchronized (this) {
+                reconnecting = false;
+                flush();
+            }
+        }, retryMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** drops the current stream and puts everything it hadn't answered back at the front of the queue. */
+    private synchronized void restart(Stream old) {
+        if (stream != old || old == null) return;
+        stream = null;
+        old.requests.cancel("leader changed", null);
+        var requeued = new LinkedHashMap<>(sent);
+        requeued.putAll(queued);
+        sent.clear();
+        queued = requeued;
+    }
+
+    private void leaderChanged() {
+        synchronized (this) {
+            restart(stream);
+            flush();
+        }
+    }
+
+    private class Stream implements ClientResponseObserver<HelloHello.ForwardPostsRequest, HelloHello.ForwardPostsReply> {
+        final String leader;
+        final long leaderZxid;
+        ClientCallStreamObserver<HelloHello.ForwardPostsRequest> requests;
+        // batches sent and not answered, guarded by PostForwarder.this
+        int inFlight = 0;
+
+        Stream(String leader, long leaderZxid) {
+            this.leader = leader;
+            this.leaderZxid = leaderZxid;
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<HelloHello.ForwardPostsRequest> requests) {
+            this.requests = requests;
+            requests.setOnReadyHandler(() -> {
+                synchronized (PostForwarder.this) {
+                    if (stream == this) flush();
+                }
+            });
+        }
+
+        @Override
+        public void onNext(HelloHello.ForwardPostsReply reply) {
+            var done = new ArrayList<Runnable>();
+            boolean notMyLeader = false;
+            synchronized (PostForwarder.this) {
+                if (stream != this) return;
+                inFlight--;
+                for (var result : reply.getPostsList()) {
+                    var f = sent.get(result.getRequestId());
+                    if (f == null) continue;
+                    switch (result.getStatus()) {
+                        case ADD_SUCCESS -> {
+                            sent.remove(result.getRequestId());
+                            done.add(() -> f.txn().complete(result.getTxn()));
+                        }
+                        // left in sent, restart puts it back in the queue for whoever leads next
+                        case ADD_NOT_MY_LEADER -> notMyLeader = true;
+                        case ADD_OVERLOADED -> {
+                            sent.remove(result.getRequestId());
+                            done.add(() -> f.txn().completeExceptionally(new AdmissionController.OverloadedException(
+                                    leader + " is overloaded", result.getRetryAfterMillis())));
+                        }
+                        default -> {
+                            sent.remove(result.getRequestId());
+                            done.add(() -> f.txn().completeExceptionally(
+                                    new IllegalStateException(leader + " couldn't add the post: " + result.getStatus())));
+                        }
+                    }
+                }
+                if (notMyLeader) {
+                    // our view is behind or ahead of the leader's, try again once it settles
+                    restart(this);
+                    retryLater();
+                } else {
+                    flush();
+                }
+            }
+            done.forEach(Runnable::run);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            logger.log(Level.FINE, "Forwarding stream to " + leader + " failed", t);
+            synchronized (PostForwarder.this) {
+                if (stream != this) return;
+                restart(this);
+                retryLater();
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            onError(new IllegalStateException(leader + " closed the forwarding stream"));
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            restart(stream);
+        }
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,328 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory secondary indexes over the post log, by author and by timestamp, so timelines and time ranges don't have
+ * to scan the log.
+ * <p>
+ * Every author has a posting list of its txns in a primitive long[], in txn order, so a page of a timeline is a
+ * binary search and a walk backwards. The time index is a sorted map of postIndexTimeBucketMillis wide buckets, each
+ * holding the txns of its posts and their timestamps, as int offsets into the bucket, in parallel primitive arrays,
+ * oldest first, so a page of a time range is the same search and walk. Timestamps are set by whichever node accepted
+ * the post, so they are only roughly in txn order, and a post that is older than the newest one in its bucket is put
+ * in its place in a copy of the bucket.
+ * <p>
+ * The indexes are built as posts become durable. On startup, and after a snapshot from the leader has been installed
+ * under us, the posts we haven't indexed are read back from the log on a background thread, and until that is done
+ * indexedTxn says how far the indexes go. When the log throws away posts a new leader replaced, they come out of the
+ * indexes too. Each list has a single writer, readers take the array and size without locking, see {@link Postings}.
+ */
+@Service
+public class PostIndex {
+    private static final Logger logger = Logger.getLogger(PostIndex.class.getName());
+    private static final int CATCH_UP_POSTS = 4096;
+    private static final long CATCH_UP_BYTES = 4 << 20;
+
+    /** a page of txns, newest first, and the cursor for the page after it (null if there isn't one). */
+    public record Page(long[] txns, String next) {}
+
+    final private PostLog postLog;
+    final private long bucketMillis;
+    final private Map<String, Postings> byAuthor = new ConcurrentHashMap<>();
+    final private ConcurrentSkipListMap<Long, Postings> byTime = new ConcurrentSkipListMap<>();
+    final private ExecutorService indexer = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("post-indexer").daemon().factory());
+
+    // guarded by this
+    private long wantTxn = -1;
+    private boolean catchingUp = false;
+    // bumped whenever posts are taken out, so catchUp knows the posts it read may be gone
+    private long truncations = 0;
+    private volatile long indexedTxn = -1;
+
+    PostIndex(PostLog postLog, MeterRegistry registry,
+              @Value("${postIndexTimeBucketMillis:1000}") long bucketMillis) {
+        this.postLog = postLog;
+        this.bucketMillis = bucketMillis;
+        Gauge.builder("posts.index.txn", this, PostIndex::indexedTxn).register(registry);
+        Gauge.builder("posts.index.authors", byAuthor, Map::size).register(registry);
+        postLog.subscribe(new PostLog.DurableListener() {
+            @Override
+            public void durable(List<HelloHello.NewPostRequest> posts) {
+                PostIndex.this.durable(posts);
+            }
+
+            @Override
+            public void truncated(long lastTxn) {
+                PostIndex.this.truncated(lastTxn);
+            }
+        });
+        catchUpTo(postLog.lastTxn());
+    }
+
+    /** everything up to here is in the indexes. */
+    public long indexedTxn() {
+        return indexedTxn;
+    }
+
+    /** called on the log writer with posts in txn order. */
+    private void durable(List<HelloHello.NewPostRequest> posts) {
+        synchronized (this) {
+            if (!catchingUp && posts.getFirst().getTxn() == indexedTxn + 1) {
+                posts.forEach(this::add);
+                return;
+            }
+        }
+        // a snapshot was installed since the last batch, or we are still reading the log back
+        catchUpTo(posts.getLast().getTxn());
+    }
+
+    /** called on the log writer once everything after lastTxn has been thrown away. */
+    private synchronized void truncated(long lastTxn) {
+        if (indexedTxn <= lastTxn) {
+            wantTxn = Math.min(wantTxn, lastTxn);
+            return;
+        }
+        byAuthor.values().forEach(postings -> postings.truncate(lastTxn));
+        byTime.values().forEach(postings -> postings.truncate(lastTxn));
+        indexedTxn = lastTxn;
+        wantTxn = Math.min(wantTxn, lastTxn);
+        truncations++;
+    }
+
+    private void catchUpTo(long txn) {
+        synchronized (this) {
+            wantTxn = Math.max(wantTxn, txn);
+            if (catchingUp || wantTxn <= indexedTxn) return;
+            catchingUp = true;
+        }
+        indexer.execute(this::catchUp);
+    }
+
+    private void catchUp() {
+        long started = System.nanoTime();
+        long from = indexedTxn + 1;
+        try {
+            while (true) {
+                long seen;
+                synchronized (this) {
+                    if (indexedTxn >= wantTxn) {
+                        catchingUp = false;
+                        break;
+                    }
+                    seen = truncations;
+                }
+                var posts = postLog.read(indexedTxn + 1, CATCH_UP_POSTS, CATCH_UP_BYTES);
+                if (posts.isEmpty()) {
+                    if (indexedTxn < postLog.lastTxn()) throw new IOException("txn " + (indexedTxn + 1) + " isn't in the log");
+                    // we hear about a batch just before the log lets us read it
+                    try {
+                        postLog.whenDurable(indexedTxn + 1).get();
+                    } catch (ExecutionException e) {
+                        // the write failed or the posts were thrown away, see what is still wanted
+                    }
+                    continue;
+                }
+                synchronized (this) {
+                    // the log was cut back while we were reading, what we read may have been replaced
+                    if (truncations != seen) continue;
+                    for (var post : posts) {
+                        if (post.getTxn() == indexedTxn + 1) add(post);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Failed to index posts after txn " + indexedTxn + ", will try again with the next post", e);
+            synchronized (this) {
+                catchingUp = false;
+            }
+            return;
+        } catch (InterruptedException e) {
+            return;
+        }
+        logger.log(Level.INFO, String.format("Indexed txns %d to %d from the log in %.1fs", from, indexedTxn,
+                (System.nanoTime() - started) / 1e9));
+    }
+
+    // caller must hold the lock
+    private void add(HelloHello.NewPostRequest post) {
+        byAuthor.computeIfAbsent(post.getUser(), u -> new Postings(false)).add(post.getTxn(), 0);
+        long bucket = Math.floorDiv(post.getTimestamp(), bucketMillis);
+        byTime.computeIfAbsent(bucket, b -> new Postings(true))
+                .add(post.getTxn(), (int) (post.getTimestamp() - bucket * bucketMillis));
+        indexedTxn = post.getTxn();
+    }
+
+    /**
+     * up to limit of user's txns up to upToTxn, newest first. cursor is null for the first page, otherwise the next
+     * of the page before. a cursor we didn't hand out throws IllegalArgumentException.
+     */
+    public Page byAuthor(String user, String cursor, int limit, long upToTxn) {
+        long before = cursor == null ? upToTxn + 1 : Math.min(upToTxn + 1, parseCursor(cursor, cursor));
+        var postings = byAuthor.get(user);
+        if (postings == null) return new Page(new long[0], null);
+        var s = postings.slice;
+        long[] txns = s.txns();
+        // the first entry at or after before, everything ahead of it is on this page or later ones
+        int at = Arrays.binarySearch(txns, 0, s.size(), before);
+        if (at < 0) at = -at - 1;
+        int n = Math.min(limit, at);
+        var page = new long[n];
+        for (int i = 0; i < n; i++) page[i] = txns[at - 1 - i];
+        return new Page(page, at > n ? Long.toString(page[n - 1]) : null);
+    }
+
+    private static long parseCursor(String part, String cursor) {
+        try {
+            return Long.parseLong(part);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad cursor " + cursor);
+        }
+    }
+
+    /**
+     * up to limit txns of posts with fromMillis <= timestamp < toMillis, newest first, leaving out anything after
+     * upToTxn. cursor is null for the first page, otherwise the next of the page before. a cursor we didn't hand out
+     * throws IllegalArgumentException.
+     */
+    public Page byTime(long fromMillis, long toMillis, String cursor, int limit, long upToTxn) {
+        // the cursor is the timestamp and txn of the last post on the page before, we carry on below it
+        long beforeMillis = toMillis;
+        long beforeTxn = -1;
+        if (cursor != null) {
+            int dot = cursor.indexOf('.');
+            if (dot < 0) throw new IllegalArgumentException("bad cursor " + cursor);
+            long millis = parseCursor(cursor.substring(0, dot), cursor);
+            long txn = parseCursor(cursor.substring(dot + 1), cursor);
+            if (millis < beforeMillis) {
+                beforeMillis = millis;
+                beforeTxn = txn;
+            }
+        }
+        var page = new long[limit];
+        int n = 0;
+        long lastMillis = 0;
+        boolean more = false;
+        var buckets = byTime.subMap(Math.floorDiv(fromMillis, bucketMillis), true,
+                Math.floorDiv(beforeMillis, bucketMillis), true).descendingMap().entrySet();
+        scan:
+        for (var bucket : buckets) {
+            long start = bucket.getKey() * bucketMillis;
+            var s = bucket.getValue().slice;
+            long[] txns = s.txns();
+            int[] offsets = s.offsets();
+            for (int i = s.before(beforeMillis - start, beforeTxn) - 1; i >= 0; i--) {
+                long millis = start + offsets[i];
+                // the rest of this bucket and every bucket below it are older still
+                if (millis < fromMillis) break scan;
+                if (txns[i] > upToTxn) continue;
+                if (n == limit) {
+                    more = true;
+                    break scan;
+                }
+                page[n++] = txns[i];
+                lastMillis = millis;
+            }
+        }
+        return new Page(Arrays.copyOf(page, n), more ? lastMillis + "." + page[n - 1] : null);
+    }
+
+    /**
+     * a growable list of txns (and optionally offsets) in primitive arrays, in order of offset and then txn. there is
+     * one writer at a time. readers take the {@link Slice} once and only look at its first size entries, so the
+     * writer only ever writes into the arrays past the size it has published. an add at the end fills in the next
+     * slot and publishes a bigger size; anything that would move entries, an add in the middle, growing or a truncate,
+     * goes into fresh arrays published together with their size.
+     */
+    static final class Postings {
+        /** the arrays and how many of their entries are in the list, published together. */
+        record Slice(long[] txns, int[] offsets, int size) {
+            /** how many entries come before offset and txn. */
+            int before(long offset, long txn) {
+                int lo = 0;
+                int hi = size;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    long o = offsets == null ? 0 : offsets[mid];
+                    if (o < offset || (o == offset && txns[mid] < txn)) {
+                        lo = mid + 1;
+                    } else {
+                        hi = mid;
+                    }
+                }
+                return lo;
+            }
+        }
+
+        volatile Slice slice;
+
+        Postings(boolean withOffsets) {
+            slice = new Slice(new long[4], withOffsets ? new int[4] : null, 0);
+        }
+
+        /** adds txn, which is after every txn already in the list. */
+        void add(long txn, int offset) {
+            var s = slice;
+            int size = s.size();
+            // txns come in order, so only an older offset puts it anywhere but at the end
+            int at = s.offsets() == null ? size : s.before(offset + 1, Long.MIN_VALUE);
+            if (at == size && size < s.txns().length) {
+                s.txns()[size] = txn;
+                if (s.offsets() != null) s.offsets()[size] = offset;
+                slice = new Slice(s.txns(), s.offsets(), size + 1);
+                return;
+            }
+            int capacity = size < s.txns().length ? s.txns().length : size + (size >> 1);
+            var txns = new long[capacity];
+            System.arraycopy(s.txns(), 0, txns, 0, at);
+            txns[at] = txn;
+            System.arraycopy(s.txns(), at, txns, at + 1, size - at);
+            int[] offsets = null;
+            if (s.offsets() != null) {
+                offsets = new int[capacity];
+                System.arraycopy(s.offsets(), 0, offsets, 0, at);
+                offsets[at] = offset;
+                System.arraycopy(s.offsets(), at, offsets, at + 1, size - at);
+            }
+            slice = new Slice(txns, offsets, size + 1);
+        }
+
+        /** drops the entries after txn. */
+        void truncate(long txn) {
+            var s = slice;
+            var txns = new long[s.txns().length];
+            var offsets = s.offsets() == null ? null : new int[txns.length];
+            int n = 0;
+            for (int i = 0; i < s.size(); i++) {
+                if (s.txns()[i] > txn) continue;
+                txns[n] = s.txns()[i];
+                if (offsets != null) offsets[n] = s.offsets()[i];
+                n++;
+            }
+            if (n < s.size()) slice = new Slice(txns, offsets, n);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        indexer.shutdownNow();
+    }
+}
@@ -0,0 +1,901 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, segmented log of posts keyed by txn.
+ * <p>
+ * Every record is {@code [int length][int crc32c][NewPostRequest bytes]}. Segments are named after the first txn
+ * they hold, so on startup only the last segment has to be scanned to find out where the log ends. Appends are
+ * queued and a single writer thread writes and fsyncs everything that piled up while the previous fsync was
+ * running (group commit), so concurrent posts share one fsync.
+ * <p>
+ * Every postLogSnapshotSeconds, once postLogSnapshotSegments segments have been closed, everything before the active
+ * segment is written to a {@link PostSnapshot} and the segments it covers are deleted, so the log doesn't grow
+ * forever and a restart only has to map the snapshot and scan the active segment. A follower that is too far behind
+ * the leader gets the leader's snapshot installed instead of its missing posts, see {@link #installSnapshot}.
+ * <p>
+ * A follower can be left with posts from a leader that went away before they were committed. When the new leader
+ * sends a different post for one of those txns, everything from that txn on is thrown away and its post is taken
+ * instead, see {@link #append}. So that nobody reads a post that can still be thrown away, reads only go up to
+ * {@link #commitTxn}, the last txn we know is on a majority of the replicas.
+ */
+@Service
+public class PostLog {
+    private static final Logger logger = Logger.getLogger(PostLog.class.getName());
+    static final int HEADER_BYTES = 8;
+    static final String SEGMENT_SUFFIX = ".log";
+    // we remember the file position of every INDEX_INTERVAL-th txn so reads don't scan segments from the start
+    static final int INDEX_INTERVAL = 1024;
+    private static final long SNAPSHOT_READ_BYTES = 4 << 20;
+    // a snapshot copies the one before it, so we wait for 1/SNAPSHOT_GROWTH as much again to add to it. that way
+    // each post is copied a bounded number of times however long the log gets
+    private static final int SNAPSHOT_GROWTH = 4;
+
+    /** thrown (via the returned future) when a txn arrives before the one preceding it */
+    public static class MissingTxnException extends Exception {
+        public final long lastTxn;
+
+        MissingTxnException(long lastTxn, long txn) {
+            super("expected txn " + (lastTxn + 1) + " but got " + txn);
+            this.lastTxn = lastTxn;
+        }
+    }
+
+    private record Pending(HelloHello.NewPostRequest post, byte[] bytes) {}
+    private record Waiter(long txn, CompletableFuture<Long> future) {}
+    private record Early(HelloHello.NewPostRequest post, CompletableFuture<Long> future) {}
+    /** a post the leader has assigned a txn to, along with when it becomes durable */
+    public record Appended(HelloHello.NewPostRequest post, CompletableFuture<Long> durable) {}
+    private record Install(Path tmp, long lastTxn, CompletableFuture<Long> future) {}
+    // posts that came in while we were throwing away everything after afterTxn, appended once that is done
+    private record Truncate(long afterTxn, List<Early> posts, CompletableFuture<Long> done) {}
+
+    /** called on the writer thread with each batch of posts, in txn order, just before lastTxn moves past them. */
+    public interface DurableListener {
+        void durable(List<HelloHello.NewPostRequest> posts);
+
+        /** called on the writer thread once every post after lastTxn has been thrown away. */
+        default void truncated(long lastTxn) {}
+    }
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final int reorderWindow;
+    private final long reorderMillis;
+    // base txn -> segment file
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    // txn -> position within its segment, sparse
+    private final ConcurrentSkipListMap<Long, Long> positions = new ConcurrentSkipListMap<>();
+    private final Thread writer;
+    private final List<DurableListener> listeners = new CopyOnWriteArrayList<>();
+    private final int snapshotSegments;
+    private final ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("post-log-snapshotter").daemon().factory());
+    // held while the snapshot is being replaced, either by us or by one installed from the leader
+    private final Object snapshotLock = new Object();
+    private volatile PostSnapshot snapshot;
+
+    // everything below is guarded by this
+    private ArrayList<Pending> queued = new ArrayList<>();
+    private final ArrayList<Waiter> waiters = new ArrayList<>();
+    // posts that arrived ahead of a gap. pipelined posts can overtake each other, so we hold them briefly.
+    private final TreeMap<Long, Early> early = new TreeMap<>();
+    private long acceptedTxn;
+    private boolean running = true;
+    private Install install;
+    private Truncate truncate;
+    // the batch the writer is writing, it has been accepted but isn't durable yet
+    private List<Pending> writing = List.of();
+
+    // only touched by the writer thread (and the constructor before it starts)
+    private FileChannel active;
+    private long activeBase;
+    private long activeSize;
+
+    // last txn that is durable on disk
+    private volatile long lastTxn;
+    // the highest txn we know a majority of the replicas have, it can be ahead of lastTxn
+    private final AtomicLong commitTxn = new AtomicLong(-1);
+
+    PostLog(@Value("${postLogDir:/tmp/hellolog-${serverId}}") String dir,
+            @Value("${postLogSegmentBytes:67108864}") long segmentBytes,
+            @Value("${postLogReorderWindow:256}") int reorderWindow,
+            @Value("${postLogReorderMillis:200}") long reorderMillis,
+            @Value("${postLogSnapshotSeconds:60}") long snapshotSeconds,
+            @Value("${postLogSnapshotSegments:4}") int snapshotSegments) throws IOException {
+        this.dir = Path.of(dir);
+        this.segmentBytes = segmentBytes;
+        this.reorderWindow = reorderWindow;
+        this.reorderMillis = reorderMillis;
+        this.snapshotSegments = snapshotSegments;
+        Files.createDirectories(this.dir);
+        recover();
+        acceptedTxn = lastTxn;
+        writer = Thread.ofPlatform().name("post-log-writer").daemon().start(this::writeLoop);
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.SEVERE, "Failed to snapshot the post log", e);
+            }
+        }, snapshotSeconds, snapshotSeconds, TimeUnit.SECONDS);
+    }
+
+    private void recover() throws IOException {
+        var snapshots = new TreeMap<Long, Path>();
+        try (var files = Files.list(dir)) {
+            for (var p : (Iterable<Path>) files::iterator) {
+                var name = p.getFileName().toString();
+                if (name.endsWith(SEGMENT_SUFFIX)) segments.put(baseTxnOf(p), p);
+                else if (name.endsWith(PostSnapshot.SUFFIX)) snapshots.put(PostSnapshot.lastTxnOf(p), p);
+                // snapshots we were in the middle of writing or receiving
+                else if (name.endsWith(".tmp")) Files.delete(p);
+            }
+        }
+        long snapshotTxn = -1;
+        if (!snapshots.isEmpty()) {
+            // older snapshots were about to be deleted when we went down
+            snapshot = PostSnapshot.open(snapshots.pollLastEntry().getValue());
+            snapshotTxn = snapshot.lastTxn;
+            for (var p : snapshots.values()) Files.delete(p);
+            dropSegmentsBefore(snapshotTxn);
+            logger.log(Level.INFO, "Mapped snapshot " + snapshot.path + " with txns " + snapshot.firstTxn + " to " + snapshotTxn);
+        }
+        if (segments.isEmpty()) {
+            lastTxn = snapshotTxn;
+            logger.log(Level.INFO, "Starting with an empty post log in " + dir + " after txn " + lastTxn);
+            return;
+        }
+        // all the earlier segments are complete, so only the tail needs to be looked at
+        var last = segments.lastEntry();
+        long txn = last.getKey() - 1;
+        long validEnd = 0;
+        try (var ch = FileChannel.open(last.getValue(), StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(HEADER_BYTES);
+            long size = ch.size();
+            while (true) {
+                var post = readRecord(ch, validEnd, size, header);
+                if (post == null || post.getTxn() != txn + 1) break;
+                txn = post.getTxn();
+                validEnd += HEADER_BYTES + header.getInt(0);
+            }
+        }
+        if (txn < snapshotTxn) {
+            // we went down while installing a snapshot from the leader, the snapshot has all of this and more
+            Files.delete(last.getValue());
+            segments.clear();
+            lastTxn = snapshotTxn;
+            logger.log(Level.INFO, "Recovered post log in " + dir + " from the snapshot with lastTxn " + lastTxn);
+            return;
+        }
+        active = FileChannel.open(last.getValue(), StandardOpenOption.WRITE);
+        activeBase = last.getKey();
+        if (active.size() > validEnd) {
+            logger.log(Level.WARNING, "Truncating torn tail of " + last.getValue() + " at " + validEnd);
+            active.truncate(validEnd);
+            active.force(true);
+        }
+        active.position(validEnd);
+        activeSize = validEnd;
+        lastTxn = txn;
+        logger.log(Level.INFO, "Recovered post log in " + dir + " with lastTxn " + lastTxn);
+    }
+
+    /** reads the record at pos, or returns null if it is truncated or corrupt. header is left holding its header. */
+    static HelloHello.NewPostRequest readRecord(FileChannel ch, long pos, long size, ByteBuffer header) throws IOException {
+        if (pos + HEADER_BYTES > size) return null;
+        header.clear();
+        ch.read(header, pos);
+        int len = header.getInt(0);
+        int crc = header.getInt(4);
+        if (len < 0 || pos + HEADER_BYTES + len > size) return null;
+        var body = ByteBuffer.allocate(len);
+        ch.read(body, pos + HEADER_BYTES);
+        var crc32 = new CRC32C();
+        crc32.update(body.array());
+        if ((int) crc32.getValue() != crc) return null;
+        try {
+            return HelloHello.NewPostRequest.parseFrom(body.array());
+        } catch (InvalidProtocolBufferException e) {
+            return null;
+        }
+    }
+
+    static long baseTxnOf(Path segment) {
+        var name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private Path segmentPath(long baseTxn) {
+        return dir.resolve(String.format("%020d%s", baseTxn, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * forgets the segments that hold nothing after txn, except the last one, which may still be appended to.
+     * positions in them go too.
+     */
+    private void dropSegmentsBefore(long txn) throws IOException {
+        var dropped = new ArrayList<Path>();
+        synchronized (segments) {
+            for (var e = segments.firstEntry(); e != null; e = segments.firstEntry()) {
+                var next = segments.higherKey(e.getKey());
+                if (next == null || next > txn + 1) break;
+                dropped.add(segments.pollFirstEntry().getValue());
+                positions.headMap(next).clear();
+            }
+        }
+        for (var p : dropped) Files.deleteIfExists(p);
+        if (!dropped.isEmpty()) logger.log(Level.FINE, "Dropped " + dropped.size() + " segments covered by the snapshot");
+    }
+
+    /**
+     * snapshots everything before the active segment if at least snapshotSegments segments have been closed since
+     * the last snapshot, and they hold at least 1/SNAPSHOT_GROWTH as much as it does, and then drops those segments.
+     * the new snapshot starts as a copy of the last one, so only the new posts are read back. runs on the
+     * snapshotter, appends carry on meanwhile.
+     */
+    void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            var old = snapshot;
+            long firstTxn;
+            long upToTxn;
+            synchronized (segments) {
+                int closed = segments.size() - 1;
+                if (closed < snapshotSegments) return;
+                if (old != null && closed * segmentBytes < old.postBytes() / SNAPSHOT_GROWTH) return;
+                firstTxn = old != null ? old.firstTxn : segments.firstKey();
+                // the segments before the active one can still be being written, only what is durable goes in.
+                // the active segment stays out, posts a new leader may replace are in there
+                upToTxn = Math.min(segments.lastKey() - 1, lastTxn);
+            }
+            if (old != null && upToTxn <= old.lastTxn) return;
+            long started = System.nanoTime();
+            snapshot = PostSnapshot.write(dir, old, firstTxn, upToTxn, txn -> read(txn, 4096, SNAPSHOT_READ_BYTES));
+            if (old != null) Files.deleteIfExists(old.path);
+            dropSegmentsBefore(upToTxn);
+            PostSnapshot.syncDir(dir);
+            logger.log(Level.INFO, String.format("Snapshotted txns %d to %d in %.1fs", firstTxn, upToTxn,
+                    (System.nanoTime() - started) / 1e9));
+        }
+    }
+
+    /** the current snapshot, null if there isn't one yet. */
+    PostSnapshot currentSnapshot() {
+        return snapshot;
+    }
+
+    /** a place to receive a snapshot into, on the same file system as the log so it can be renamed into place. */
+    Path newSnapshotFile() throws IOException {
+        return Files.createTempFile(dir, "install-", ".tmp");
+    }
+
+    /**
+     * replaces the log with the snapshot in tmp if it goes past anything we have accepted. this is for followers
+     * that are too far behind the leader to catch up post by post. the future completes with lastTxn once the
+     * snapshot is in place (or straight away if we didn't need it).
+     */
+    public CompletableFuture<Long> installSnapshot(Path tmp) {
+        var future = new CompletableFuture<Long>();
+        long snapshotTxn;
+        try {
+            snapshotTxn = PostSnapshot.open(tmp).lastTxn;
+        } catch (IOException e) {
+            deleteQuietly(tmp);
+            return CompletableFuture.failedFuture(e);
+        }
+        synchronized (this) {
+            if (!running || install != null) {
+                deleteQuietly(tmp);
+                future.completeExceptionally(new IllegalStateException(
+                        running ? "already installing a snapshot" : "post log is closed"));
+            } else {
+                install = new Install(tmp, snapshotTxn, future);
+                notifyAll();
+            }
+        }
+        return future;
+    }
+
+    private static void deleteQuietly(Path p) {
+        try {
+            Files.deleteIfExists(p);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to delete " + p, e);
+        }
+    }
+
+    public void subscribe(DurableListener listener) {
+        listeners.add(listener);
+    }
+
+    /** the last txn that has been made durable. */
+    public long lastTxn() {
+        return lastTxn;
+    }
+
+    /**
+     * the last txn that is durable here and known to be on a majority of the replicas, as far as reads can go. a new
+     * leader can throw away posts after it, but never the ones up to it.
+     */
+    public long commitTxn() {
+        return Math.min(commitTxn.get(), lastTxn);
+    }
+
+    /**
+     * notes that everything up to txn is on a majority of the replicas, as the leader worked it out, or as it told us
+     * along with posts we have checked are its own.
+     */
+    public void committed(long txn) {
+        commitTxn.accumulateAndGet(txn, Math::max);
+    }
+
+    /** the last txn that has been accepted, it may not be durable yet. */
+    public synchronized long acceptedTxn() {
+        return acceptedTxn;
+    }
+
+    /**
+     * queues a post to be appended. the future completes with the durable lastTxn once the post is on disk.
+     * a txn that skips ahead is held for a little while in case the txns before it are still in flight, and
+     * fails with {@link MissingTxnException} if the gap doesn't fill.
+     * <p>
+     * a txn that has already been accepted is a retransmission if it is the same post, written under the same leader
+     * for the same requestId, and completes once it is durable. if it is a different post, ours came from a leader
+     * that went away before committing it, so it and everything after it are thrown away and the new post is taken
+     * in its place. posts we had accepted after it fail with {@link MissingTxnException}, so the leader sends them
+     * again.
+     */
+    public CompletableFuture<Long> append(HelloHello.NewPostRequest post) {
+        var future = new CompletableFuture<Long>();
+        append(post, future);
+        return future;
+    }
+
+    private synchronized void append(HelloHello.NewPostRequest post, CompletableFuture<Long> future) {
+        long txn = post.getTxn();
+        if (!running) {
+            future.completeExceptionally(new IllegalStateException("post log is closed"));
+        } else if (truncate != null) {
+            // nothing can be compared with or appended to the log until the posts we are replacing are gone
+            truncate.posts().add(new Early(post, future));
+        } else if (txn <= acceptedTxn) {
+            HelloHello.NewPostRequest stored;
+            try {
+                stored = stored(txn);
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+                return;
+            }
+            if (stored != null && !samePost(stored, post)) {
+                logger.log(Level.WARNING, "Txn " + txn + " from leader " + post.getLeaderZxid() + " isn't the post we have from "
+                        + stored.getLeaderZxid() + ", throwing away everything from txn " + txn);
+                truncate = new Truncate(txn - 1, new ArrayList<>(List.of(new Early(post, future))), new CompletableFuture<>());
+                notifyAll();
+            } else if (txn <= lastTxn) {
+                future.complete(lastTxn);
+            } else {
+                waiters.add(new Waiter(txn, future));
+            }
+        } else if (txn == acceptedTxn + 1) {
+            accept(post, future);
+            // the post we just accepted may have been the gap that others were waiting on
+            for (var e = early.pollFirstEntry(); e != null; e = early.pollFirstEntry()) {
+                if (e.getKey() != acceptedTxn + 1) {
+                    early.put(e.getKey(), e.getValue());
+                    break;
+                }
+                accept(e.getValue().post(), e.getValue().future());
+            }
+        } else if (txn <= acceptedTxn + reorderWindow && !early.containsKey(txn)) {
+            var held = new Early(post, future);
+            early.put(txn, held);
+            CompletableFuture.delayedExecutor(reorderMillis, TimeUnit.MILLISECONDS).execute(() -> expire(held));
+        } else {
+            future.completeExceptionally(new MissingTxnException(acceptedTxn, txn));
+        }
+    }
+
+    /**
+     * throws away every post after txn, for a leader that found they aren't the posts it has. the future completes
+     * with lastTxn once they are gone, and fails if the snapshot already goes past txn.
+     */
+    public CompletableFuture<Long> truncateAfter(long txn) {
+        synchronized (this) {
+            if (!running) return CompletableFuture.failedFuture(new IllegalStateException("post log is closed"));
+            if (truncate != null) {
+                // one at a time, whatever happened to that one
+                return truncate.done().handle((v, t) -> null).thenCompose(v -> truncateAfter(txn));
+            }
+            if (txn >= acceptedTxn) return CompletableFuture.completedFuture(lastTxn);
+            truncate = new Truncate(txn, new ArrayList<>(), new CompletableFuture<>());
+            notifyAll();
+            return truncate.done();
+        }
+    }
+
+    /**
+     * the post we accepted as txn, null if we don't have it any more. caller must hold the lock. retransmissions
+     * are rare enough that reading the log for one here is fine.
+     */
+    private HelloHello.NewPostRequest stored(long txn) throws IOException {
+        if (txn > lastTxn) {
+            // not durable yet, so it is being written or still queued. both are runs of consecutive txns
+            for (var run : List.of(writing, queued)) {
+                if (run.isEmpty()) continue;
+                long first = run.getFirst().post().getTxn();
+                if (txn >= first && txn <= run.getLast().post().getTxn()) return run.get((int) (txn - first)).post();
+            }
+            return null;
+        }
+        var posts = read(txn, 1, Long.MAX_VALUE);
+        return posts.isEmpty() ? null : posts.getFirst();
+    }
+
+    /** the leader that wrote a post assigns each txn once, so the same requestId from the same leader is the same post. */
+    static boolean samePost(HelloHello.NewPostRequest a, HelloHello.NewPostRequest b) {
+        return a.getRequestId().equals(b.getRequestId()) && a.getLeaderZxid() == b.getLeaderZxid();
+    }
+
+    /**
+     * completes with lastTxn once txn is durable. fails if the write it was in fails, or if the posts after acceptedTxn
+     * are thrown away before it gets there.
+     */
+    public synchronized CompletableFuture<Long> whenDurable(long txn) {
+        if (txn <= lastTxn) return CompletableFuture.completedFuture(lastTxn);
+        var future = new CompletableFuture<Long>();
+        waiters.add(new Waiter(txn, future));
+        return future;
+    }
+
+    /** assigns the next txn to a post and queues it, this is how the leader appends. */
+    public synchronized Appended appendNext(HelloHello.NewPostRequest.Builder post) {
+        var future = new CompletableFuture<Long>();
+        var built = post.setTxn(acceptedTxn + 1).build();
+        if (!running) {
+            future.completeExceptionally(new IllegalStateException("post log is closed"));
+        } else if (truncate != null) {
+            // we only just took over and are still throwing away posts the last leader sent us
+            future.completeExceptionally(new IllegalStateException("post log is being truncated"));
+        } else {
+            accept(built, future);
+        }
+        return new Appended(built, future);
+    }
+
+    // caller must hold the lock
+    private void accept(HelloHello.NewPostRequest post, CompletableFuture<Long> future) {
+        acceptedTxn = post.getTxn();
+        queued.add(new Pending(post, post.toByteArray()));
+        waiters.add(new Waiter(acceptedTxn, future));
+        notifyAll();
+    }
+
+    /**
+     * fails a post that was held for a gap that didn't fill in time. the timer can't be called off, so by now the
+     * post may have been accepted, or dropped and another one held for its txn, and then it leaves that one alone.
+     */
+    private void expire(Early held) {
+        long txn = held.post().getTxn();
+        long accepted;
+        synchronized (this) {
+            if (!early.remove(txn, held)) return;
+            accepted = acceptedTxn;
+        }
+        held.future().completeExceptionally(new MissingTxnException(accepted, txn));
+    }
+
+    /**
+     * reads durable posts starting at fromTxn. stops after maxPosts posts or once maxBytes of records have been
+     * read, but always returns at least one post if fromTxn is durable.
+     */
+    public List<HelloHello.NewPostRequest> read(long fromTxn, int maxPosts, long maxBytes) throws IOException {
+        var posts = new ArrayList<HelloHello.NewPostRequest>();
+        long last = lastTxn;
+        long bytes = 0;
+        long txn = fromTxn;
+        var header = ByteBuffer.allocate(HEADER_BYTES);
+        while (txn <= last && posts.size() < maxPosts && bytes < maxBytes) {
+            var snap = snapshot;
+            if (snap != null && snap.contains(txn)) {
+                posts.add(snap.get(txn));
+                bytes += HEADER_BYTES + snap.sizeOf(txn);
+                txn++;
+                continue;
+            }
+            Map.Entry<Long, Path> segment;
+            synchronized (segments) {
+                segment = segments.floorEntry(txn);
+            }
+            if (segment == null) break;
+            long before = txn;
+            try (var ch = FileChannel.open(segment.getValue(), StandardOpenOption.READ)) {
+                long size = ch.size();
+                long pos = 0;
+                long cur = segment.getKey();
+                var hint = positions.floorEntry(txn);
+                if (hint != null && hint.getKey() >= cur) {
+                    cur = hint.getKey();
+                    pos = hint.getValue();
+                }
+                // skip over the records before the one we want, we only need their headers to do that
+                while (cur < txn && pos + HEADER_BYTES <= size) {
+                    header.clear();
+                    ch.read(header, pos);
+                    pos += HEADER_BYTES + header.getInt(0);
+                    cur++;
+                    if (cur % INDEX_INTERVAL == 0) positions.put(cur, pos);
+                }
+                while (txn <= last && posts.size() < maxPosts && bytes < maxBytes) {
+                    var post = readRecord(ch, pos, size, header);
+                    if (post == null || post.getTxn() != txn) break;
+                    posts.add(post);
+                    pos += HEADER_BYTES + header.getInt(0);
+                    bytes += HEADER_BYTES + header.getInt(0);
+                    txn++;
+                }
+            } catch (NoSuchFileException e) {
+                // the segment was dropped after a new snapshot took it over, go round again to read from that
+                if (snapshot == snap) throw e;
+                continue;
+            }
+            // if we got nothing out of this segment there is no point looking for the next one
+            if (txn == before) break;
+        }
+        return posts;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            ArrayList<Pending> batch;
+            Install request;
+            Truncate cut;
+            synchronized (this) {
+                while (queued.isEmpty() && install == null && truncate == null && running) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // we only get interrupted on shutdown, running will tell us what to do
+                    }
+                }
+                if (queued.isEmpty() && install == null && truncate == null) return;
+                batch = queued;
+                queued = new ArrayList<>();
+                writing = batch;
+                request = install;
+                install = null;
+                // left in place until it is done, so appends keep going to it rather than to the log
+                cut = truncate;
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    write(batch);
+                    notifyListeners(batch);
+                    lastTxn = batch.getLast().post().getTxn();
+                    completeWaiters(null);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Failed to write " + batch.size() + " posts to the log", e);
+                    discardFailedWrite();
+                    completeWaiters(e);
+                }
+                synchronized (this) {
+                    writing = List.of();
+                }
+            }
+            if (cut != null) truncate(cut);
+            if (request != null) install(request);
+        }
+    }
+
+    /**
+     * gets rid of whatever part of a failed write made it into the segments, so the leader's resends don't end up
+     * after it and get thrown away with it by the next recovery. if we can't cut the segment back we leave it
+     * behind and start a new one at lastTxn + 1 instead.
+     */
+    private void discardFailedWrite() {
+        try {
+            synchronized (snapshotLock) {
+                cutAfter(lastTxn);
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to cut the log back to txn " + lastTxn + ", starting a new segment", e);
+            if (active != null) {
+                try {
+                    active.close();
+                } catch (IOException ignored) {
+                    // it's going either way
+                }
+                active = null;
+                activeSize = 0;
+            }
+            var later = new ArrayList<Path>();
+            synchronized (segments) {
+                var tail = segments.tailMap(lastTxn, false);
+                later.addAll(tail.values());
+                tail.clear();
+            }
+            later.forEach(PostLog::deleteQuietly);
+            positions.tailMap(lastTxn, false).clear();
+        }
+    }
+
+    /** throws away everything after cut.afterTxn and then appends the posts that were held for it. */
+    private void truncate(Truncate cut) {
+        // if the batch before it failed to write, the log already ends before afterTxn
+        long after = Math.min(cut.afterTxn(), lastTxn);
+        IOException failure = null;
+        try {
+            synchronized (snapshotLock) {
+                var snap = snapshot;
+                if (snap != null && after < snap.lastTxn) {
+                    throw new IOException("can't throw away txns after " + after + ", the snapshot has them up to " + snap.lastTxn);
+                }
+                // readers never look past lastTxn, so once it has moved back we can take the files apart. nothing
+                // committed should ever be thrown away, but if it is, reads stop at what is left
+                lastTxn = Math.min(lastTxn, after);
+                commitTxn.accumulateAndGet(after, Math::min);
+                cutAfter(after);
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to throw away the log after txn " + after, e);
+            failure = e;
+        }
+        var failed = new ArrayList<Waiter>();
+        synchronized (this) {
+            truncate = null;
+            if (failure == null) acceptedTxn = Math.min(acceptedTxn, after);
+            waiters.removeIf(w -> w.txn() > acceptedTxn && failed.add(w));
+        }
+        if (failure == null) {
+            for (var listener : listeners) {
+                try {
+                    listener.truncated(after);
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Durable listener failed", e);
+                }
+            }
+            logger.log(Level.INFO, "Threw away the log after txn " + after);
+        }
+        for (var w : failed) w.future().completeExceptionally(new MissingTxnException(after, w.txn()));
+        for (var e : cut.posts()) {
+            if (failure == null) append(e.post(), e.future());
+            else e.future().completeExceptionally(failure);
+        }
+        if (failure == null) cut.done().complete(lastTxn);
+        else cut.done().completeExceptionally(failure);
+    }
+
+    /**
+     * removes every record after txn from the segments, and leaves the one that now ends with txn as the active
+     * segment, or none if it was the last one before a segment boundary or the snapshot. runs on the writer thread.
+     */
+    private void cutAfter(long txn) throws IOException {
+        var later = new ArrayList<Map.Entry<Long, Path>>();
+        Map.Entry<Long, Path> keep;
+        synchronized (segments) {
+            later.addAll(segments.tailMap(txn, false).entrySet());
+            keep = segments.floorEntry(txn);
+        }
+        positions.tailMap(txn, false).clear();
+        // newest first, so if we go down half way through the log still ends in one piece
+        for (var segment : later.reversed()) {
+            if (active != null && activeBase == segment.getKey()) {
+                active.close();
+                active = null;
+            }
+            synchronized (segments) {
+                segments.remove(segment.getKey());
+            }
+            Files.deleteIfExists(segment.getValue());
+        }
+        if (!later.isEmpty()) PostSnapshot.syncDir(dir);
+        // a reader may have put back a position it passed while we were deleting
+        positions.tailMap(txn, false).clear();
+        if (keep == null) {
+            activeSize = 0;
+            return;
+        }
+        if (active == null || activeBase != keep.getKey()) {
+            if (active != null) active.close();
+            active = FileChannel.open(keep.getValue(), StandardOpenOption.WRITE);
+            activeBase = keep.getKey();
+        }
+        long pos = positionAfter(keep.getKey(), keep.getValue(), txn);
+        active.truncate(pos);
+        active.force(true);
+        active.position(pos);
+        activeSize = pos;
+    }
+
+    /** where the record after txn starts in the segment starting at base, going by the headers before it. */
+    private long positionAfter(long base, Path segment, long txn) throws IOException {
+        long pos = 0;
+        long cur = base;
+        var hint = positions.floorEntry(txn + 1);
+        if (hint != null && hint.getKey() >= base) {
+            cur = hint.getKey();
+            pos = hint.getValue();
+        }
+        var header = ByteBuffer.allocate(HEADER_BYTES);
+        try (var ch = FileChannel.open(segment, StandardOpenOption.READ)) {
+            while (cur <= txn) {
+                header.clear();
+                if (ch.read(header, pos) != HEADER_BYTES) throw new IOException(segment + " ends before txn " + txn);
+                pos += HEADER_BYTES + header.getInt(0);
+                cur++;
+            }
+        }
+        return pos;
+    }
+
+    /** runs on the writer thread, so nothing is appended while the segments are swapped out for the snapshot. */
+    private void install(Install request) {
+        var early = new ArrayList<Early>();
+        synchronized (this) {
+            if (request.lastTxn() <= acceptedTxn) {
+                deleteQuietly(request.tmp());
+                request.future().complete(lastTxn);
+                return;
+            }
+            // posts up to the snapshot now wait for it, and anything held for a gap is from before the snapshot,
+            // the leader will resend whatever it still needs
+            acceptedTxn = request.lastTxn();
+            early.addAll(this.early.values());
+            this.early.clear();
+        }
+        early.forEach(e -> e.future().completeExceptionally(new MissingTxnException(request.lastTxn(), e.post().getTxn())));
+        try {
+            synchronized (snapshotLock) {
+                if (active != null) {
+                    active.close();
+                    active = null;
+                    activeSize = 0;
+                }
+                var path = dir.resolve(PostSnapshot.fileName(request.lastTxn()));
+                Files.move(request.tmp(), path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                PostSnapshot.syncDir(dir);
+                var old = snapshot;
+                snapshot = PostSnapshot.open(path);
+                List<Path> dropped;
+                synchronized (segments) {
+                    dropped = new ArrayList<>(segments.values());
+                    segments.clear();
+                }
+                positions.clear();
+                if (old != null && !old.path.equals(path)) Files.deleteIfExists(old.path);
+                for (var p : dropped) Files.deleteIfExists(p);
+                PostSnapshot.syncDir(dir);
+            }
+            lastTxn = request.lastTxn();
+            logger.log(Level.INFO, "Installed snapshot with lastTxn " + lastTxn);
+            completeWaiters(null);
+            request.future().complete(lastTxn);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to install snapshot " + request.tmp(), e);
+            deleteQuietly(request.tmp());
+            completeWaiters(e);
+            request.future().completeExceptionally(e);
+        }
+    }
+
+    private void notifyListeners(List<Pending> batch) {
+        if (listeners.isEmpty()) return;
+        var posts = batch.stream().map(Pending::post).toList();
+        for (var listener : listeners) {
+            try {
+                listener.durable(posts);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Durable listener failed", e);
+            }
+        }
+    }
+
+    private void write(List<Pending> batch) throws IOException {
+        int i = 0;
+        while (i < batch.size()) {
+            if (active == null || activeSize >= segmentBytes) {
+                roll(batch.get(i).post().getTxn());
+            }
+            // gather as many records as fit in the current segment into a single write
+            long room = segmentBytes - activeSize;
+            int start = i;
+            long bytes = 0;
+            do {
+                bytes += HEADER_BYTES + batch.get(i).bytes().length;
+                i++;
+            } while (i < batch.size() && bytes + HEADER_BYTES + batch.get(i).bytes().length <= room);
+            var buf = ByteBuffer.allocate((int) bytes);
+            var crc = new CRC32C();
+            long pos = activeSize;
+            for (var p : batch.subList(start, i)) {
+                if (p.post().getTxn() % INDEX_INTERVAL == 0) positions.put(p.post().getTxn(), pos);
+                pos += HEADER_BYTES + p.bytes().length;
+                crc.reset();
+                crc.update(p.bytes());
+                buf.putInt(p.bytes().length).putInt((int) crc.getValue()).put(p.bytes());
+            }
+            buf.flip();
+            while (buf.hasRemaining()) active.write(buf);
+            activeSize += bytes;
+        }
+        active.force(false);
+    }
+
+    private void roll(long baseTxn) throws IOException {
+        if (active != null) {
+            active.force(false);
+            active.close();
+        }
+        var path = segmentPath(baseTxn);
+        active = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        activeBase = baseTxn;
+        activeSize = 0;
+        synchronized (segments) {
+            segments.put(baseTxn, path);
+        }
+        // forcing the records isn't enough to keep a new file across a crash, its directory entry has to be on disk
+        // too before we ack anything in it
+        PostSnapshot.syncDir(dir);
+        logger.log(Level.FINE, "Rolled to new segment " + path);
+    }
+
+    private void completeWaiters(IOException failure) {
+        var done = new ArrayList<Waiter>();
+        synchronized (this) {
+            if (failure != null) {
+                // nothing after lastTxn made it, so forget everything we accepted past it
+                acceptedTxn = lastTxn;
+                queued.clear();
+                done.addAll(waiters);
+                waiters.clear();
+                early.values().forEach(e -> done.add(new Waiter(e.post().getTxn(), e.future())));
+                early.clear();
+            } else {
+                waiters.removeIf(w -> w.txn() <= lastTxn && done.add(w));
+            }
+        }
+        long last = lastTxn;
+        for (var w : done) {
+            if (failure == null) w.future().complete(last);
+            else w.future().completeExceptionally(failure);
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException, InterruptedException {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        snapshotter.shutdownNow();
+        writer.join();
+        if (active != null) active.close();
+    }
+}
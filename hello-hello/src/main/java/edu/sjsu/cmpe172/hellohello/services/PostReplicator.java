@@ -0,0 +1,794 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import edu.sjsu.cmpe172.hellohello.PostReplicaServiceGrpc;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Leader side of replication.
+ * <p>
+ * Each follower in /replicas gets its own pipe that keeps up to replicationWindow newPost calls in flight, so a
+ * follower's round trip time limits how long a post waits rather than how many posts per second we can do. Followers
+ * run independently of each other. A post is committed once a majority of /replicas (the leader counts itself once
+ * the post is durable locally) has it.
+ * <p>
+ * Each follower's lag behind our lastTxn is published as replication.follower.lag.txns and, as the time since it
+ * last had everything we had, replication.follower.lag.ms. Both are NaN when we aren't leading.
+ * <p>
+ * A follower that is behind gets the missing posts streamed with syncWithLeader. One that is more than
+ * snapshotShipThresholdTxns behind our latest snapshot gets the snapshot instead, which is one sequential file copy
+ * on both ends, and then catches up on the rest.
+ * <p>
+ * Learners get a pipe too, but don't count towards the majority. A learner's catch up stream or snapshot is capped at
+ * learnerCatchUpBytesPerSecond so it doesn't starve the replicas, and once it is within learnerPromoteLagTxns of our
+ * lastTxn we move it into /replicas. Until then adding one can't slow down commits or cost us the majority.
+ * <p>
+ * Followers that say in getLastTxn that they take batches are sent whatever the window has room for as one
+ * {@link PostBatches} frame, compressed with a codec they offered, and caught up with batches too. Under light load
+ * that is still one post per frame, so nothing waits to fill a batch. Older followers get a newPost per post.
+ * <p>
+ * Every post or batch we send carries our commitTxn, so followers only serve reads of posts that can't be thrown
+ * away. A batch follower that has everything gets an empty batch with the new commitTxn once it moves, so it doesn't
+ * wait for the next post to hear about it.
+ * <p>
+ * Posts carry the requestId they were given when a client sent them in. We remember the requestIds of the last
+ * dedupCapacity posts, both ones we submitted and ones replicated to us, so a post that is retried after a leader
+ * change and already made it into the log under the old leader isn't appended a second time. What we remember only
+ * goes back to when we started, or to the last snapshot installed under us, so when we take over the rest of the
+ * last dedupCapacity posts is read back from the log first.
+ */
+@Service
+public class PostReplicator {
+    private static final Logger logger = Logger.getLogger(PostReplicator.class.getName());
+    private static final int FILL_READ_POSTS = 4096;
+    private static final long FILL_READ_BYTES = 4 << 20;
+    final private ZKService zkService;
+    final private PostLog postLog;
+    final private PeerChannels peerChannels;
+    final private PostBatches postBatches;
+    final private MeterRegistry registry;
+    final private int window;
+    final private long rpcTimeoutMillis;
+    final private long retryMillis;
+    final private long catchUpThreshold;
+    final private long catchUpBatchBytes;
+    final private long snapshotShipThreshold;
+    final private long learnerBytesPerSecond;
+    final private long promoteLagTxns;
+    final private int dedupCapacity;
+    final private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("replicator-retry").daemon().factory());
+
+    private record Commit(HelloHello.NewPostRequest post, CompletableFuture<Long> committed, long appendedNanos) {}
+
+    // txn -> posts that are not committed yet
+    final private ConcurrentSkipListMap<Long, Commit> pending = new ConcurrentSkipListMap<>();
+    // replaced (under this) whenever the replicas or their addresses change
+    private volatile Map<String, Follower> followers = Map.of();
+    // guarded by this
+    private long commitTxn = -1;
+    // requestId -> completes with the post's txn once it is committed
+    final private LinkedHashMap<String, CompletableFuture<Long>> requests;
+    // guarded by requests. requests has every post in the log from requestsFromTxn to requestsToTxn
+    private long requestsFromTxn;
+    private long requestsToTxn;
+
+    PostReplicator(ZKService zkService, PostLog postLog, PeerChannels peerChannels, PostBatches postBatches,
+                   MeterRegistry registry,
+                   @Value("${replicationWindow:64}") int window,
+                   @Value("${replicationRpcTimeoutMillis:5000}") long rpcTimeoutMillis,
+                   @Value("${replicationRetryMillis:200}") long retryMillis,
+                   @Value("${catchUpThresholdTxns:1024}") long catchUpThreshold,
+                   @Value("${catchUpBatchBytes:1048576}") long catchUpBatchBytes,
+                   @Value("${snapshotShipThresholdTxns:100000}") long snapshotShipThreshold,
+                   @Value("${dedupCapacity:65536}") int dedupCapacity,
+                   @Value("${learnerCatchUpBytesPerSecond:10485760}") long learnerBytesPerSecond,
+                   @Value("${learnerPromoteLagTxns:64}") long promoteLagTxns) {
+        this.zkService = zkService;
+        this.postLog = postLog;
+        this.peerChannels = peerChannels;
+        this.postBatches = postBatches;
+        this.registry = registry;
+        this.window = window;
+        this.rpcTimeoutMillis = rpcTimeoutMillis;
+        this.retryMillis = retryMillis;
+        this.catchUpThreshold = catchUpThreshold;
+        this.catchUpBatchBytes = catchUpBatchBytes;
+        this.snapshotShipThreshold = snapshotShipThreshold;
+        this.learnerBytesPerSecond = learnerBytesPerSecond;
+        this.promoteLagTxns = promoteLagTxns;
+        this.dedupCapacity = dedupCapacity;
+        requestsFromTxn = postLog.lastTxn() + 1;
+        requestsToTxn = postLog.lastTxn();
+        requests = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<Long>> eldest) {
+                return size() > dedupCapacity;
+            }
+        };
+        // posts that reach our log from another leader are in the log for good, whoever ends up leading
+        postLog.subscribe(new PostLog.DurableListener() {
+            @Override
+            public void durable(List<HelloHello.NewPostRequest> posts) {
+                synchronized (requests) {
+                    // a snapshot was installed since the last batch, the posts it holds never came through here
+                    if (posts.getFirst().getTxn() != requestsToTxn + 1) requestsFromTxn = posts.getFirst().getTxn();
+                    requestsToTxn = posts.getLast().getTxn();
+                    for (var post : posts) {
+                        if (!post.getRequestId().isEmpty()) {
+                            requests.putIfAbsent(post.getRequestId(), CompletableFuture.completedFuture(post.getTxn()));
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void truncated(long lastTxn) {
+                // those posts are gone, so a retry of one of them has to be posted again
+                synchronized (requests) {
+                    requests.values().removeIf(f -> f.isDone() && !f.isCompletedExceptionally() && f.join() > lastTxn);
+                    requestsToTxn = Math.min(requestsToTxn, lastTxn);
+                    requestsFromTxn = Math.min(requestsFromTxn, lastTxn + 1);
+                }
+            }
+        });
+        Gauge.builder("replication.commit.txn", this, PostReplicator::commitTxn).register(registry);
+        Gauge.builder("replication.pending.posts", pending, Map::size).register(registry);
+        zkService.subscribe((before, after) -> {
+            if (!before.replicas().equals(after.replicas()) || !before.learners().equals(after.learners())
+                    || !before.peerInfos().equals(after.peerInfos())) {
+                updateFollowers(after);
+            }
+            boolean wasLeading = before.isLeader(zkService.myName);
+            boolean leading = after.isLeader(zkService.myName);
+            if (leading && (!wasLeading || before.leaderZxid() != after.leaderZxid())) {
+                tookOver();
+            } else if (wasLeading && !leading) {
+                steppedDown();
+            }
+        });
+        // the view may have been filled in before we subscribed
+        updateFollowers(zkService.view());
+        if (zkService.isLeading()) tookOver();
+    }
+
+    /**
+     * appends a post to the leader's log and replicates it. the future completes with the post's txn once a majority
+     * of the replicas have it. if a post with the same requestId is already in the log, or on its way, its txn is
+     * returned instead.
+     */
+    public CompletableFuture<Long> submit(String requestId, String message, String user, long timestamp) {
+        if (requestId.isEmpty()) return append(requestId, message, user, timestamp);
+        synchronized (requests) {
+            var existing = requests.get(requestId);
+            // a failed one is what a client retry after a leader change looks like, so give it another go
+            if (existing != null && !existing.isCompletedExceptionally()) return existing;
+            var committed = append(requestId, message, user, timestamp);
+            requests.put(requestId, committed);
+            return committed;
+        }
+    }
+
+    private CompletableFuture<Long> append(String requestId, String message, String user, long timestamp) {
+        // leadership and the zxid we fence with have to come from the same view
+        var view = zkService.view();
+        if (!view.isLeader(zkService.myName)) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Not the leader"));
+        }
+        var followers = this.followers;
+        var committed = new CompletableFuture<Long>();
+        var appended = postLog.appendNext(HelloHello.NewPostRequest.newBuilder()
+                .setMessage(message)
+                .setUser(user)
+                .setTimestamp(timestamp)
+                .setLeaderZxid(view.leaderZxid())
+                .setRequestId(requestId));
+        var post = appended.post();
+        pending.put(post.getTxn(), new Commit(post, committed, System.nanoTime()));
+        appended.durable().whenComplete((lastTxn, t) -> {
+            if (t != null) {
+                fail(post.getTxn(), t);
+            } else {
+                updateCommit();
+                // followers that are behind may have been waiting for this to hit the disk
+                followers.values().forEach(Follower::pump);
+            }
+        });
+        followers.values().forEach(Follower::pump);
+        return committed;
+    }
+
+    /**
+     * we just became leader. the followers have been tracking /replicas all along, so all that is left is to find
+     * out where each of them is, which we start right away rather than waiting for the first post.
+     */
+    private void tookOver() {
+        fillRequests();
+        logger.log(Level.INFO, "Taking over replication to " + followers.keySet());
+        followers.values().forEach(follower -> {
+            follower.reset();
+            follower.pump();
+        });
+    }
+
+    /**
+     * reads the requestIds of the last dedupCapacity posts in the log that requests doesn't have yet, so a retry of
+     * one of them isn't appended again. that is only after a restart or a snapshot, otherwise requests has them all.
+     */
+    private void fillRequests() {
+        long from;
+        long to;
+        synchronized (requests) {
+            from = Math.max(0, requestsToTxn - dedupCapacity + 1);
+            to = requestsFromTxn - 1;
+        }
+        if (from > to) return;
+        long started = System.nanoTime();
+        var older = new ArrayList<HelloHello.NewPostRequest>();
+        try {
+            for (long txn = from; txn <= to; ) {
+                var posts = postLog.read(txn, FILL_READ_POSTS, FILL_READ_BYTES);
+                if (posts.isEmpty()) break;
+                for (var post : posts) {
+                    if (post.getTxn() <= to) older.add(post);
+                }
+                txn = posts.getLast().getTxn() + 1;
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to read txns " + from + " to " + to + " for their requestIds", e);
+            return;
+        }
+        synchronized (requests) {
+            // the older posts go in first so they are the first to be evicted, anything newer keeps its future
+            var newer = new LinkedHashMap<>(requests);
+            requests.clear();
+            for (var post : older) {
+                if (!post.getRequestId().isEmpty()) {
+                    requests.put(post.getRequestId(), CompletableFuture.completedFuture(post.getTxn()));
+                }
+            }
+            requests.putAll(newer);
+            if (!older.isEmpty()) requestsFromTxn = Math.min(requestsFromTxn, older.getFirst().getTxn());
+        }
+        logger.log(Level.INFO, String.format("Read the requestIds of txns %d to %d from the log in %.1fms", from, to,
+                (System.nanoTime() - started) / 1e6));
+    }
+
+    /** posts that haven't committed yet never will under us, so let the callers know to try the new leader. */
+    private void steppedDown() {
+        var lost = new IllegalStateException("Lost leadership");
+        for (var e = pending.pollFirstEntry(); e != null; e = pending.pollFirstEntry()) {
+            e.getValue().committed().completeExceptionally(lost);
+        }
+    }
+
+    /** how long the oldest post that isn't committed yet has been waiting for a majority, 0 if there isn't one. */
+    public long commitLagMillis() {
+        var oldest = pending.firstEntry();
+        return oldest == null ? 0 : (System.nanoTime() - oldest.getValue().appendedNanos()) / 1_000_000;
+    }
+
+    /** the highest txn that a majority of the replicas have. */
+    public synchronized long commitTxn() {
+        return commitTxn;
+    }
+
+    private synchronized void updateFollowers(ClusterView view) {
+        var updated = new HashMap<String, Follower>();
+        var names = new ArrayList<>(view.replicas());
+        names.addAll(view.learners());
+        for (var name : names) {
+            if (name.equals(zkService.myName) || updated.containsKey(name)) continue;
+            boolean voting = view.replicas().contains(name);
+            var existing = followers.get(name);
+            var info = view.peerInfos().get(name);
+            if (existing != null && info != null && existing.hostPort.equals(info.hostPort())) {
+                // a learner that was just promoted keeps its pipe and where it had got to
+                existing.voting = voting;
+                updated.put(name, existing);
+                continue;
+            }
+            if (info == null) {
+                logger.log(Level.WARNING, "Can't find " + (voting ? "replica " : "learner ") + name
+                        + " in /peers, not replicating to it yet");
+                continue;
+            }
+            if (existing != null) existing.close();
+            updated.put(name, new Follower(name, info.hostPort(), voting));
+        }
+        followers.forEach((name, follower) -> {
+            if (!updated.containsKey(name)) follower.close();
+        });
+        followers = Map.copyOf(updated);
+        logger.log(Level.INFO, "Replicating to " + followers.keySet() + ", learners " + view.learners());
+    }
+
+    /** recomputes the commit point from the leader's durable txn and the followers' acknowledged txns. */
+    private void updateCommit() {
+        var committed = new ArrayList<Commit>();
+        synchronized (this) {
+            var replicas = zkService.view().replicas();
+            var acked = new ArrayList<Long>();
+            if (replicas.contains(zkService.myName)) acked.add(postLog.lastTxn());
+            for (var follower : followers.values()) {
+                if (follower.voting) acked.add(follower.matchTxn());
+            }
+            int majority = replicas.size() / 2 + 1;
+            if (acked.size() < majority) return;
+            acked.sort(null);
+            long newCommit = acked.get(acked.size() - majority);
+            if (newCommit <= commitTxn) return;
+            commitTxn = newCommit;
+            postLog.committed(newCommit);
+            for (var e = pending.firstEntry(); e != null && e.getKey() <= newCommit; e = pending.firstEntry()) {
+                pending.remove(e.getKey());
+                committed.add(e.getValue());
+            }
+        }
+        committed.forEach(c -> c.committed().complete(c.post().getTxn()));
+        // followers with nothing left to send still need to hear how far they can serve reads
+        followers.values().forEach(Follower::pump);
+    }
+
+    private void fail(long txn, Throwable t) {
+        logger.log(Level.SEVERE, "Failed to append txn " + txn + " locally", t);
+        var c = pending.remove(txn);
+        if (c != null) c.committed().completeExceptionally(t);
+    }
+
+    /** the post to send for txn, from memory if it isn't committed yet otherwise from the log. */
+    private HelloHello.NewPostRequest postFor(long txn) throws IOException {
+        var c = pending.get(txn);
+        if (c != null) return c.post();
+        var posts = postLog.read(txn, 1, Long.MAX_VALUE);
+        return posts.isEmpty() ? null : posts.getFirst();
+    }
+
+    private class Follower {
+        final String name;
+        final String hostPort;
+        // a learner doesn't count towards the majority
+        volatile boolean voting;
+        // guarded by this
+        private long nextTxn;
+        private long matchTxn = -1;
+        private int inFlight = 0;
+        // we only know where the follower is after asking it with getLastTxn and checking its posts are ours
+        private boolean probed = false;
+        private boolean probing = false;
+        // how far back the next probe goes when the follower's post isn't ours, doubles each time
+        private long probeStep = 1;
+        private boolean backingOff = false;
+        private boolean catchingUp = false;
+        private boolean closed = false;
+        private boolean promoting = false;
+        // what the follower told us it takes when we probed it, codec is null for uncompressed batches
+        private boolean batches = false;
+        private String codec;
+        // the highest commitTxn we have sent the follower
+        private long sentCommitTxn = -1;
+        // the last time the follower had everything in our log
+        private long caughtUpMillis = System.currentTimeMillis();
+        final private List<Meter> meters;
+
+        Follower(String name, String hostPort, boolean voting) {
+            this.name = name;
+            this.hostPort = hostPort;
+            this.voting = voting;
+            meters = List.of(
+                    Gauge.builder("replication.follower.lag.txns", this, Follower::lagTxns)
+                            .tag("follower", name).register(registry),
+                    Gauge.builder("replication.follower.lag.ms", this, Follower::lagMillis)
+                            .tag("follower", name).register(registry));
+        }
+
+        synchronized double lagTxns() {
+            if (!zkService.isLeading() || !probed) return Double.NaN;
+            return Math.max(0, postLog.lastTxn() - matchTxn);
+        }
+
+        synchronized double lagMillis() {
+            if (!zkService.isLeading() || !probed) return Double.NaN;
+            noteCaughtUp();
+            return System.currentTimeMillis() - caughtUpMillis;
+        }
+
+        // caller must hold the lock
+        private void noteCaughtUp() {
+            if (matchTxn >= postLog.lastTxn()) caughtUpMillis = System.currentTimeMillis();
+        }
+
+        // stubs are cheap, the channel underneath comes from the registry and may be replaced if the peer comes back
+        PostReplicaServiceGrpc.PostReplicaServiceStub stub() {
+            return PostReplicaServiceGrpc.newStub(peerChannels.forPeer(name, hostPort));
+        }
+
+        synchronized long matchTxn() {
+            return matchTxn;
+        }
+
+        synchronized void pump() {
+            if (closed || backingOff || catchingUp || !zkService.isLeading()) return;
+            if (!probed) {
+                probe();
+                return;
+            }
+            var snapshot = postLog.currentSnapshot();
+            if (snapshot != null && snapshot.lastTxn - matchTxn > snapshotShipThreshold) {
+                if (inFlight == 0) shipSnapshot(snapshot);
+                return;
+            }
+            if (postLog.lastTxn() - matchTxn > catchUpThreshold) {
+                // too far behind to resend post by post, stream it instead once what is in flight is done
+                if (inFlight == 0) catchUp();
+                return;
+            }
+            long leaderZxid = zkService.view().leaderZxid();
+            long commit = postLog.commitTxn();
+            while (inFlight < window && nextTxn <= postLog.acceptedTxn()) {
+                // everything the window has room for goes in one frame if the follower takes batches
+                int room = batches ? window - inFlight : 1;
+                var run = new ArrayList<HelloHello.NewPostRequest>();
+                long bytes = 0;
+                try {
+                    while (run.size() < room && bytes < catchUpBatchBytes && nextTxn + run.size() <= postLog.acceptedTxn()) {
+                        var post = postFor(nextTxn + run.size());
+                        if (post == null) break;
+                        run.add(post);
+                        bytes += post.getSerializedSize();
+                    }
+                    // committed but not yet durable here, the local append will pump us again
+                    if (run.isEmpty()) return;
+                    if (batches) {
+                        sendBatch(postBatches.encode(run, leaderZxid, commit, codec), run.getLast().getTxn(), run.size());
+                    } else {
+                        // the post keeps the zxid of the leader that wrote it, the follower fences on ours
+                        send(run.getFirst().toBuilder().setSenderZxid(leaderZxid).setCommitTxn(commit).build());
+                    }
+                    sentCommitTxn = Math.max(sentCommitTxn, commit);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Failed to read or encode txn " + nextTxn + " for " + name, e);
+                    backOff();
+                    return;
+                }
+                nextTxn += run.size();
+                inFlight += run.size();
+            }
+            if (batches && inFlight == 0 && commit > sentCommitTxn) {
+                // nothing to send, so the commitTxn goes on its own. the follower has our posts up to matchTxn
+                sentCommitTxn = commit;
+                sendBatch(HelloHello.PostBatch.newBuilder()
+                        .setLeaderZxid(leaderZxid)
+                        .setBaseTxn(matchTxn + 1)
+                        .setCommitTxn(commit)
+                        .build(), matchTxn, 0);
+            }
+            if (!voting) maybePromote();
+        }
+
+        // caller must hold the lock
+        private void maybePromote() {
+            if (promoting || postLog.lastTxn() - matchTxn > promoteLagTxns) return;
+            promoting = true;
+            logger.log(Level.INFO, "Learner " + name + " is at txn " + matchTxn + ", promoting it to replica");
+            zkService.promoteLearner(name).whenComplete((v, t) -> {
+                // on success we stay promoting until the view catches up and makes us voting
+                if (t == null) return;
+                logger.log(Level.WARNING, "Promoting " + name + " failed, will try again", t);
+                synchronized (this) {
+                    promoting = false;
+                }
+                scheduler.schedule(this::pump, retryMillis, TimeUnit.MILLISECONDS);
+            });
+        }
+
+        // a replica catching up is holding back the majority, so only learners are throttled
+        private Throttle throttle() {
+            return new Throttle(voting ? 0 : learnerBytesPerSecond);
+        }
+
+        // caller must hold the lock
+        private void catchUp() {
+            catchingUp = true;
+            long leaderZxid = zkService.view().leaderZxid();
+            caughtUpTo(batches
+                    ? CatchUpStream.startBatched(name, stub(), postLog, postBatches, codec, matchTxn + 1, leaderZxid,
+                    catchUpBatchBytes, throttle(), scheduler)
+                    : CatchUpStream.start(name, stub(), postLog, matchTxn + 1, leaderZxid, catchUpBatchBytes,
+                    throttle(), scheduler));
+        }
+
+        // caller must hold the lock
+        private void shipSnapshot(PostSnapshot snapshot) {
+            catchingUp = true;
+            caughtUpTo(SnapshotStream.start(name, stub(), snapshot, zkService.view().leaderZxid(), throttle(), scheduler));
+        }
+
+        private void caughtUpTo(CompletableFuture<Long> caughtUp) {
+            caughtUp.whenComplete((lastTxn, t) -> {
+                synchronized (this) {
+                    catchingUp = false;
+                    if (t == null && lastTxn > postLog.lastTxn()) {
+                        // it kept posts past the snapshot that we don't have, find out where we part
+                        probed = false;
+                    } else if (t == null) {
+                        matchTxn = Math.max(matchTxn, lastTxn);
+                        nextTxn = matchTxn + 1;
+                        noteCaughtUp();
+                    } else {
+                        logger.log(Level.WARNING, "Catching up " + name + " failed", t);
+                        backOff();
+                    }
+                }
+                updateCommit();
+                pump();
+            });
+        }
+
+        // caller must hold the lock
+        private void probe() {
+            if (probing) return;
+            probeStep = 1;
+            probe(HelloHello.GetLastTxnRequest.getDefaultInstance());
+        }
+
+        /**
+         * asks the follower for its lastTxn and the post it has there, or at request.txn. it only counts as having
+         * the posts up to a txn where its post is the one we have, so posts from an earlier leader that never
+         * committed don't count towards the majority. caller must hold the lock.
+         */
+        private void probe(HelloHello.GetLastTxnRequest request) {
+            probing = true;
+            stub().withDeadlineAfter(rpcTimeoutMillis, TimeUnit.MILLISECONDS).getLastTxn(request, new StreamObserver<>() {
+                @Override
+                public void onNext(HelloHello.GetLastTxnReply reply) {
+                    boolean matched;
+                    synchronized (Follower.this) {
+                        batches = reply.getBatches();
+                        codec = batches ? postBatches.pick(reply.getCodecsList()) : null;
+                        matched = probed(reply);
+                    }
+                    if (!matched) return;
+                    logger.log(Level.INFO, name + " at " + hostPort + " has lastTxn " + reply.getLastTxn()
+                            + (reply.getBatches() ? ", takes batches" + (codec != null ? " with " + codec : "") : ""));
+                    updateCommit();
+                    pump();
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    logger.log(Level.FINE, "getLastTxn from " + name + " failed", t);
+                    synchronized (Follower.this) {
+                        probing = false;
+                        backOff();
+                    }
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            });
+        }
+
+        /** works out what to do with a probe reply, returns true once we know where the follower is. caller must hold the lock. */
+        private boolean probed(HelloHello.GetLastTxnReply reply) {
+            long ours = postLog.lastTxn();
+            long theirs = reply.getLastTxn();
+            if (!reply.hasPost()) {
+                // an empty log, or a replica too old to tell us which post it has. it can't have more than we do
+                matched(Math.min(theirs, ours));
+                return true;
+            }
+            var id = reply.getPost();
+            HelloHello.NewPostRequest post = null;
+            try {
+                if (id.getTxn() <= ours) post = postFor(id.getTxn());
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to read txn " + id.getTxn() + " to check " + name, e);
+                probing = false;
+                backOff();
+                return false;
+            }
+            boolean same = post != null && post.getLeaderZxid() == id.getLeaderZxid()
+                    && post.getRequestId().equals(id.getRequestId());
+            if (same && id.getTxn() == theirs) {
+                matched(theirs);
+                return true;
+            }
+            if (same) {
+                truncate(id.getTxn());
+                return false;
+            }
+            // walk back, further each time, until we find a post we both have
+            long next = Math.min(id.getTxn(), ours + 1) - probeStep;
+            probeStep *= 2;
+            logger.log(Level.INFO, name + " has txn " + id.getTxn() + " from leader " + id.getLeaderZxid()
+                    + " that isn't ours, looking back from txn " + Math.max(next, -1));
+            if (next < 0) truncate(-1);
+            else probe(HelloHello.GetLastTxnRequest.newBuilder().setTxn(next).build());
+            return false;
+        }
+
+        // caller must hold the lock
+        private void matched(long txn) {
+            probing = false;
+            probed = true;
+            matchTxn = txn;
+            nextTxn = txn + 1;
+            noteCaughtUp();
+        }
+
+        /** has the follower throw away its posts after txn, which we have checked is ours. caller must hold the lock. */
+        private void truncate(long txn) {
+            logger.log(Level.WARNING, "Truncating " + name + " after txn " + txn + ", what it has after that never committed");
+            var request = HelloHello.TruncatePostsRequest.newBuilder()
+                    .setLeaderZxid(zkService.view().leaderZxid())
+                    .setAfterTxn(txn)
+                    .build();
+            stub().withDeadlineAfter(rpcTimeoutMillis, TimeUnit.MILLISECONDS).truncatePosts(request, new StreamObserver<>() {
+                @Override
+                public void onNext(HelloHello.NewPostReply reply) {
+                    synchronized (Follower.this) {
+                        if (reply.getStatus() != HelloHello.AddPostStatus.ADD_SUCCESS) {
+                            logger.log(Level.WARNING, name + " didn't truncate after txn " + txn + ": " + reply.getStatus());
+                            probing = false;
+                            backOff();
+                            return;
+                        }
+                        matched(Math.min(txn, reply.getLastVersion()));
+                    }
+                    updateCommit();
+                    pump();
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    logger.log(Level.FINE, "truncatePosts to " + name + " failed", t);
+                    synchronized (Follower.this) {
+                        probing = false;
+                        backOff();
+                    }
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            });
+        }
+
+        private void send(HelloHello.NewPostRequest post) {
+            stub().withDeadlineAfter(rpcTimeoutMillis, TimeUnit.MILLISECONDS).newPost(post, new StreamObserver<>() {
+                @Override
+                public void onNext(HelloHello.NewPostReply reply) {
+                    onReply(post.getTxn(), 1, reply);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    logger.log(Level.FINE, "newPost of txn " + post.getTxn() + " to " + name + " failed", t);
+                    synchronized (Follower.this) {
+                        inFlight--;
+                        backOff();
+                    }
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            });
+        }
+
+        private void sendBatch(HelloHello.PostBatch batch, long lastTxn, int posts) {
+            stub().withDeadlineAfter(rpcTimeoutMillis, TimeUnit.MILLISECONDS).newPosts(batch, new StreamObserver<>() {
+                @Override
+                public void onNext(HelloHello.NewPostReply reply) {
+                    onReply(lastTxn, posts, reply);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    logger.log(Level.FINE, "newPosts of txns " + batch.getBaseTxn() + " to " + lastTxn + " to " + name + " failed", t);
+                    synchronized (Follower.this) {
+                        inFlight -= posts;
+                        // a commitTxn on its own is sent again once we are back
+                        if (posts == 0) sentCommitTxn = Math.min(sentCommitTxn, batch.getCommitTxn() - 1);
+                        backOff();
+                    }
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            });
+        }
+
+        /** txn is the last of the posts that were sent together. */
+        private void onReply(long txn, int posts, HelloHello.NewPostReply reply) {
+            boolean advanced = false;
+            synchronized (this) {
+                inFlight -= posts;
+                switch (reply.getStatus()) {
+                    case ADD_SUCCESS -> {
+                        if (txn > matchTxn) {
+                            matchTxn = txn;
+                            advanced = true;
+                            noteCaughtUp();
+                        }
+                    }
+                    case ADD_MISSING_TXN -> {
+                        // the follower is missing everything after last_version, go back and resend from there. past
+                        // what we have sent it, last_version can't be trusted to be ours
+                        matchTxn = Math.max(matchTxn, Math.min(reply.getLastVersion(), nextTxn - 1));
+                        long from = matchTxn + 1;
+                        if (from < nextTxn) {
+                            logger.log(Level.FINE, name + " is missing txns from " + from + ", retransmitting");
+                            nextTxn = from;
+                        }
+                    }
+                    default -> {
+                        logger.log(Level.FINE, name + " rejected txn " + txn + ": " + reply.getStatus());
+                        backOff();
+                    }
+                }
+            }
+            if (advanced) updateCommit();
+            pump();
+        }
+
+        // caller must hold the lock
+        private void backOff() {
+            // anything after matchTxn may or may not have made it, the follower will sort out duplicates
+            nextTxn = Math.min(nextTxn, matchTxn + 1);
+            if (backingOff || closed) return;
+            if (inFlight == 0) probed = false;
+            backingOff = true;
+            scheduler.schedule(() -> {
+                synchronized (this) {
+                    backingOff = false;
+                }
+                pump();
+            }, retryMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /** forget what we knew about the follower, it will be asked again on the next pump. */
+        synchronized void reset() {
+            probed = false;
+            matchTxn = -1;
+            sentCommitTxn = -1;
+            caughtUpMillis = System.currentTimeMillis();
+        }
+
+        synchronized void close() {
+            closed = true;
+            meters.forEach(registry::remove);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        synchronized (this) {
+            followers.values().forEach(Follower::close);
+        }
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,210 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Every post from firstTxn to lastTxn in one read-only file, read through memory mappings.
+ * <p>
+ * The file is {@code [int magic][int version][long firstTxn][long lastTxn][long indexOffset]}, then the post bytes
+ * back to back, then one long per txn with the file offset of its post and a last long with the offset where the
+ * posts end, so finding a post is two index reads and its length is the difference between them. Snapshots are
+ * written under a temporary name, fsynced and renamed, so one that is on disk under its real name is complete and
+ * the posts don't need their own checksums. A snapshot that follows on from an earlier one starts as a byte copy of
+ * its posts and index, which stay valid as they are because the posts start at the same offset, and only the posts
+ * after it are written out one by one.
+ * <p>
+ * A single mapping can't be bigger than 2GB, so the file is mapped in CHUNK_BYTES pieces that each run
+ * MAX_POST_BYTES into the next one. A post (or index entry) always lies entirely within the chunk it starts in.
+ */
+final class PostSnapshot {
+    static final String SUFFIX = ".snap";
+    static final int MAGIC = 0x48534e50;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+    static final long CHUNK_BYTES = 1L << 30;
+    static final int MAX_POST_BYTES = 16 << 20;
+
+    final Path path;
+    final long firstTxn;
+    final long lastTxn;
+    final private long indexOffset;
+    final private MappedByteBuffer[] chunks;
+
+    /** where the posts come from when writing a snapshot, a batch at a time in txn order. */
+    interface Source {
+        List<HelloHello.NewPostRequest> read(long fromTxn) throws IOException;
+    }
+
+    private PostSnapshot(Path path, long firstTxn, long lastTxn, long indexOffset, MappedByteBuffer[] chunks) {
+        this.path = path;
+        this.firstTxn = firstTxn;
+        this.lastTxn = lastTxn;
+        this.indexOffset = indexOffset;
+        this.chunks = chunks;
+    }
+
+    /** maps a snapshot. the mappings stay valid after the file is deleted, until we are garbage collected. */
+    static PostSnapshot open(Path path) throws IOException {
+        try (var ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            var header = ByteBuffer.allocate(HEADER_BYTES);
+            if (size < HEADER_BYTES || ch.read(header, 0) != HEADER_BYTES) {
+                throw new IOException(path + " is too short to be a snapshot");
+            }
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException(path + " is not a version " + VERSION + " snapshot");
+            }
+            long firstTxn = header.getLong(8);
+            long lastTxn = header.getLong(16);
+            long indexOffset = header.getLong(24);
+            if (lastTxn < firstTxn || indexOffset + (lastTxn - firstTxn + 2) * Long.BYTES != size) {
+                throw new IOException(path + " is truncated");
+            }
+            var chunks = new MappedByteBuffer[(int) ((size + CHUNK_BYTES - 1) / CHUNK_BYTES)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = i * CHUNK_BYTES;
+                chunks[i] = ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, CHUNK_BYTES + MAX_POST_BYTES));
+            }
+            return new PostSnapshot(path, firstTxn, lastTxn, indexOffset, chunks);
+        }
+    }
+
+    private long offset(long txn) {
+        long pos = indexOffset + (txn - firstTxn) * Long.BYTES;
+        return chunks[(int) (pos / CHUNK_BYTES)].getLong((int) (pos % CHUNK_BYTES));
+    }
+
+    /** how many bytes the posts take. */
+    long postBytes() {
+        return indexOffset - HEADER_BYTES;
+    }
+
+    boolean contains(long txn) {
+        return txn >= firstTxn && txn <= lastTxn;
+    }
+
+    /** how many bytes the post for txn takes. */
+    int sizeOf(long txn) {
+        return (int) (offset(txn + 1) - offset(txn));
+    }
+
+    HelloHello.NewPostRequest get(long txn) throws InvalidProtocolBufferException {
+        long start = offset(txn);
+        var post = chunks[(int) (start / CHUNK_BYTES)].slice((int) (start % CHUNK_BYTES), sizeOf(txn));
+        return HelloHello.NewPostRequest.parseFrom(post);
+    }
+
+    static String fileName(long lastTxn) {
+        return String.format("%020d%s", lastTxn, SUFFIX);
+    }
+
+    static long lastTxnOf(Path snapshot) {
+        var name = snapshot.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * writes the posts from firstTxn through lastTxn to dir and returns the new snapshot, opened. if base isn't null
+     * it must start at firstTxn, and its posts are copied rather than read from source.
+     */
+    static PostSnapshot write(Path dir, PostSnapshot base, long firstTxn, long lastTxn, Source source) throws IOException {
+        if (base != null && base.firstTxn != firstTxn) {
+            throw new IllegalArgumentException("snapshot starts at " + base.firstTxn + ", not " + firstTxn);
+        }
+        var path = dir.resolve(fileName(lastTxn));
+        var tmp = dir.resolve(fileName(lastTxn) + ".tmp");
+        var indexTmp = dir.resolve(fileName(lastTxn) + ".idx.tmp");
+        try {
+            long pos;
+            long txn;
+            if (base != null) {
+                pos = base.copyTo(tmp, indexTmp);
+                txn = base.lastTxn + 1;
+            } else {
+                Files.write(tmp, new byte[HEADER_BYTES]);
+                Files.write(indexTmp, new byte[0]);
+                pos = HEADER_BYTES;
+                txn = firstTxn;
+            }
+            try (var data = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(tmp, StandardOpenOption.APPEND), 1 << 16));
+                 var index = new DataOutputStream(new BufferedOutputStream(
+                         Files.newOutputStream(indexTmp, StandardOpenOption.APPEND), 1 << 16))) {
+                while (txn <= lastTxn) {
+                    var posts = source.read(txn);
+                    if (posts.isEmpty()) throw new IOException("log ends at txn " + (txn - 1) + ", wanted " + lastTxn);
+                    for (var post : posts) {
+                        if (txn > lastTxn) break;
+                        if (post.getTxn() != txn) throw new IOException("expected txn " + txn + " but got " + post.getTxn());
+                        var bytes = post.toByteArray();
+                        if (bytes.length > MAX_POST_BYTES) throw new IOException("txn " + txn + " is too big to snapshot");
+                        index.writeLong(pos);
+                        data.write(bytes);
+                        pos += bytes.length;
+                        txn++;
+                    }
+                }
+                index.writeLong(pos);
+            }
+            try (var ch = FileChannel.open(tmp, StandardOpenOption.WRITE);
+                 var index = FileChannel.open(indexTmp, StandardOpenOption.READ)) {
+                long indexSize = index.size();
+                for (long copied = 0; copied < indexSize; ) {
+                    copied += index.transferTo(copied, indexSize - copied, ch.position(pos + copied));
+                }
+                var header = ByteBuffer.allocate(HEADER_BYTES)
+                        .putInt(MAGIC).putInt(VERSION).putLong(firstTxn).putLong(lastTxn).putLong(pos).flip();
+                while (header.hasRemaining()) ch.write(header, header.position());
+                ch.force(true);
+            }
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            syncDir(dir);
+            return open(path);
+        } finally {
+            Files.deleteIfExists(tmp);
+            Files.deleteIfExists(indexTmp);
+        }
+    }
+
+    /**
+     * copies the header and posts to data and the index entries of the posts (but not the end offset after them)
+     * to index, and returns where the posts end.
+     */
+    private long copyTo(Path data, Path index) throws IOException {
+        try (var from = FileChannel.open(path, StandardOpenOption.READ);
+             var to = FileChannel.open(data, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             var toIndex = FileChannel.open(index, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            transfer(from, 0, indexOffset, to);
+            transfer(from, indexOffset, (lastTxn - firstTxn + 1) * Long.BYTES, toIndex);
+        }
+        return indexOffset;
+    }
+
+    private static void transfer(FileChannel from, long start, long count, FileChannel to) throws IOException {
+        for (long copied = 0; copied < count; ) {
+            long n = from.transferTo(start + copied, count - copied, to);
+            if (n <= 0) throw new IOException("snapshot ended at " + (start + copied) + " while copying it");
+            copied += n;
+        }
+    }
+
+    /** makes renames and deletes in dir durable. */
+    static void syncDir(Path dir) throws IOException {
+        try (var ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The last recentPostsCapacity durable posts, in memory, for serving reads.
+ * <p>
+ * Posts go into a ring indexed by txn as the PostLog makes them durable, before lastTxn moves past them, so anything
+ * up to lastTxn that is still in the ring can be read without touching the disk. Older posts, or slots that have
+ * already been reused by newer txns, are read from the log. Only committed posts are handed out, see
+ * {@link PostLog#commitTxn}, the ones after that can still be replaced.
+ */
+@Service
+public class RecentPosts {
+    // reads are bounded anyway, this just stops one read from pulling a huge range off the disk
+    private static final long MAX_READ_BYTES = 4 << 20;
+    final private PostLog postLog;
+    final private AtomicReferenceArray<HelloHello.NewPostRequest> ring;
+    final private Counter memoryReads;
+    final private Counter logReads;
+
+    RecentPosts(PostLog postLog, MeterRegistry registry, @Value("${recentPostsCapacity:65536}") int capacity) {
+        this.postLog = postLog;
+        this.ring = new AtomicReferenceArray<>(capacity);
+        memoryReads = Counter.builder("posts.reads").tag("source", "memory").register(registry);
+        logReads = Counter.builder("posts.reads").tag("source", "log").register(registry);
+        postLog.subscribe(posts -> posts.forEach(post -> ring.set(slot(post.getTxn()), post)));
+    }
+
+    private int slot(long txn) {
+        return (int) Math.floorMod(txn, (long) ring.length());
+    }
+
+    /** up to limit committed posts starting at fromTxn and ending no later than upToTxn. */
+    public List<HelloHello.NewPostRequest> read(long fromTxn, int limit, long upToTxn) throws IOException {
+        var posts = new ArrayList<HelloHello.NewPostRequest>();
+        long txn = Math.max(0, fromTxn);
+        upToTxn = Math.min(upToTxn, postLog.commitTxn());
+        while (txn <= upToTxn && posts.size() < limit) {
+            var post = ring.get(slot(txn));
+            if (post == null || post.getTxn() != txn) break;
+            posts.add(post);
+            txn++;
+        }
+        memoryReads.increment(posts.size());
+        if (txn <= upToTxn && posts.size() < limit) {
+            // everything from here on comes from the log in one go, it is cheaper than hopping back and forth
+            int fromMemory = posts.size();
+            for (var post : postLog.read(txn, limit - posts.size(), MAX_READ_BYTES)) {
+                if (post.getTxn() > upToTxn) break;
+                posts.add(post);
+            }
+            logReads.increment(posts.size() - fromMemory);
+        }
+        return posts;
+    }
+
+    /** the committed posts with the given txns, in the same order. txns that aren't committed are left out. */
+    public List<HelloHello.NewPostRequest> get(long[] txns) throws IOException {
+        var posts = new ArrayList<HelloHello.NewPostRequest>(txns.length);
+        long upToTxn = postLog.commitTxn();
+        for (long txn : txns) {
+            if (txn < 0 || txn > upToTxn) continue;
+            var post = ring.get(slot(txn));
+            if (post != null && post.getTxn() == txn) {
+                posts.add(post);
+                memoryReads.increment();
+                continue;
+            }
+            var read = postLog.read(txn, 1, MAX_READ_BYTES);
+            if (!read.isEmpty()) {
+                posts.add(read.getFirst());
+                logReads.increment();
+            }
+        }
+        return posts;
+    }
+}
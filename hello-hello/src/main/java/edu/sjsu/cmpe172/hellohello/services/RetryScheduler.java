@@ -0,0 +1,97 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Retries failed ZooKeeper operations off the ZooKeeper event thread.
+ * <p>
+ * Each key (usually the path being refreshed) backs off exponentially with jitter, starting at baseMillis and capped
+ * at maxMillis, and is reset by {@link #succeeded}. Only one retry per key is ever pending; asking again while one is
+ * waiting is a no-op, so a burst of failures turns into a single refresh.
+ */
+@Component
+public class RetryScheduler {
+    private static final Logger logger = Logger.getLogger(RetryScheduler.class.getName());
+    final private long baseMillis;
+    final private long maxMillis;
+    final private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("zk-retry").daemon().factory());
+    // key -> number of retries since the last success
+    final private ConcurrentHashMap<String, Integer> attempts = new ConcurrentHashMap<>();
+    final private ConcurrentHashMap<String, Boolean> pending = new ConcurrentHashMap<>();
+    final private AtomicLong retries = new AtomicLong();
+    final private AtomicLong coalesced = new AtomicLong();
+
+    RetryScheduler(@Value("${zkRetryBaseMillis:50}") long baseMillis, @Value("${zkRetryMaxMillis:5000}") long maxMillis,
+                   MeterRegistry registry) {
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+        FunctionCounter.builder("zk.retries", retries, AtomicLong::get)
+                .description("zookeeper operations scheduled for another try")
+                .register(registry);
+        FunctionCounter.builder("zk.retries.coalesced", coalesced, AtomicLong::get)
+                .description("retries dropped because one for the same key was already waiting")
+                .register(registry);
+    }
+
+    /** runs action after the next backoff delay for key, unless a retry for key is already waiting. */
+    public void retry(String key, Runnable action) {
+        // zookeeper callbacks can still come in while we are shutting down
+        if (scheduler.isShutdown()) return;
+        if (pending.putIfAbsent(key, true) != null) {
+            coalesced.incrementAndGet();
+            return;
+        }
+        int attempt = attempts.merge(key, 1, Integer::sum);
+        long delay = delayMillis(attempt);
+        retries.incrementAndGet();
+        logger.log(Level.FINE, "Retrying " + key + " in " + delay + "ms (attempt " + attempt + ")");
+        scheduler.schedule(() -> {
+            pending.remove(key);
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Retry of " + key + " failed", e);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /** resets the backoff for key. */
+    public void succeeded(String key) {
+        attempts.remove(key);
+    }
+
+    // half the delay is fixed and half is random, so retries from many peers don't line up
+    private long delayMillis(int attempt) {
+        long ceiling = Math.min(maxMillis, baseMillis << Math.min(attempt - 1, 20));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    /** how many retries have been scheduled. */
+    public long retries() {
+        return retries.get();
+    }
+
+    /** how many retries were dropped because one for the same key was already pending. */
+    public long coalesced() {
+        return coalesced.get();
+    }
+
+    @PreDestroy
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
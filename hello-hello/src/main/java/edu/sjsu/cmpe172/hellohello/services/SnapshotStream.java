@@ -0,0 +1,144 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import com.google.protobuf.ByteString;
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import edu.sjsu.cmpe172.hellohello.PostReplicaServiceGrpc;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the leader's snapshot file to a follower with installSnapshot.
+ * <p>
+ * Like {@link CatchUpStream}, chunks are only read while gRPC says the stream is ready, so one chunk per follower
+ * sits in the heap however big the snapshot is. The file is opened up front, so the snapshotter can replace and
+ * delete it while we are still sending. The returned future completes with the follower's lastTxn once it has
+ * installed the snapshot. A throttle paces it the same way.
+ */
+class SnapshotStream implements ClientResponseObserver<HelloHello.SnapshotChunk, HelloHello.InstallSnapshotReply> {
+    private static final Logger logger = Logger.getLogger(SnapshotStream.class.getName());
+    private static final int CHUNK_BYTES = 1 << 20;
+    private static final long MIN_PAUSE_NANOS = 10_000_000L;
+    final private String name;
+    final private FileChannel file;
+    final private long lastTxn;
+    final private long leaderZxid;
+    final private Throttle throttle;
+    final private ScheduledExecutorService scheduler;
+    final private CompletableFuture<Long> done = new CompletableFuture<>();
+    final private long startNanos = System.nanoTime();
+    private ClientCallStreamObserver<HelloHello.SnapshotChunk> requests;
+    // guarded by this
+    private long sent = 0;
+    private boolean finished = false;
+    private boolean paused = false;
+
+    private SnapshotStream(String name, FileChannel file, long lastTxn, long leaderZxid, Throttle throttle,
+                           ScheduledExecutorService scheduler) {
+        this.name = name;
+        this.file = file;
+        this.lastTxn = lastTxn;
+        this.leaderZxid = leaderZxid;
+        this.throttle = throttle;
+        this.scheduler = scheduler;
+    }
+
+    static CompletableFuture<Long> start(String name, PostReplicaServiceGrpc.PostReplicaServiceStub stub,
+                                         PostSnapshot snapshot, long leaderZxid, Throttle throttle,
+                                         ScheduledExecutorService scheduler) {
+        FileChannel file;
+        try {
+            file = FileChannel.open(snapshot.path, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        var stream = new SnapshotStream(name, file, snapshot.lastTxn, leaderZxid, throttle, scheduler);
+        logger.log(Level.INFO, "Sending " + name + " snapshot " + snapshot.path);
+        stub.installSnapshot(stream);
+        return stream.done.whenComplete((lastTxn, t) -> stream.close());
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<HelloHello.SnapshotChunk> requests) {
+        this.requests = requests;
+        requests.setOnReadyHandler(this::drain);
+    }
+
+    private synchronized void drain() {
+        try {
+            var buf = ByteBuffer.allocate(CHUNK_BYTES);
+            while (!finished && !paused && requests.isReady()) {
+                buf.clear();
+                int n = file.read(buf, sent);
+                if (n < 0) {
+                    finished = true;
+                    requests.onCompleted();
+                    return;
+                }
+                buf.flip();
+                requests.onNext(HelloHello.SnapshotChunk.newBuilder()
+                        .setLastTxn(lastTxn)
+                        .setLeaderZxid(leaderZxid)
+                        .setData(ByteString.copyFrom(buf))
+                        .build());
+                sent += n;
+                long wait = throttle.sent(n);
+                if (wait > MIN_PAUSE_NANOS) {
+                    paused = true;
+                    scheduler.schedule(this::resume, wait, TimeUnit.NANOSECONDS);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to read the snapshot for " + name, e);
+            finished = true;
+            requests.onError(e);
+        }
+    }
+
+    private void resume() {
+        synchronized (this) {
+            paused = false;
+        }
+        drain();
+    }
+
+    private synchronized void close() {
+        finished = true;
+        try {
+            file.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to close the snapshot sent to " + name, e);
+        }
+    }
+
+    @Override
+    public void onNext(HelloHello.InstallSnapshotReply reply) {
+        if (reply.getStatus() == HelloHello.SyncWithLeaderStatus.SYNC_SUCCESS) {
+            double seconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+            logger.log(Level.INFO, String.format("%s installed the snapshot and is at txn %d, sent %d bytes in %.1fs",
+                    name, reply.getLastTxn(), sent, seconds));
+            done.complete(reply.getLastTxn());
+        } else {
+            done.completeExceptionally(new IllegalStateException(name + " rejected the snapshot: " + reply.getStatus()));
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        done.completeExceptionally(t);
+    }
+
+    @Override
+    public void onCompleted() {
+        done.completeExceptionally(new IllegalStateException(name + " closed the snapshot stream without a reply"));
+    }
+}
@@ -0,0 +1,23 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+/**
+ * Paces a stream to bytesPerSecond. Time the stream spends idle isn't saved up, so after a stall it doesn't get to
+ * burst above the cap to make up for it. A bytesPerSecond of 0 or less means no limit.
+ */
+final class Throttle {
+    final private long bytesPerSecond;
+    // when the bytes sent so far will have been paid for
+    private long freeAtNanos = System.nanoTime();
+
+    Throttle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /** counts bytes as sent, and returns how many nanoseconds to wait before sending more. */
+    synchronized long sent(long bytes) {
+        if (bytesPerSecond <= 0) return 0;
+        long now = System.nanoTime();
+        freeAtNanos = Math.max(freeAtNanos, now) + bytes * 1_000_000_000L / bytesPerSecond;
+        return Math.max(0, freeAtNanos - now);
+    }
+}
@@ -1,19 +1,39 @@
 package edu.sjsu.cmpe172.hellohello.services;
 
+import edu.sjsu.cmpe172.election.LeaderElection;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PostConstruct;
 import org.apache.zookeeper.AddWatchMode;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,26 +41,62 @@ import java.util.logging.Logger;
 @Service
 public class ZKService {
     private static final Logger logger = Logger.getLogger(ZKService.class.getName());
-    public boolean connected = false;
-    public String leaderPeer = null;
-    public long leaderZxid = -1;
     public String myName = null;
-    public boolean watching = false;
     public ZooKeeper zk;
-    public List<String> peers = List.of();
     final public String myDescription;
-    public List<String> replicas;
-    private int replicasVersion = -1;
+    final private RetryScheduler retryScheduler;
+    final private DownstreamLimiter limiter;
+    final private MeterRegistry registry;
+    final private Timer electionTimer;
+    final private LeaderElection election;
+    // written by the zookeeper event thread (mostly), read by everyone. see view()
+    final private AtomicReference<ClusterView> view = new AtomicReference<>(ClusterView.INITIAL);
+    final private List<ClusterListener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong peerGeneration = new AtomicLong();
+    // completes once the view has had a full snapshot of /peers
+    private final CompletableFuture<Void> peerInfosLoaded = new CompletableFuture<>();
+    // when we noticed /leader was gone, 0 if there is a leader
+    private volatile long leaderLostNanos = 0;
+    private volatile long lastElectionMillis = -1;
+    private final AtomicLong elections = new AtomicLong();
+
+    /** what a peer put in /peers/&lt;name&gt; when it started, parsed. */
+    public record PeerInfo(String name, String hostPort, String description, long mzxid) {}
+
+    /** called after every change to the view, on the thread that made the change. */
+    public interface ClusterListener {
+        void changed(ClusterView before, ClusterView after);
+    }
+
+    /** asked before we take over as leader, see {@link LeaderElection.Listener#readyToLead}. */
+    public interface LeaderCheck {
+        CompletableFuture<Boolean> readyToLead();
+    }
+
+    // null until whoever checks has started, we don't lead before then
+    private volatile LeaderCheck leaderCheck;
 
     ZKService(@Value("${zkConnectString}") String connectString, @Value("${grpc.server.port}") int grpcPort,
-              @Value("${myDescription}") String myDescription, @Value("${serverId}") String serverId)
+              @Value("${myDescription}") String myDescription, @Value("${serverId}") String serverId,
+              RetryScheduler retryScheduler, DownstreamLimiter limiter, MeterRegistry registry)
             throws IOException, InterruptedException, KeeperException {
         this.myDescription = myDescription;
+        this.retryScheduler = retryScheduler;
+        this.limiter = limiter;
+        this.registry = registry;
         this.myName = serverId;
+        electionTimer = Timer.builder("zk.election")
+                .description("time from noticing /leader was gone until we were leading")
+                .register(registry);
+        FunctionCounter.builder("zk.elections", elections, AtomicLong::get)
+                .description("times we became leader after finding /leader missing")
+                .register(registry);
+        Gauge.builder("zk.connected", this, service -> service.view().connected() ? 1 : 0).register(registry);
+        Gauge.builder("zk.leading", this, service -> service.isLeading() ? 1 : 0).register(registry);
         zk = new ZooKeeper(connectString, 3000, event -> {
             switch (event.getState()) {
-                case SyncConnected -> connected = true;
-                case Disconnected -> connected = false;
+                case SyncConnected -> update(v -> v.withConnected(true));
+                case Disconnected -> update(v -> v.withConnected(false));
                 case Expired -> {
                     logger.log(Level.SEVERE, "ZooKeeper session expired");
                     System.exit(2);
@@ -64,143 +120,383 @@ public class ZKService {
             zk.create("/peers/" + myName, (hostAddress + ":" + grpcPort + "\n" + myDescription).getBytes(),
                     ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
         }
+        election = new LeaderElection(zk, "/election", "/leader", myName.getBytes(), new LeaderElection.Listener() {
+                    @Override
+                    public void elected(Stat leaderStat) {
+                        ZKService.this.elected(leaderStat);
+                    }
+
+                    @Override
+                    public CompletableFuture<Boolean> readyToLead() {
+                        var check = leaderCheck;
+                        return check == null ? CompletableFuture.completedFuture(false) : check.readyToLead();
+                    }
+                },
+                new LeaderElection.Retries() {
+                    @Override
+                    public void retry(String key, Runnable action) {
+                        retryScheduler.retry(key, action);
+                    }
+
+                    @Override
+                    public void succeeded(String key) {
+                        retryScheduler.succeeded(key);
+                    }
+                });
+        FunctionCounter.builder("zk.election.notifications", election, LeaderElection::notifications)
+                .description("election watches that woke us up")
+                .register(registry);
+    }
+
+    /** the current state of the cluster. it is immutable, so grab it once and read everything you need from it. */
+    public ClusterView view() {
+        return view.get();
+    }
+
+    public void subscribe(ClusterListener listener) {
+        listeners.add(listener);
+    }
+
+    /** sets what decides whether we are fit to lead when the election gets to us. */
+    public void checkBeforeLeading(LeaderCheck check) {
+        leaderCheck = check;
+    }
+
+    private void update(UnaryOperator<ClusterView> change) {
+        ClusterView before, after;
+        do {
+            before = view.get();
+            after = change.apply(before);
+            if (after.equals(before)) return;
+            after = after.nextVersion();
+        } while (!view.compareAndSet(before, after));
+        for (var listener : listeners) {
+            try {
+                listener.changed(before, after);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Cluster listener failed", e);
+            }
+        }
     }
 
     @PostConstruct
     public void postInit() throws InterruptedException, KeeperException {
+        subscribe((before, after) -> {
+            boolean canLead = canLead(after);
+            if (canLead == canLead(before)) return;
+            if (canLead) {
+                election.join();
+            } else {
+                if (!after.watching()) logger.log(Level.WARNING, "Not in replicas list, cannot become leader");
+                election.leave();
+            }
+        });
         zk.addWatch("/leader", leaderWatch, AddWatchMode.PERSISTENT);
         zk.addWatch("/replicas", event -> getReplicas(), AddWatchMode.PERSISTENT);
+        zk.addWatch("/learners", event -> getLearners(), AddWatchMode.PERSISTENT);
         zk.addWatch("/peers", peerWatch, AddWatchMode.PERSISTENT);
         getChildren();
         getReplicas();
+        getLearners();
         getLeader();
     }
 
+    /** records how long a zookeeper call took to call us back. */
+    private void timed(String op, long startedNanos) {
+        Timer.builder("zk.callback").tag("op", op).register(registry)
+                .record(System.nanoTime() - startedNanos, TimeUnit.NANOSECONDS);
+    }
+
     private void getReplicas() {
+        long started = System.nanoTime();
         zk.getData("/replicas", false, (rc, path, ctx, data, stat) -> {
+            timed("getReplicas", started);
             if (rc == KeeperException.Code.NONODE.intValue()) {
                 logger.log(Level.WARNING, "/replicas does not exist");
-                replicas = List.of();
+                update(v -> v.withReplicas(List.of(), -1));
                 return;
             } else if (rc != KeeperException.Code.OK.intValue()) {
                 logger.log(Level.SEVERE, "Error getting data of /replicas: " + KeeperException.Code.get(rc));
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                    // i really hate the interrupted exception!
-                }
-                getReplicas();
+                retryScheduler.retry("/replicas", this::getReplicas);
+                return;
+            }
+            retryScheduler.succeeded("/replicas");
+            var replicas = List.of(new String(data).split(","));
+            update(v -> v.withReplicas(replicas, stat.getVersion()));
+            logger.log(Level.FINE, "Current replicas: " + replicas);
+        }, null);
+    }
+
+    private void getLearners() {
+        long started = System.nanoTime();
+        zk.getData("/learners", false, (rc, path, ctx, data, stat) -> {
+            timed("getLearners", started);
+            if (rc == KeeperException.Code.NONODE.intValue()) {
+                // nobody has ever added one
+                update(v -> v.withLearners(List.of(), -1));
+                return;
+            } else if (rc != KeeperException.Code.OK.intValue()) {
+                logger.log(Level.SEVERE, "Error getting data of /learners: " + KeeperException.Code.get(rc));
+                retryScheduler.retry("/learners", this::getLearners);
                 return;
             }
-            replicas = List.of(new String(data).split(","));
-            replicasVersion = stat.getVersion();
-            logger.log(Level.INFO, "Current replicas: " + replicas);
+            retryScheduler.succeeded("/learners");
+            var learners = Arrays.stream(new String(data).split(",")).filter(l -> !l.isEmpty()).toList();
+            update(v -> v.withLearners(learners, stat.getVersion()));
+            logger.log(Level.FINE, "Current learners: " + learners);
         }, null);
     }
 
+    /**
+     * adds name to /learners, so the leader starts catching it up. it is moved into /replicas once it has, see
+     * {@link #promoteLearner}. does nothing if name is already a replica or a learner.
+     */
+    public void addLearner(String name) throws InterruptedException, KeeperException {
+        var current = view();
+        if (!current.isLeader(myName)) {
+            throw new IllegalStateException("Not the leader");
+        }
+        if (current.replicas().contains(name) || current.learners().contains(name)) return;
+        var learners = new ArrayList<>(current.learners());
+        learners.add(name);
+        if (!limiter.acquire(DownstreamLimiter.ZOOKEEPER)) {
+            throw new RejectedExecutionException("too many calls outstanding to zookeeper");
+        }
+        try {
+            var data = String.join(",", learners).getBytes();
+            if (current.learnersVersion() < 0) {
+                zk.create("/learners", data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            } else {
+                zk.setData("/learners", data, current.learnersVersion());
+            }
+        } finally {
+            limiter.release(DownstreamLimiter.ZOOKEEPER);
+        }
+        logger.log(Level.INFO, "Added " + name + " as a learner");
+    }
+
+    /**
+     * moves name from /learners to /replicas in one multi, against the versions of both we have in our view, so
+     * it fails rather than overwrite a change we haven't seen yet.
+     */
+    public CompletableFuture<Void> promoteLearner(String name) {
+        var current = view();
+        if (!current.isLeader(myName)) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Not the leader"));
+        }
+        if (!current.learners().contains(name)) {
+            return CompletableFuture.failedFuture(new IllegalStateException(name + " is not a learner"));
+        }
+        var replicas = new ArrayList<>(current.replicas());
+        replicas.add(name);
+        var learners = new ArrayList<>(current.learners());
+        learners.remove(name);
+        var done = new CompletableFuture<Void>();
+        long started = System.nanoTime();
+        zk.multi(List.of(
+                Op.setData("/replicas", String.join(",", replicas).getBytes(), current.replicasVersion()),
+                Op.setData("/learners", String.join(",", learners).getBytes(), current.learnersVersion())),
+                (rc, path, ctx, results) -> {
+                    timed("promoteLearner", started);
+                    if (rc == KeeperException.Code.OK.intValue()) {
+                        logger.log(Level.INFO, "Promoted " + name + " from learner to replica, replicas are now " + replicas);
+                        done.complete(null);
+                    } else {
+                        done.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), "/replicas"));
+                    }
+                }, null);
+        return done;
+    }
+
     public void setReplicas(String commaSeparatedReplicas) throws InterruptedException, KeeperException {
-        if (!myName.equals(leaderPeer)) {
+        var current = view();
+        if (!current.isLeader(myName)) {
             logger.log(Level.SEVERE, "Cannot set /replicas because we don't know its version");
             throw new IllegalStateException("Not the leader");
         }
-        zk.setData("/replicas", commaSeparatedReplicas.getBytes(), replicasVersion);
+        // this one blocks the caller, so it counts against the zookeeper limit
+        if (!limiter.acquire(DownstreamLimiter.ZOOKEEPER)) {
+            throw new RejectedExecutionException("too many calls outstanding to zookeeper");
+        }
+        try {
+            zk.setData("/replicas", commaSeparatedReplicas.getBytes(), current.replicasVersion());
+        } finally {
+            limiter.release(DownstreamLimiter.ZOOKEEPER);
+        }
     }
 
     private void getLeader() {
+        long started = System.nanoTime();
         zk.getData("/leader", false, (rc, path, ctx, data, stat) -> {
+            timed("getLeader", started);
             if (rc == KeeperException.Code.NONODE.intValue()) {
-                logger.log(Level.INFO, "/leader does not exist");
-                leaderPeer = null;
-                if (!watching) {
-                    if (!replicas.contains(myName)) {
-                        logger.log(Level.WARNING, "Not in replicas list, cannot become leader");
-                        return;
-                    }
-                    logger.log(Level.INFO, "trying to become leader");
-                    zk.create("/leader", myName.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL, (rc2, path2, ctx2, name) -> {
-                        if (rc2 == KeeperException.Code.OK.intValue()) {
-                            // the watch should trigger and we will find out that we are the leader
-                            logger.log(Level.INFO, "Became leader: " + leaderPeer);
-                        } else if (rc2 == KeeperException.Code.NODEEXISTS.intValue()) {
-                            logger.log(Level.INFO, "Another peer became leader before us");
-                            getLeader();
-                        } else {
-                            logger.log(Level.SEVERE, "Error creating /leader: " + KeeperException.Code.get(rc2));
-                        }
-                    }, null);
-                }
+                logger.log(Level.FINE, "/leader does not exist");
+                leaderGone();
                 return;
             } if (rc != KeeperException.Code.OK.intValue()) {
                 logger.log(Level.SEVERE, "Error getting data of /leader: " + KeeperException.Code.get(rc));
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                    // i really hate the interrupted exception!
-                }
-                getLeader();
+                retryScheduler.retry("/leader", this::getLeader);
                 return;
             }
-            leaderPeer = new String(data);
-            leaderZxid = stat.getMzxid();
-            logger.log(Level.INFO, "Current leader: " + leaderPeer);
+            retryScheduler.succeeded("/leader");
+            var leaderPeer = new String(data);
+            if (!leaderPeer.equals(myName)) leaderLostNanos = 0;
+            update(v -> v.withLeader(leaderPeer, stat.getMzxid()));
+            logger.log(Level.FINE, "Current leader: " + leaderPeer);
         }, null);
     }
+
+    /**
+     * there is no leader, so note when we found out. taking over is up to the election: only whoever is next in line
+     * under /election was told to try, the rest of us just wait for the new /leader.
+     */
+    private void leaderGone() {
+        if (leaderLostNanos == 0) leaderLostNanos = System.nanoTime();
+        update(v -> v.withLeader(null, -1));
+    }
+
+    /** we stand for election while we are a replica and haven't been told to just watch. */
+    private boolean canLead(ClusterView view) {
+        return !view.watching() && view.replicas().contains(myName);
+    }
+
+    /** the election made us leader and created /leader, stat is that node's. */
+    private void elected(Stat stat) {
+        // the stat of the node we just created is all we need to fence with, so we don't wait for the
+        // watch to fire and a getData to come back before we start taking posts
+        update(v -> v.withLeader(myName, stat.getMzxid()));
+        long lost = leaderLostNanos;
+        leaderLostNanos = 0;
+        if (lost != 0) {
+            long took = System.nanoTime() - lost;
+            lastElectionMillis = took / 1_000_000;
+            electionTimer.record(took, TimeUnit.NANOSECONDS);
+            elections.incrementAndGet();
+        }
+        logger.log(Level.INFO, "Became leader: " + myName + " with zxid " + stat.getMzxid() + " after " + lastElectionMillis + "ms");
+    }
+
     final Watcher leaderWatch = event -> {
-        logger.log(Level.INFO, "Leader node changed: " + event);
+        logger.log(Level.FINE, "Leader node changed: " + event);
         switch (event.getType()) {
-            case NodeCreated, NodeDeleted, NodeDataChanged -> {
-                getLeader();
-            }
+            // no need to read a node we know is gone
+            case NodeDeleted -> leaderGone();
+            case NodeCreated, NodeDataChanged -> getLeader();
         }
     };
+
+    /** how long it took from noticing the leader was gone until we were leading, the last time we took over. */
+    public long lastElectionMillis() {
+        return lastElectionMillis;
+    }
+
+    /** how many times we have become the leader after finding /leader missing. */
+    public long elections() {
+        return elections.get();
+    }
+
     final Watcher peerWatch = event -> {
-        logger.log(Level.INFO, "Peer nodes changed: " + event);
+        logger.log(Level.FINE, "Peer nodes changed: " + event);
         if (event.getType() == Watcher.Event.EventType.NodeChildrenChanged) {
             getChildren();
         }
     };
 
     private void getChildren() {
+        long started = System.nanoTime();
         zk.getChildren("/peers", false, (rc, path, ctx, childs) -> {
+            timed("getPeers", started);
             if (rc != KeeperException.Code.OK.intValue()) {
                 logger.log(Level.SEVERE, "Error getting children of /peers: " + KeeperException.Code.get(rc));
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                    // i really hate the interrupted exception!
-                }
-                getChildren();
+                retryScheduler.retry("/peers", this::getChildren);
                 return;
             }
-            peers = childs;
-            logger.log(Level.INFO, "Current peers: " + childs);
+            update(v -> v.withPeers(List.copyOf(childs)));
+            logger.log(Level.FINE, "Current peers: " + childs);
+            refreshPeerInfos(childs);
         }, null);
     }
 
-    private void giveUpLeadership() {
-        if (!myName.equals(leaderPeer)) {
-            logger.log(Level.INFO, "Not the leader, cannot give up leadership");
-            return;
+    /**
+     * rereads the data of every peer and publishes a new snapshot once all the reads are back. peers are ephemeral,
+     * so one that restarts comes back as a new znode, which is why we don't keep the old entries around. if a read
+     * fails we keep the snapshot we have and go around again, a snapshot with a hole in it would look like that peer
+     * had gone.
+     */
+    private void refreshPeerInfos(List<String> childs) {
+        long generation = peerGeneration.incrementAndGet();
+        var infos = new ConcurrentHashMap<String, PeerInfo>();
+        var remaining = new AtomicInteger(childs.size());
+        var failed = new AtomicBoolean();
+        if (childs.isEmpty()) publishPeerInfos(Map.of());
+        for (var child : childs) {
+            long started = System.nanoTime();
+            zk.getData("/peers/" + child, false, (rc, path, ctx, data, stat) -> {
+                timed("getPeerInfo", started);
+                if (rc == KeeperException.Code.OK.intValue()) {
+                    infos.put(child, peerInfo(child, data, stat));
+                } else if (rc != KeeperException.Code.NONODE.intValue()) {
+                    logger.log(Level.SEVERE, "Error getting data of " + path + ": " + KeeperException.Code.get(rc));
+                    failed.set(true);
+                }
+                // a newer refresh has started, it will publish instead of us
+                if (remaining.decrementAndGet() != 0 || peerGeneration.get() != generation) return;
+                if (failed.get()) {
+                    retryScheduler.retry("/peers", this::getChildren);
+                } else {
+                    publishPeerInfos(Map.copyOf(infos));
+                }
+            }, null);
         }
-        zk.delete("/leader", -1, (rc, path, ctx) -> {
+    }
+
+    private void publishPeerInfos(Map<String, PeerInfo> infos) {
+        retryScheduler.succeeded("/peers");
+        update(v -> v.withPeerInfos(infos));
+        peerInfosLoaded.complete(null);
+        logger.log(Level.FINE, "Peer info: " + infos);
+    }
+
+    private static PeerInfo peerInfo(String name, byte[] data, Stat stat) {
+        var parts = new String(data).split("\\s", 2);
+        return new PeerInfo(name, parts[0], parts.length > 1 ? parts[1] : "", stat.getMzxid());
+    }
+
+    /**
+     * completes once the view has had a full snapshot of /peers. until then view().peers() and peerInfos() are
+     * empty, not because there are no peers but because we haven't read them yet.
+     */
+    public CompletableFuture<Void> peerInfosLoaded() {
+        // a copy, so a caller that times it out doesn't complete it for everyone
+        return peerInfosLoaded.copy();
+    }
+
+    /**
+     * reads what name put in /peers/&lt;name&gt; straight from zookeeper, for a peer that is newer than the view's
+     * snapshot. completes with null if it is gone.
+     */
+    public CompletableFuture<PeerInfo> readPeerInfo(String name) {
+        var info = new CompletableFuture<PeerInfo>();
+        long started = System.nanoTime();
+        zk.getData("/peers/" + name, false, (rc, path, ctx, data, stat) -> {
+            timed("getPeerInfo", started);
             if (rc == KeeperException.Code.OK.intValue()) {
-                logger.log(Level.INFO, "Gave up leadership");
+                info.complete(peerInfo(name, data, stat));
             } else if (rc == KeeperException.Code.NONODE.intValue()) {
-                logger.log(Level.INFO, "No /leader node to give up");
+                info.complete(null);
             } else {
-                logger.log(Level.SEVERE, "Error deleting /leader: " + KeeperException.Code.get(rc));
-                giveUpLeadership();
+                info.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
             }
         }, null);
+        return info;
     }
+
+    /** whether we stand for election. if we stop while leading, we give up /leader too. */
     public void tryToLead(boolean tryingToLead) {
-        watching = !tryingToLead;
-        if (!tryingToLead && leaderPeer.equals(myName)) {
-            giveUpLeadership();
-        }
+        update(v -> v.withWatching(!tryingToLead));
     }
 
     public boolean isLeading() {
-        return myName.equals(leaderPeer);
+        return view().isLeader(myName);
     }
 }
\ No newline at end of file
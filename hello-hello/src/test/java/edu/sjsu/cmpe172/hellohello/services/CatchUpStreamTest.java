@@ -0,0 +1,164 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import edu.sjsu.cmpe172.hellohello.PostReplicaServiceGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * The leader's side of catch up streaming its log to a follower's HelloHelloGrpcService over an in-process channel,
+ * both ways the follower takes it.
+ */
+class CatchUpStreamTest {
+    private static final long LEADER_ZXID = 7;
+    private static final long BATCH_BYTES = 1024;
+    @TempDir
+    Path dir;
+    PostLog leaderLog;
+    PostLog followerLog;
+    ZKService zkService;
+    PostBatches batches;
+    Server server;
+    ManagedChannel channel;
+    PostReplicaServiceGrpc.PostReplicaServiceStub stub;
+    ScheduledExecutorService scheduler;
+
+    @BeforeEach
+    void start() throws Exception {
+        leaderLog = new PostLog(dir.resolve("leader").toString(), 1 << 20, 256, 200, 3600, 4);
+        followerLog = new PostLog(dir.resolve("follower").toString(), 1 << 20, 256, 200, 3600, 4);
+        zkService = mock(ZKService.class);
+        following(LEADER_ZXID);
+        batches = new PostBatches(List.of(new GzipPostCodec()), new SimpleMeterRegistry(), "gzip", 512);
+        var name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name)
+                .addService(new HelloHelloGrpcService(zkService, followerLog, batches, 16))
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(name).build();
+        stub = PostReplicaServiceGrpc.newStub(channel);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        channel.shutdownNow();
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        scheduler.shutdownNow();
+        leaderLog.close();
+        followerLog.close();
+    }
+
+    /** the follower takes leaderZxid to be the leader's. */
+    private void following(long leaderZxid) {
+        when(zkService.view()).thenReturn(ClusterView.INITIAL.withLeader("leader", leaderZxid));
+    }
+
+    private static HelloHello.NewPostRequest post(long txn, long leaderZxid) {
+        return HelloHello.NewPostRequest.newBuilder()
+                .setTxn(txn)
+                .setUser("u" + txn % 3)
+                .setMessage("post " + txn)
+                .setTimestamp(1000 + txn)
+                .setLeaderZxid(leaderZxid)
+                .setRequestId(leaderZxid + "-" + txn)
+                .build();
+    }
+
+    /** posts up to txn 299 are from the leader before us, the rest are ours. commitTxn is 400. */
+    private void fillLeader() throws Exception {
+        for (long txn = 0; txn < 500; txn++) leaderLog.append(post(txn, txn < 300 ? 5 : LEADER_ZXID)).get();
+        leaderLog.committed(400);
+        for (long txn = 0; txn < 100; txn++) followerLog.append(post(txn, 5)).get();
+    }
+
+    private void assertCaughtUp() throws Exception {
+        assertEquals(499, followerLog.lastTxn());
+        assertEquals(leaderLog.read(0, Integer.MAX_VALUE, Long.MAX_VALUE),
+                followerLog.read(0, Integer.MAX_VALUE, Long.MAX_VALUE));
+        assertEquals(400, followerLog.commitTxn());
+    }
+
+    private static String rejected(CompletableFuture<Long> done) {
+        var e = assertThrows(ExecutionException.class, () -> done.get(10, TimeUnit.SECONDS));
+        return assertInstanceOf(IllegalStateException.class, e.getCause()).getMessage();
+    }
+
+    @Test
+    void catchesUpPostByPost() throws Exception {
+        fillLeader();
+        var done = CatchUpStream.start("follower", stub, leaderLog, 100, LEADER_ZXID, BATCH_BYTES,
+                new Throttle(0), scheduler);
+        assertEquals(499, (long) done.get(10, TimeUnit.SECONDS));
+        assertCaughtUp();
+    }
+
+    @Test
+    void catchesUpInCompressedBatches() throws Exception {
+        fillLeader();
+        var done = CatchUpStream.startBatched("follower", stub, leaderLog, batches, "gzip", 100, LEADER_ZXID,
+                BATCH_BYTES, new Throttle(0), scheduler);
+        assertEquals(499, (long) done.get(10, TimeUnit.SECONDS));
+        assertCaughtUp();
+    }
+
+    @Test
+    void aThrottledStreamKeepsToItsRate() throws Exception {
+        fillLeader();
+        long bytes = 0;
+        for (var post : leaderLog.read(100, Integer.MAX_VALUE, Long.MAX_VALUE)) bytes += post.getSerializedSize();
+        long bytesPerSecond = 50_000;
+        long started = System.nanoTime();
+        var done = CatchUpStream.start("follower", stub, leaderLog, 100, LEADER_ZXID, BATCH_BYTES,
+                new Throttle(bytesPerSecond), scheduler);
+        assertEquals(499, (long) done.get(10, TimeUnit.SECONDS));
+        long tookMillis = (System.nanoTime() - started) / 1_000_000;
+        // the stream sends a little more than the posts themselves, and it may run ahead by one pause
+        assertTrue(tookMillis >= bytes * 1000 / bytesPerSecond - 50, "took " + tookMillis + "ms for " + bytes + " bytes");
+        assertCaughtUp();
+    }
+
+    @Test
+    void aFollowerOfAnotherLeaderRejectsTheStream() throws Exception {
+        fillLeader();
+        following(LEADER_ZXID + 1);
+        var message = rejected(CatchUpStream.start("follower", stub, leaderLog, 100, LEADER_ZXID, BATCH_BYTES,
+                new Throttle(0), scheduler));
+        assertTrue(message.contains("SYNC_NOT_MY_LEADER"), message);
+        message = rejected(CatchUpStream.startBatched("follower", stub, leaderLog, batches, null, 100, LEADER_ZXID,
+                BATCH_BYTES, new Throttle(0), scheduler));
+        assertTrue(message.contains("SYNC_NOT_MY_LEADER"), message);
+        assertEquals(99, followerLog.lastTxn());
+    }
+
+    @Test
+    void aStreamThatStartsPastTheFollowersLogIsMissingTxns() throws Exception {
+        fillLeader();
+        var message = rejected(CatchUpStream.start("follower", stub, leaderLog, 400, LEADER_ZXID, BATCH_BYTES,
+                new Throttle(0), scheduler));
+        assertTrue(message.contains("SYNC_MISSING_TXN"), message);
+        assertEquals(99, followerLog.lastTxn());
+    }
+}
@@ -0,0 +1,131 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import edu.sjsu.cmpe172.hellohello.PostReplicaServiceGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/** A follower taking the leader's posts one at a time and in batches, over an in-process channel. */
+class HelloHelloGrpcServiceTest {
+    private static final long LEADER_ZXID = 7;
+    @TempDir
+    Path dir;
+    PostLog postLog;
+    PostBatches batches;
+    Server server;
+    ManagedChannel channel;
+    PostReplicaServiceGrpc.PostReplicaServiceBlockingStub stub;
+
+    @BeforeEach
+    void start() throws Exception {
+        postLog = new PostLog(dir.toString(), 1 << 20, 4, 200, 3600, 4);
+        var zkService = mock(ZKService.class);
+        when(zkService.view()).thenReturn(ClusterView.INITIAL.withLeader("leader", LEADER_ZXID));
+        batches = new PostBatches(List.of(new GzipPostCodec()), new SimpleMeterRegistry(), "gzip", 512);
+        var name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name)
+                .addService(new HelloHelloGrpcService(zkService, postLog, batches, 16))
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(name).build();
+        stub = PostReplicaServiceGrpc.newBlockingStub(channel).withDeadlineAfter(10, TimeUnit.SECONDS);
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        channel.shutdownNow();
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        postLog.close();
+    }
+
+    private static HelloHello.NewPostRequest post(long txn, long leaderZxid) {
+        return HelloHello.NewPostRequest.newBuilder()
+                .setTxn(txn)
+                .setUser("u" + txn % 3)
+                .setMessage("post " + txn)
+                .setTimestamp(1000 + txn)
+                .setLeaderZxid(leaderZxid)
+                .setRequestId(leaderZxid + "-" + txn)
+                .build();
+    }
+
+    /** post as the current leader sends it. */
+    private static HelloHello.NewPostRequest sent(HelloHello.NewPostRequest post, long commitTxn) {
+        return post.toBuilder().setSenderZxid(LEADER_ZXID).setCommitTxn(commitTxn).build();
+    }
+
+    private static List<HelloHello.NewPostRequest> posts(long fromTxn, long toTxn, long leaderZxid) {
+        return LongStream.rangeClosed(fromTxn, toTxn).mapToObj(txn -> post(txn, leaderZxid)).toList();
+    }
+
+    private static void assertReply(HelloHello.AddPostStatus status, long lastTxn, HelloHello.NewPostReply reply) {
+        assertEquals(status, reply.getStatus());
+        assertEquals(lastTxn, reply.getLastVersion());
+    }
+
+    @Test
+    void postsKeepTheZxidOfTheLeaderThatWroteThem() throws Exception {
+        assertReply(HelloHello.AddPostStatus.ADD_SUCCESS, 0, stub.newPost(post(0, LEADER_ZXID)));
+        // written by the leader before, resent by this one
+        assertReply(HelloHello.AddPostStatus.ADD_SUCCESS, 1, stub.newPost(sent(post(1, 5), 0)));
+        assertReply(HelloHello.AddPostStatus.ADD_SUCCESS, 2, stub.newPost(sent(post(2, LEADER_ZXID), 1)));
+        assertEquals(List.of(post(0, LEADER_ZXID), post(1, 5), post(2, LEADER_ZXID)),
+                postLog.read(0, Integer.MAX_VALUE, Long.MAX_VALUE));
+        assertEquals(1, postLog.commitTxn());
+
+        // the leader's commitTxn only counts as far as the post it came with
+        assertReply(HelloHello.AddPostStatus.ADD_SUCCESS, 3, stub.newPost(sent(post(3, LEADER_ZXID), 10)));
+        assertEquals(3, postLog.commitTxn());
+    }
+
+    @Test
+    void postsFromAnotherLeaderAreRejected() throws Exception {
+        stub.newPost(post(0, LEADER_ZXID));
+        // sent by an old leader, whoever wrote the post
+        assertReply(HelloHello.AddPostStatus.ADD_NOT_MY_LEADER, 0, stub.newPost(post(1, 5)));
+        assertReply(HelloHello.AddPostStatus.ADD_NOT_MY_LEADER, 0,
+                stub.newPost(post(1, LEADER_ZXID).toBuilder().setSenderZxid(5).build()));
+        assertReply(HelloHello.AddPostStatus.ADD_NOT_MY_LEADER, 0,
+                stub.newPosts(batches.encode(posts(1, 3, 5), 5, 0, "gzip")));
+        assertEquals(0, postLog.lastTxn());
+    }
+
+    @Test
+    void aGapIsAnsweredWithTheTxnsWeHave() throws Exception {
+        stub.newPost(post(0, LEADER_ZXID));
+        assertReply(HelloHello.AddPostStatus.ADD_MISSING_TXN, 0, stub.newPost(sent(post(10, LEADER_ZXID), 0)));
+        assertReply(HelloHello.AddPostStatus.ADD_MISSING_TXN, 0,
+                stub.newPosts(batches.encode(posts(10, 12, LEADER_ZXID), LEADER_ZXID, 0, null)));
+        assertEquals(0, postLog.lastTxn());
+    }
+
+    @Test
+    void batchesAreAppendedWhole() throws Exception {
+        var posts = posts(0, 99, 5);
+        assertReply(HelloHello.AddPostStatus.ADD_SUCCESS, 99,
+                stub.newPosts(batches.encode(posts, LEADER_ZXID, 50, "gzip")));
+        assertEquals(posts, postLog.read(0, Integer.MAX_VALUE, Long.MAX_VALUE));
+        assertEquals(50, postLog.commitTxn());
+
+        // an empty batch just moves commitTxn, up to the txn before its base
+        var empty = HelloHello.PostBatch.newBuilder().setLeaderZxid(LEADER_ZXID).setBaseTxn(100).setCommitTxn(200).build();
+        assertReply(HelloHello.AddPostStatus.ADD_SUCCESS, 99, stub.newPosts(empty));
+        assertEquals(99, postLog.commitTxn());
+    }
+}
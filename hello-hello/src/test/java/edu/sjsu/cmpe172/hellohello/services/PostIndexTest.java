@@ -0,0 +1,134 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PostIndexTest {
+    // upToTxn for everything in the log
+    private static final long ALL = 1000;
+    @TempDir
+    Path dir;
+    PostLog postLog;
+    PostIndex postIndex;
+
+    @BeforeEach
+    void open() throws Exception {
+        postLog = new PostLog(dir.toString(), 1 << 20, 256, 200, 3600, 4);
+        postIndex = new PostIndex(postLog, new SimpleMeterRegistry(), 1000);
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        postIndex.close();
+        postLog.close();
+    }
+
+    private static HelloHello.NewPostRequest post(long txn, String user, long timestamp, long leaderZxid) {
+        return HelloHello.NewPostRequest.newBuilder()
+                .setTxn(txn)
+                .setUser(user)
+                .setMessage("post " + txn)
+                .setTimestamp(timestamp)
+                .setLeaderZxid(leaderZxid)
+                .setRequestId(leaderZxid + "-" + txn)
+                .build();
+    }
+
+    private void append(HelloHello.NewPostRequest... posts) throws Exception {
+        for (var post : posts) postLog.append(post).get();
+    }
+
+    @Test
+    void byTimeIsNewestFirstEvenWhenTimestampsArriveOutOfOrder() throws Exception {
+        // txns 1 and 3 are older than the post before them, in the same bucket and across buckets
+        append(post(0, "a", 1500, 1), post(1, "b", 1200, 1), post(2, "a", 2100, 1),
+                post(3, "b", 1900, 1), post(4, "a", 2100, 1));
+        assertEquals(4, postIndex.indexedTxn());
+
+        var page = postIndex.byTime(0, 3000, null, 3, ALL);
+        assertArrayEquals(new long[]{4, 2, 3}, page.txns());
+        page = postIndex.byTime(0, 3000, page.next(), 3, ALL);
+        assertArrayEquals(new long[]{0, 1}, page.txns());
+        assertNull(page.next());
+
+        assertArrayEquals(new long[]{3, 0}, postIndex.byTime(1300, 2000, null, 10, ALL).txns());
+        assertArrayEquals(new long[]{2, 3, 0, 1}, postIndex.byTime(0, 3000, null, 10, 3).txns());
+    }
+
+    @Test
+    void byAuthorPagesBackwards() throws Exception {
+        for (int txn = 0; txn < 10; txn++) append(post(txn, txn % 2 == 0 ? "a" : "b", 1000 + txn, 1));
+
+        var page = postIndex.byAuthor("a", null, 2, ALL);
+        assertArrayEquals(new long[]{8, 6}, page.txns());
+        page = postIndex.byAuthor("a", page.next(), 2, ALL);
+        assertArrayEquals(new long[]{4, 2}, page.txns());
+        page = postIndex.byAuthor("a", page.next(), 2, ALL);
+        assertArrayEquals(new long[]{0}, page.txns());
+        assertNull(page.next());
+
+        assertArrayEquals(new long[]{5, 3, 1}, postIndex.byAuthor("b", null, 10, 5).txns());
+        assertEquals(0, postIndex.byAuthor("nobody", null, 10, ALL).txns().length);
+        assertThrows(IllegalArgumentException.class, () -> postIndex.byAuthor("a", "x", 10, ALL));
+    }
+
+    @Test
+    void truncatedPostsLeaveTheIndexesAndTheirReplacementsGoIn() throws Exception {
+        append(post(0, "a", 1000, 1), post(1, "b", 1100, 1), post(2, "a", 1200, 1),
+                post(3, "b", 1300, 1), post(4, "a", 1050, 1));
+        postLog.truncateAfter(1).get();
+        assertEquals(1, postIndex.indexedTxn());
+        assertArrayEquals(new long[]{0}, postIndex.byAuthor("a", null, 10, ALL).txns());
+        assertArrayEquals(new long[]{1, 0}, postIndex.byTime(0, 2000, null, 10, ALL).txns());
+
+        // the next leader's posts take the same txns, none of the old ones may come back with them
+        append(post(2, "c", 1080, 2), post(3, "a", 1090, 2), post(4, "c", 1600, 2));
+        assertEquals(4, postIndex.indexedTxn());
+        assertArrayEquals(new long[]{3, 0}, postIndex.byAuthor("a", null, 10, ALL).txns());
+        assertArrayEquals(new long[]{1}, postIndex.byAuthor("b", null, 10, ALL).txns());
+        assertArrayEquals(new long[]{4, 2}, postIndex.byAuthor("c", null, 10, ALL).txns());
+        assertArrayEquals(new long[]{4, 1, 3, 2, 0}, postIndex.byTime(0, 2000, null, 10, ALL).txns());
+    }
+
+    @Test
+    void aSliceTakenBeforeATruncateKeepsItsEntries() {
+        var postings = new PostIndex.Postings(true);
+        for (int txn = 0; txn < 6; txn++) postings.add(txn, txn * 10);
+        var before = postings.slice;
+
+        postings.truncate(2);
+        postings.add(3, 5);
+        postings.add(4, 35);
+        assertArrayEquals(new long[]{0, 1, 2, 3, 4, 5}, Arrays.copyOf(before.txns(), before.size()));
+        assertArrayEquals(new int[]{0, 10, 20, 30, 40, 50}, Arrays.copyOf(before.offsets(), before.size()));
+        var after = postings.slice;
+        assertArrayEquals(new long[]{0, 3, 1, 2, 4}, Arrays.copyOf(after.txns(), after.size()));
+        assertArrayEquals(new int[]{0, 5, 10, 20, 35}, Arrays.copyOf(after.offsets(), after.size()));
+    }
+
+    @Test
+    void catchesUpFromTheLogOnStartup() throws Exception {
+        append(post(0, "a", 1000, 1), post(1, "b", 1100, 1), post(2, "a", 1200, 1));
+        postIndex.close();
+        postLog.close();
+
+        postLog = new PostLog(dir.toString(), 1 << 20, 256, 200, 3600, 4);
+        postIndex = new PostIndex(postLog, new SimpleMeterRegistry(), 1000);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (postIndex.indexedTxn() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals(2, postIndex.indexedTxn());
+        assertArrayEquals(new long[]{2, 0}, postIndex.byAuthor("a", null, 10, ALL).txns());
+    }
+}
@@ -0,0 +1,154 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Snapshots taken with small segments, so a few dozen posts close enough of them, and called directly rather than
+ * waiting for the snapshotter.
+ */
+class PostLogSnapshotTest {
+    private static final long SEGMENT_BYTES = 256;
+    @TempDir
+    Path dir;
+    PostLog leader;
+    PostLog follower;
+
+    @BeforeEach
+    void open() throws Exception {
+        leader = open("leader");
+        follower = open("follower");
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        leader.close();
+        follower.close();
+    }
+
+    private PostLog open(String name) throws Exception {
+        return new PostLog(dir.resolve(name).toString(), SEGMENT_BYTES, 256, 200, 3600, 2);
+    }
+
+    private static HelloHello.NewPostRequest post(long txn, long leaderZxid) {
+        return HelloHello.NewPostRequest.newBuilder()
+                .setTxn(txn)
+                .setUser("u" + txn % 3)
+                .setMessage("post " + txn)
+                .setTimestamp(1000 + txn)
+                .setLeaderZxid(leaderZxid)
+                .setRequestId(leaderZxid + "-" + txn)
+                .build();
+    }
+
+    private static void append(PostLog postLog, long fromTxn, long toTxn, long leaderZxid) throws Exception {
+        for (long txn = fromTxn; txn <= toTxn; txn++) postLog.append(post(txn, leaderZxid)).get();
+    }
+
+    private static List<HelloHello.NewPostRequest> readAll(PostLog postLog) throws Exception {
+        return postLog.read(0, Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    private static void assertPosts(long toTxn, long leaderZxid, List<HelloHello.NewPostRequest> posts) {
+        assertEquals(toTxn + 1, posts.size());
+        for (int i = 0; i < posts.size(); i++) assertEquals(post(i, leaderZxid), posts.get(i));
+    }
+
+    private List<Path> files(String name, String suffix) throws Exception {
+        try (var files = Files.list(dir.resolve(name))) {
+            return files.filter(p -> p.getFileName().toString().endsWith(suffix)).sorted().toList();
+        }
+    }
+
+    @Test
+    void aSnapshotReplacesTheClosedSegmentsAndTheNextOneBuildsOnIt() throws Exception {
+        append(leader, 0, 59, 1);
+        assertTrue(files("leader", PostLog.SEGMENT_SUFFIX).size() > 3);
+        leader.snapshot();
+        var first = leader.currentSnapshot();
+        assertNotNull(first);
+        assertEquals(0, first.firstTxn);
+        // only the active segment is left, and it starts right after the snapshot
+        var segments = files("leader", PostLog.SEGMENT_SUFFIX);
+        assertEquals(1, segments.size());
+        assertEquals(first.lastTxn + 1, PostLog.baseTxnOf(segments.getFirst()));
+        assertPosts(59, 1, readAll(leader));
+        assertEquals(2, leader.read(first.lastTxn, 2, Long.MAX_VALUE).size());
+
+        // not enough closed since
+        leader.snapshot();
+        assertSame(first, leader.currentSnapshot());
+
+        append(leader, 60, 119, 1);
+        leader.snapshot();
+        var second = leader.currentSnapshot();
+        assertEquals(0, second.firstTxn);
+        assertTrue(second.lastTxn > first.lastTxn);
+        assertEquals(List.of(second.path), files("leader", PostSnapshot.SUFFIX));
+        assertEquals(1, files("leader", PostLog.SEGMENT_SUFFIX).size());
+        assertPosts(119, 1, readAll(leader));
+
+        leader.close();
+        leader = open("leader");
+        assertEquals(119, leader.lastTxn());
+        assertEquals(second.lastTxn, leader.currentSnapshot().lastTxn);
+        assertPosts(119, 1, readAll(leader));
+        append(leader, 120, 121, 1);
+        assertPosts(121, 1, readAll(leader));
+    }
+
+    @Test
+    void aFollowerInstallsTheLeadersSnapshotAndCompactsOnTopOfIt() throws Exception {
+        append(leader, 0, 59, 1);
+        leader.snapshot();
+        var snapshot = leader.currentSnapshot();
+        // what the follower had is older and is thrown away with its segments
+        append(follower, 0, 4, 1);
+
+        var tmp = follower.newSnapshotFile();
+        Files.copy(snapshot.path, tmp, StandardCopyOption.REPLACE_EXISTING);
+        assertEquals(snapshot.lastTxn, (long) follower.installSnapshot(tmp).get(5, TimeUnit.SECONDS));
+        assertEquals(snapshot.lastTxn, follower.lastTxn());
+        assertEquals(snapshot.lastTxn, follower.acceptedTxn());
+        assertFalse(Files.exists(tmp));
+        assertTrue(files("follower", PostLog.SEGMENT_SUFFIX).isEmpty());
+        assertPosts(snapshot.lastTxn, 1, readAll(follower));
+
+        // one that doesn't go past what the follower has is left alone
+        tmp = follower.newSnapshotFile();
+        Files.copy(snapshot.path, tmp, StandardCopyOption.REPLACE_EXISTING);
+        assertEquals(snapshot.lastTxn, (long) follower.installSnapshot(tmp).get(5, TimeUnit.SECONDS));
+        assertFalse(Files.exists(tmp));
+
+        // the leader sends the rest post by post, and the follower compacts them into its own snapshot
+        for (var post : leader.read(snapshot.lastTxn + 1, Integer.MAX_VALUE, Long.MAX_VALUE)) follower.append(post).get();
+        append(follower, 60, 119, 1);
+        follower.snapshot();
+        var compacted = follower.currentSnapshot();
+        assertEquals(0, compacted.firstTxn);
+        assertTrue(compacted.lastTxn > snapshot.lastTxn);
+        assertEquals(List.of(compacted.path), files("follower", PostSnapshot.SUFFIX));
+        assertEquals(1, files("follower", PostLog.SEGMENT_SUFFIX).size());
+        assertPosts(119, 1, readAll(follower));
+
+        follower.close();
+        follower = open("follower");
+        assertEquals(119, follower.lastTxn());
+        assertPosts(119, 1, readAll(follower));
+    }
+}
@@ -0,0 +1,226 @@
+package edu.sjsu.cmpe172.hellohello.services;
+
+import edu.sjsu.cmpe172.hellohello.HelloHello;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PostLogTest {
+    @TempDir
+    Path dir;
+    PostLog postLog;
+
+    @BeforeEach
+    void open() throws Exception {
+        postLog = open(1 << 20);
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        postLog.close();
+    }
+
+    private PostLog open(long segmentBytes) throws Exception {
+        return new PostLog(dir.toString(), segmentBytes, 4, 200, 3600, 4);
+    }
+
+    private void reopen(long segmentBytes) throws Exception {
+        postLog.close();
+        postLog = open(segmentBytes);
+    }
+
+    private static HelloHello.NewPostRequest post(long txn, long leaderZxid) {
+        return HelloHello.NewPostRequest.newBuilder()
+                .setTxn(txn)
+                .setUser("u" + txn % 3)
+                .setMessage("post " + txn)
+                .setTimestamp(1000 + txn)
+                .setLeaderZxid(leaderZxid)
+                .setRequestId(leaderZxid + "-" + txn)
+                .build();
+    }
+
+    private void append(long fromTxn, long toTxn, long leaderZxid) throws Exception {
+        for (long txn = fromTxn; txn <= toTxn; txn++) postLog.append(post(txn, leaderZxid)).get();
+    }
+
+    private List<HelloHello.NewPostRequest> readAll() throws Exception {
+        return postLog.read(0, Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    private static void assertTxns(long fromTxn, long toTxn, List<HelloHello.NewPostRequest> posts) {
+        assertEquals(toTxn - fromTxn + 1, posts.size());
+        for (int i = 0; i < posts.size(); i++) assertEquals(fromTxn + i, posts.get(i).getTxn());
+    }
+
+    private static PostLog.MissingTxnException missing(CompletableFuture<Long> future) {
+        var e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        return assertInstanceOf(PostLog.MissingTxnException.class, e.getCause());
+    }
+
+    private Path lastSegment() throws Exception {
+        try (var files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(PostLog.SEGMENT_SUFFIX))
+                    .max(Path::compareTo).orElseThrow();
+        }
+    }
+
+    @Test
+    void appendsAreReadBackInOrder() throws Exception {
+        assertEquals(-1, postLog.lastTxn());
+        append(0, 9, 1);
+        assertEquals(9, postLog.lastTxn());
+        var posts = readAll();
+        assertTxns(0, 9, posts);
+        assertEquals(post(4, 1), posts.get(4));
+        assertTxns(3, 5, postLog.read(3, 3, Long.MAX_VALUE));
+        // at least one post, however small maxBytes is
+        assertTxns(7, 7, postLog.read(7, 10, 1));
+        assertTrue(postLog.read(10, 10, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    void postsThatOvertakeTheOnesBeforeThemWaitForTheGap() throws Exception {
+        append(0, 0, 1);
+        var third = postLog.append(post(3, 1));
+        var second = postLog.append(post(2, 1));
+        Thread.sleep(50);
+        assertFalse(third.isDone());
+        assertFalse(second.isDone());
+        assertEquals(0, postLog.lastTxn());
+
+        postLog.append(post(1, 1)).get();
+        assertEquals(3, (long) third.get(5, TimeUnit.SECONDS));
+        second.get(5, TimeUnit.SECONDS);
+        assertTxns(0, 3, readAll());
+    }
+
+    @Test
+    void aGapThatDoesntFillIsReportedAsMissing() throws Exception {
+        append(0, 1, 1);
+        // inside the window it is held until reorderMillis runs out
+        assertEquals(1, missing(postLog.append(post(3, 1))).lastTxn);
+        // past the window it fails straight away
+        var tooFar = postLog.append(post(6, 1));
+        assertTrue(tooFar.isDone());
+        assertEquals(1, missing(tooFar).lastTxn);
+        assertEquals(1, postLog.lastTxn());
+        append(2, 3, 1);
+        assertTxns(0, 3, readAll());
+    }
+
+    @Test
+    void aRetransmissionCompletesWithoutAppendingAgain() throws Exception {
+        append(0, 4, 1);
+        assertEquals(4, (long) postLog.append(post(2, 1)).get(5, TimeUnit.SECONDS));
+        assertEquals(4, postLog.lastTxn());
+        assertTxns(0, 4, readAll());
+    }
+
+    @Test
+    void aDifferentPostAtAnAcceptedTxnReplacesEverythingFromThere() throws Exception {
+        append(0, 4, 1);
+        assertEquals(2, (long) postLog.append(post(2, 2)).get(5, TimeUnit.SECONDS));
+        assertEquals(2, postLog.lastTxn());
+        var posts = readAll();
+        assertTxns(0, 2, posts);
+        assertEquals(1, posts.get(1).getLeaderZxid());
+        assertEquals(post(2, 2), posts.get(2));
+
+        append(3, 3, 2);
+        reopen(1 << 20);
+        assertEquals(post(3, 2), readAll().get(3));
+    }
+
+    @Test
+    void truncateAfterThrowsAwayTheTailAndCommitTxnStaysWithinTheLog() throws Exception {
+        append(0, 5, 1);
+        postLog.committed(3);
+        assertEquals(3, postLog.commitTxn());
+        assertEquals(1, (long) postLog.truncateAfter(1).get(5, TimeUnit.SECONDS));
+        assertEquals(1, postLog.lastTxn());
+        assertEquals(1, postLog.acceptedTxn());
+        assertEquals(1, postLog.commitTxn());
+        // nothing to do at or past the end
+        assertEquals(1, (long) postLog.truncateAfter(4).get(5, TimeUnit.SECONDS));
+
+        append(2, 3, 2);
+        assertEquals(2, readAll().get(2).getLeaderZxid());
+    }
+
+    @Test
+    void recoversAcrossSegmentsAfterARestart() throws Exception {
+        reopen(256);
+        append(0, 29, 1);
+        try (var files = Files.list(dir)) {
+            assertTrue(files.count() > 3);
+        }
+        reopen(256);
+        assertEquals(29, postLog.lastTxn());
+        assertEquals(29, postLog.acceptedTxn());
+        assertTxns(0, 29, readAll());
+        assertTxns(12, 13, postLog.read(12, 2, Long.MAX_VALUE));
+
+        append(30, 31, 1);
+        reopen(256);
+        assertTxns(0, 31, readAll());
+    }
+
+    @Test
+    void aTornFinalRecordIsCutOffOnRecovery() throws Exception {
+        append(0, 4, 1);
+        postLog.close();
+        var segment = lastSegment();
+        long complete = Files.size(segment);
+        try (var ch = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            // the header of the next record made it to disk, only part of its body did
+            var body = post(5, 1).toByteArray();
+            var torn = ByteBuffer.allocate(PostLog.HEADER_BYTES + body.length / 2);
+            torn.putInt(body.length).putInt(0).put(body, 0, body.length / 2).flip();
+            ch.write(torn);
+        }
+
+        postLog = open(1 << 20);
+        assertEquals(4, postLog.lastTxn());
+        assertEquals(complete, Files.size(segment));
+        append(5, 6, 1);
+        reopen(1 << 20);
+        assertEquals(6, postLog.lastTxn());
+        assertTxns(0, 6, readAll());
+    }
+
+    @Test
+    void aFinalRecordThatFailsItsChecksumIsCutOffOnRecovery() throws Exception {
+        append(0, 4, 1);
+        postLog.close();
+        var segment = lastSegment();
+        try (var ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            // the last byte of txn 4's body
+            ch.write(ByteBuffer.wrap(new byte[]{'!'}), ch.size() - 1);
+        }
+
+        postLog = open(1 << 20);
+        assertEquals(3, postLog.lastTxn());
+        assertTxns(0, 3, readAll());
+        append(4, 4, 2);
+        reopen(1 << 20);
+        assertEquals(post(4, 2), readAll().get(4));
+    }
+}
@@ -0,0 +1,368 @@
+package edu.sjsu.cmpe172.election;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Leader election with sequential nodes, so a leadership change wakes up one contender instead of all of them.
+ * <p>
+ * Each contender creates an EPHEMERAL_SEQUENTIAL node under electionPath and watches only the node just before its
+ * own. The one with the lowest sequence number wins and then creates leaderPath as an ephemeral node holding data,
+ * the same node everyone used to race for, so whoever reads leaderPath (and fences on its mzxid) doesn't need to know
+ * how it got there. When the leader goes away only the next contender in line is told. While we lead we watch
+ * leaderPath, and if it is deleted out from under us (by hand, or by a test that kills the leader that way) we
+ * take it back, provided we are still first in line and ready.
+ * <p>
+ * Being first in line isn't enough on its own: the listener is asked whether we are {@link Listener#readyToLead}
+ * first, and if we aren't we step aside to the back of the line so the next contender gets a go.
+ * <p>
+ * Our node's name starts with a random prefix, so after a connection loss in the middle of a create we can tell
+ * whether the node was made and adopt it rather than leave a second one in the queue. Everything is asynchronous and
+ * runs on the ZooKeeper event thread. A lost session isn't handled here, the owner of the ZooKeeper handle decides
+ * what that means.
+ */
+public class LeaderElection {
+    private static final Logger logger = Logger.getLogger(LeaderElection.class.getName());
+    // the sequence number zookeeper appends is always this many digits
+    private static final int SEQUENCE_DIGITS = 10;
+
+    /** told when we have become the leader, with the stat of the leaderPath node we created. */
+    public interface Listener {
+        void elected(Stat leaderStat);
+
+        /** asked when we get to the front of the line, false (or failing) makes us step aside. */
+        default CompletableFuture<Boolean> readyToLead() {
+            return CompletableFuture.completedFuture(true);
+        }
+    }
+
+    /** how to try a failed zookeeper call again later. only one retry per key needs to be waiting at a time. */
+    public interface Retries {
+        void retry(String key, Runnable action);
+
+        /** resets any backoff for key. */
+        default void succeeded(String key) {}
+    }
+
+    final private ZooKeeper zk;
+    final private String electionPath;
+    final private String leaderPath;
+    final private byte[] data;
+    final private Listener listener;
+    final private Retries retries;
+    final private String id = UUID.randomUUID().toString();
+    final private AtomicLong notifications = new AtomicLong();
+
+    // guarded by this. generation goes up on every join and leave, so callbacks from an earlier one are dropped
+    private long generation = 0;
+    private boolean contending = false;
+    private boolean leading = false;
+    private String myNode;
+
+    public LeaderElection(ZooKeeper zk, String electionPath, String leaderPath, byte[] data, Listener listener,
+                          Retries retries) {
+        this.zk = zk;
+        this.electionPath = electionPath;
+        this.leaderPath = leaderPath;
+        this.data = data;
+        this.listener = listener;
+        this.retries = retries;
+    }
+
+    /** gets in line to lead. does nothing if we already are. */
+    public synchronized void join() {
+        if (contending) return;
+        contending = true;
+        long gen = ++generation;
+        logger.log(Level.INFO, "Joining the election under " + electionPath);
+        findOrCreate(gen);
+    }
+
+    /** gets out of line, and gives up leaderPath if we hold it. */
+    public synchronized void leave() {
+        if (!contending) return;
+        contending = false;
+        generation++;
+        if (leading) {
+            leading = false;
+            logger.log(Level.INFO, "Giving up " + leaderPath);
+            delete(leaderPath);
+        }
+        if (myNode != null) delete(myNode);
+        myNode = null;
+    }
+
+    public synchronized boolean isLeading() {
+        return leading;
+    }
+
+    /** how many watch notifications we have had, the herd this is meant to avoid shows up here. */
+    public long notifications() {
+        return notifications.get();
+    }
+
+    private synchronized boolean current(long gen) {
+        return gen == generation;
+    }
+
+    private void retry(long gen, String key, Runnable action) {
+        retries.retry(key, () -> {
+            if (current(gen)) action.run();
+        });
+    }
+
+    /** looks for a node we made before a connection loss, and creates one if there isn't. */
+    private void findOrCreate(long gen) {
+        zk.getChildren(electionPath, false, (rc, path, ctx, children) -> {
+            if (rc == KeeperException.Code.NONODE.intValue()) {
+                createParent(gen);
+                return;
+            } else if (rc != KeeperException.Code.OK.intValue()) {
+                logger.log(Level.SEVERE, "Error getting children of " + electionPath + ": " + KeeperException.Code.get(rc));
+                retry(gen, electionPath, () -> findOrCreate(gen));
+                return;
+            }
+            var mine = children.stream().filter(c -> c.startsWith(prefix(gen))).findFirst();
+            if (mine.isPresent()) {
+                adopt(gen, electionPath + "/" + mine.get());
+            } else {
+                create(gen);
+            }
+        }, null);
+    }
+
+    private void createParent(long gen) {
+        zk.create(electionPath, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, (rc, path, ctx, name) -> {
+            if (rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NODEEXISTS.intValue()) {
+                findOrCreate(gen);
+            } else {
+                logger.log(Level.SEVERE, "Error creating " + electionPath + ": " + KeeperException.Code.get(rc));
+                retry(gen, electionPath, () -> findOrCreate(gen));
+            }
+        }, null);
+    }
+
+    private void create(long gen) {
+        zk.create(electionPath + "/" + prefix(gen), data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL,
+                (rc, path, ctx, name) -> {
+                    if (rc == KeeperException.Code.OK.intValue()) {
+                        adopt(gen, name);
+                    } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                        createParent(gen);
+                    } else {
+                        // the node may or may not have been made, findOrCreate sorts that out
+                        logger.log(Level.SEVERE, "Error joining the election: " + KeeperException.Code.get(rc));
+                        retry(gen, electionPath, () -> findOrCreate(gen));
+                    }
+                }, null);
+    }
+
+    private void adopt(long gen, String node) {
+        synchronized (this) {
+            if (gen != generation) {
+                // we left while the create was in flight
+                delete(node);
+                return;
+            }
+            myNode = node;
+        }
+        retries.succeeded(electionPath);
+        logger.log(Level.FINE, "In the election as " + node);
+        check(gen);
+    }
+
+    /** finds where we are in line: first means we lead, otherwise we watch the one ahead of us. */
+    private void check(long gen) {
+        zk.getChildren(electionPath, false, (rc, path, ctx, children) -> {
+            if (rc != KeeperException.Code.OK.intValue()) {
+                logger.log(Level.SEVERE, "Error getting children of " + electionPath + ": " + KeeperException.Code.get(rc));
+                retry(gen, electionPath, () -> check(gen));
+                return;
+            }
+            String node;
+            synchronized (this) {
+                if (gen != generation) return;
+                node = myNode.substring(electionPath.length() + 1);
+            }
+            List<String> line = children.stream().sorted(Comparator.comparing(LeaderElection::sequence)).toList();
+            int at = line.indexOf(node);
+            if (at < 0) {
+                // someone deleted our node, get back in line
+                logger.log(Level.WARNING, "Our election node " + node + " is gone");
+                synchronized (this) {
+                    if (gen != generation) return;
+                    myNode = null;
+                }
+                create(gen);
+            } else if (at == 0) {
+                ready(gen);
+            } else {
+                watch(gen, electionPath + "/" + line.get(at - 1));
+            }
+        }, null);
+    }
+
+    private void watch(long gen, String predecessor) {
+        Watcher deleted = event -> {
+            if (event.getType() != Watcher.Event.EventType.NodeDeleted) return;
+            notifications.incrementAndGet();
+            if (current(gen)) check(gen);
+        };
+        zk.exists(predecessor, deleted, (rc, path, ctx, stat) -> {
+            if (rc == KeeperException.Code.NONODE.intValue()) {
+                // gone before we could watch it, so look again
+                check(gen);
+            } else if (rc != KeeperException.Code.OK.intValue()) {
+                logger.log(Level.SEVERE, "Error watching " + predecessor + ": " + KeeperException.Code.get(rc));
+                retry(gen, electionPath, () -> check(gen));
+            } else {
+                logger.log(Level.FINE, "Waiting for " + predecessor);
+            }
+        }, null);
+    }
+
+    /** we are first in line, but only take leaderPath if the listener says we are ready to lead. */
+    private void ready(long gen) {
+        listener.readyToLead().whenComplete((ready, t) -> {
+            if (!current(gen)) return;
+            if (t == null && ready) {
+                takeLeader(gen);
+                return;
+            }
+            logger.log(Level.WARNING, "Not ready to lead, stepping aside", t);
+            stepAside(gen);
+        });
+    }
+
+    /** gets out of the way of the contenders behind us and back in line after them, backing off if it keeps happening. */
+    private void stepAside(long gen) {
+        String node;
+        synchronized (this) {
+            if (gen != generation) return;
+            node = myNode;
+            myNode = null;
+        }
+        delete(node);
+        retry(gen, electionPath + "/aside", () -> create(gen));
+    }
+
+    /**
+     * we are first in line and ready, so leaderPath is ours. it can still be there for a moment if the last leader left the
+     * line before giving it up, or from an older peer that doesn't use the election, so then we wait for it to go.
+     */
+    private void takeLeader(long gen) {
+        zk.create(leaderPath, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL, (rc, path, ctx, name, stat) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                elected(gen, stat);
+            } else if (rc == KeeperException.Code.NODEEXISTS.intValue()) {
+                waitForLeader(gen);
+            } else {
+                logger.log(Level.SEVERE, "Error creating " + leaderPath + ": " + KeeperException.Code.get(rc));
+                retry(gen, leaderPath, () -> waitForLeader(gen));
+            }
+        }, null);
+    }
+
+    private void waitForLeader(long gen) {
+        Watcher deleted = event -> {
+            if (event.getType() != Watcher.Event.EventType.NodeDeleted) return;
+            notifications.incrementAndGet();
+            if (current(gen)) takeLeader(gen);
+        };
+        zk.getData(leaderPath, deleted, (rc, path, ctx, bytes, stat) -> {
+            if (rc == KeeperException.Code.NONODE.intValue()) {
+                takeLeader(gen);
+            } else if (rc != KeeperException.Code.OK.intValue()) {
+                logger.log(Level.SEVERE, "Error getting data of " + leaderPath + ": " + KeeperException.Code.get(rc));
+                retry(gen, leaderPath, () -> waitForLeader(gen));
+            } else if (stat.getEphemeralOwner() == zk.getSessionId()) {
+                // our create went through before a connection loss
+                elected(gen, stat);
+            } else {
+                logger.log(Level.INFO, leaderPath + " is still held by " + new String(bytes) + ", waiting for it to go");
+            }
+        }, null);
+    }
+
+    private void elected(long gen, Stat stat) {
+        synchronized (this) {
+            if (gen != generation) {
+                // we left while the create was in flight, leave() couldn't have deleted it yet
+                delete(leaderPath);
+                return;
+            }
+            leading = true;
+        }
+        retries.succeeded(leaderPath);
+        retries.succeeded(electionPath + "/aside");
+        listener.elected(stat);
+        watchLeader(gen);
+    }
+
+    /** while we lead, nobody else is waiting for leaderPath to go, so we have to notice ourselves. */
+    private void watchLeader(long gen) {
+        Watcher watcher = event -> {
+            if (event.getType() == Watcher.Event.EventType.None) return;
+            notifications.incrementAndGet();
+            if (event.getType() == Watcher.Event.EventType.NodeDeleted) {
+                lostLeader(gen);
+            } else if (stillLeading(gen)) {
+                // watches only fire once, and this wasn't the one we are waiting for
+                watchLeader(gen);
+            }
+        };
+        zk.exists(leaderPath, watcher, (rc, path, ctx, stat) -> {
+            if (rc == KeeperException.Code.NONODE.intValue()) {
+                lostLeader(gen);
+            } else if (rc != KeeperException.Code.OK.intValue()) {
+                logger.log(Level.SEVERE, "Error watching " + leaderPath + ": " + KeeperException.Code.get(rc));
+                retry(gen, leaderPath, () -> {
+                    if (stillLeading(gen)) watchLeader(gen);
+                });
+            }
+        }, null);
+    }
+
+    private synchronized boolean stillLeading(long gen) {
+        return gen == generation && leading;
+    }
+
+    private void lostLeader(long gen) {
+        synchronized (this) {
+            if (gen != generation || !leading) return;
+            leading = false;
+        }
+        logger.log(Level.WARNING, leaderPath + " was deleted while we held it, taking it back if we are still first in line");
+        check(gen);
+    }
+
+    private void delete(String path) {
+        zk.delete(path, -1, (rc, p, ctx) -> {
+            if (rc != KeeperException.Code.OK.intValue() && rc != KeeperException.Code.NONODE.intValue()) {
+                logger.log(Level.SEVERE, "Error deleting " + path + ": " + KeeperException.Code.get(rc));
+                retries.retry(path + "-delete", () -> delete(path));
+            }
+        }, null);
+    }
+
+    // a node from an earlier join that we are still deleting must not be mistaken for this one's
+    private String prefix(long gen) {
+        return id + "-" + gen + "-n_";
+    }
+
+    private static String sequence(String child) {
+        return child.substring(child.length() - SEQUENCE_DIGITS);
+    }
+}
@@ -0,0 +1,270 @@
+package edu.sjsu.cmpe172.election;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Contenders, each with its own session on an embedded ZooKeeper, join, leave, refuse to lead and have their sessions
+ * expired from several threads at once, and at no point may two of them be leading.
+ * <p>
+ * What counts as leading is what an owner of a LeaderElection would see: from the elected callback until it leaves,
+ * or until it finds its session gone, which we say happens the moment we expire it. Expiry is real, the session is
+ * closed on the server through a second handle, so its election node and /leader go away the way they would if the
+ * process had hung. Now and then a squatter, like an older peer that doesn't use the election, holds /leader for a
+ * moment, and nobody may lead while it does.
+ */
+class LeaderElectionTest {
+    private static final int CONTENDERS = 8;
+    private static final int CHURN_THREADS = 4;
+    private static final long CHURN_MILLIS = 6000;
+
+    @TempDir
+    Path dir;
+    ZooKeeperServer server;
+    ServerCnxnFactory factory;
+    ScheduledExecutorService retries;
+    final List<Contender> contenders = new CopyOnWriteArrayList<>();
+    final AtomicReference<Contender> leader = new AtomicReference<>();
+    final ConcurrentLinkedQueue<String> violations = new ConcurrentLinkedQueue<>();
+    final AtomicInteger elections = new AtomicInteger();
+    final AtomicInteger named = new AtomicInteger();
+    // a session other than the contenders' that holds /leader, null if there isn't one
+    final AtomicReference<ZooKeeper> squatter = new AtomicReference<>();
+
+    @BeforeEach
+    void start() throws Exception {
+        server = new ZooKeeperServer(dir.toFile(), dir.toFile(), 2000);
+        factory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), 100);
+        factory.startup(server);
+        retries = Executors.newScheduledThreadPool(2);
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        for (var c : contenders) c.zk.close();
+        retries.shutdownNow();
+        factory.shutdown();
+        server.shutdown();
+    }
+
+    private ZooKeeper connect() throws Exception {
+        var connected = new CountDownLatch(1);
+        var zk = new ZooKeeper("127.0.0.1:" + factory.getLocalPort(), 3000, event -> {
+            if (event.getState() == Watcher.Event.KeeperState.SyncConnected) connected.countDown();
+        });
+        assertTrue(connected.await(10, TimeUnit.SECONDS));
+        return zk;
+    }
+
+    class Contender {
+        final String name = "c" + named.getAndIncrement();
+        final ZooKeeper zk;
+        final LeaderElection election;
+        // guarded by this
+        boolean expired = false;
+
+        Contender() throws Exception {
+            zk = connect();
+            election = new LeaderElection(zk, "/election", "/leader", name.getBytes(), new LeaderElection.Listener() {
+                @Override
+                public void elected(Stat leaderStat) {
+                    LeaderElectionTest.this.elected(Contender.this, leaderStat);
+                }
+
+                @Override
+                public CompletableFuture<Boolean> readyToLead() {
+                    // now and then not ready, sometimes only after a while, so the line has to move on past us
+                    var random = ThreadLocalRandom.current();
+                    boolean ready = random.nextInt(4) != 0;
+                    return CompletableFuture.supplyAsync(() -> ready,
+                            CompletableFuture.delayedExecutor(random.nextInt(20), TimeUnit.MILLISECONDS));
+                }
+            }, (key, action) -> {
+                // a session we expired is dead for good, there is nothing to retry with it
+                if (!expired()) retries.schedule(action, 10 + ThreadLocalRandom.current().nextInt(20), TimeUnit.MILLISECONDS);
+            });
+        }
+
+        synchronized boolean expired() {
+            return expired;
+        }
+    }
+
+    private void elected(Contender c, Stat stat) {
+        synchronized (c) {
+            // left or expired while the create was in flight, an owner would ignore this too
+            if (c.expired || !c.election.isLeading()) return;
+            if (stat.getEphemeralOwner() != c.zk.getSessionId()) {
+                violations.add(c.name + " was told it leads but /leader belongs to session " + stat.getEphemeralOwner());
+            }
+            var before = leader.getAndSet(c);
+            if (before != null) violations.add(c.name + " was elected while " + before.name + " was still leading");
+            if (squatter.get() != null) violations.add(c.name + " was elected while a squatter held /leader");
+            elections.incrementAndGet();
+        }
+    }
+
+    private Contender join() throws Exception {
+        var c = new Contender();
+        contenders.add(c);
+        c.election.join();
+        return c;
+    }
+
+    private void leaveAndRejoin(Contender c) {
+        synchronized (c) {
+            if (c.expired) return;
+            leader.compareAndSet(c, null);
+            c.election.leave();
+            c.election.join();
+        }
+    }
+
+    /** closes c's session on the server, the way it goes when the server hears nothing from it, and replaces it. */
+    private void expire(Contender c) throws Exception {
+        synchronized (c) {
+            if (c.expired) return;
+            c.expired = true;
+            leader.compareAndSet(c, null);
+        }
+        new ZooKeeper("127.0.0.1:" + factory.getLocalPort(), 3000, event -> {}, c.zk.getSessionId(),
+                c.zk.getSessionPasswd()).close();
+        contenders.remove(c);
+        c.zk.close();
+        join();
+    }
+
+    /** takes /leader the old way if nobody holds it, and gives it up again after holdMillis. */
+    private void squat(long holdMillis) throws Exception {
+        var zk = connect();
+        try {
+            zk.create("/leader", "squatter".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+        } catch (KeeperException.NodeExistsException e) {
+            zk.close();
+            return;
+        }
+        if (!squatter.compareAndSet(null, zk)) throw new IllegalStateException("two squatters hold /leader");
+        Thread.sleep(holdMillis);
+        squatter.set(null);
+        zk.close();
+    }
+
+    private Contender awaitLeader() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20_000;
+        while (leader.get() == null && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        return leader.get();
+    }
+
+    @Test
+    void oneContenderLeads() throws Exception {
+        for (int i = 0; i < 3; i++) join();
+        var first = awaitLeader();
+        assertNotNull(first);
+        assertEquals(1, contenders.stream().filter(c -> c.election.isLeading()).count());
+        assertEquals(first.name, new String(first.zk.getData("/leader", false, null)));
+    }
+
+    @Test
+    void theNextInLineTakesOverWhenTheLeadersSessionExpires() throws Exception {
+        for (int i = 0; i < 3; i++) join();
+        var first = awaitLeader();
+        assertNotNull(first);
+        expire(first);
+        var next = awaitLeader();
+        assertNotNull(next);
+        assertTrue(next != first);
+        assertEquals(next.name, new String(next.zk.getData("/leader", false, null)));
+        assertTrue(violations.isEmpty(), violations.toString());
+    }
+
+    @Test
+    void nobodyLeadsWhileSomeoneElseHoldsTheLeaderNode() throws Exception {
+        var squatting = CompletableFuture.runAsync(() -> {
+            try {
+                squat(1000);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        while (squatter.get() == null) Thread.sleep(1);
+        for (int i = 0; i < 3; i++) join();
+        squatting.get(10, TimeUnit.SECONDS);
+        var first = awaitLeader();
+        assertNotNull(first);
+        assertEquals(first.name, new String(first.zk.getData("/leader", false, null)));
+        assertTrue(violations.isEmpty(), violations.toString());
+    }
+
+    @Test
+    void atMostOneLeaderWhileContendersComeGoAndExpire() throws Exception {
+        for (int i = 0; i < CONTENDERS; i++) join();
+        assertNotNull(awaitLeader());
+        var churn = Executors.newFixedThreadPool(CHURN_THREADS);
+        var done = new ArrayList<CompletableFuture<Void>>();
+        long until = System.currentTimeMillis() + CHURN_MILLIS;
+        for (int t = 0; t < CHURN_THREADS; t++) {
+            done.add(CompletableFuture.runAsync(() -> {
+                var random = ThreadLocalRandom.current();
+                try {
+                    while (System.currentTimeMillis() < until) {
+                        var current = leader.get();
+                        var any = contenders.get(random.nextInt(contenders.size()));
+                        switch (random.nextInt(5)) {
+                            case 0 -> { if (current != null) leaveAndRejoin(current); }
+                            case 1 -> leaveAndRejoin(any);
+                            case 2 -> { if (current != null) expire(current); }
+                            case 3 -> expire(any);
+                            // only gets in when it is between leaders
+                            default -> {
+                                if (current != null) leaveAndRejoin(current);
+                                squat(random.nextInt(50));
+                            }
+                        }
+                        Thread.sleep(random.nextInt(50));
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, churn));
+        }
+        CompletableFuture.allOf(done.toArray(CompletableFuture[]::new)).get(60, TimeUnit.SECONDS);
+        churn.shutdown();
+
+        // once it settles there is a leader again, and it is the one holding /leader
+        var last = awaitLeader();
+        assertNotNull(last, "nobody took over after the churn");
+        assertEquals(last.name, new String(last.zk.getData("/leader", false, null)));
+        assertEquals(1, contenders.stream().filter(c -> c.election.isLeading()).count());
+        assertTrue(violations.isEmpty(), violations.toString());
+        assertTrue(elections.get() >= 10, "only " + elections.get() + " elections");
+    }
+}